@@ -0,0 +1,824 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Throughput benchmarks of transport and storage classes, run by gradle bench task.
+ *
+ *   Bench KeepAlive REQUESTS         keep-alive vs connection per poll on loopback, req/s and p99
+ *   Bench FrameDecoder FRAMES        byte level decoder vs former split and parse path, rate and bytes allocated
+ *   Bench SampleRing SAMPLES         ring hand-off vs former locked list, rate and bytes allocated
+ *   Bench EventLoop SECONDS RATE     pooled drain on data vs former poll and 10 ms sleep loop, wakeups and latency
+ *   Bench SampleLog DIR MEGABYTES   append rate, torn tail recovery and scan
+ *   Bench SeriesCodec DAYS           round trip fuzz, compression ratio and decode speed
+ *   Bench Rollups DIR DAYS           aggregation rate and query latency per window
+ *   Bench HistoryQuery DAYS POINTS   downsampled query latency, 1 day to 1 year windows
+ */
+public final class Bench {
+
+    private static final int BATCH = 64;  // samples per batch, like coalesced poll of few devices
+    private static final int BATCHES = 1024;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            usage();
+            return;
+        }
+
+        if ("KeepAlive".equals(args[0]) && args.length == 2) {
+            keepAlive(Integer.parseInt(args[1]));
+        } else if ("FrameDecoder".equals(args[0]) && args.length == 2) {
+            frameDecoder(Integer.parseInt(args[1]));
+        } else if ("SampleRing".equals(args[0]) && args.length == 2) {
+            sampleRing(Integer.parseInt(args[1]));
+        } else if ("EventLoop".equals(args[0]) && args.length == 3) {
+            eventLoop(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        } else if ("SampleLog".equals(args[0]) && args.length == 3) {
+            sampleLog(new File(args[1]), Long.parseLong(args[2]));
+        } else if ("SeriesCodec".equals(args[0]) && args.length == 2) {
+            seriesCodec(Integer.parseInt(args[1]));
+        } else if ("Rollups".equals(args[0]) && args.length == 3) {
+            rollups(new File(args[1]), Integer.parseInt(args[2]));
+        } else if ("HistoryQuery".equals(args[0]) && args.length == 3) {
+            historyQuery(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        } else {
+            usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: Bench KeepAlive REQUESTS | FrameDecoder FRAMES | SampleRing SAMPLES" +
+                " | EventLoop SECONDS RATE | SampleLog DIR MEGABYTES | SeriesCodec DAYS | Rollups DIR DAYS" +
+                " | HistoryQuery DAYS POINTS");
+    }
+
+    /* Batches of random walk readings of few keys, endpoints and devices */
+    static SampleBatch[] batches(int count, int size, long start, long step) {
+
+        Random random = new Random(1);
+        char[] keys = { 'T', 'H', 'B', 'R' };
+        double[] values = { 21.0, 45.0, 0.0, 0.0 };
+        long time = start;
+
+        SampleBatch[] batches = new SampleBatch[count];
+        PortDriver.DataItem[] items = new PortDriver.DataItem[size];
+        for (int i = 0; i < size; i++) {
+            items[i] = new PortDriver.DataItem();
+        }
+
+        for (int b = 0; b < count; b++) {
+            for (int i = 0; i < size; i++) {
+                int k = i % keys.length;
+                values[k] += k < 2 ? random.nextGaussian() * 0.1 : 2.0;
+                items[i].keyId = keys[k];
+                items[i].value = values[k];
+                items[i].endpoint = (i / keys.length) % 4;
+                items[i].timestamp = time;
+                time += step;
+            }
+            batches[b] = new SampleBatch(items, size, b % 2);
+        }
+        return batches;
+    }
+
+    private static void sampleLog(File dir, long megabytes) throws IOException {
+
+        clear(dir);
+
+        int segmentSize = 64 * 1024 * 1024;
+        long records = megabytes * 1024 * 1024 / SampleLog.RECORD_SIZE;
+        SampleBatch[] batches = batches(BATCHES, BATCH, System.currentTimeMillis(), 1);
+
+        // sustained append, producer retries while writer queue is full
+        SampleLog log = new SampleLog(dir, segmentSize, SampleLog.ROLL_PERIOD_DEFAULT, Integer.MAX_VALUE);
+        log.open();
+        long start = System.nanoTime();
+        long offered = 0;
+        for (long n = 0; n < records; n += BATCH) {
+            SampleBatch batch = batches[(int) ((n / BATCH) % BATCHES)];
+            while (!log.append(batch)) {
+                Thread.yield();
+            }
+            offered += BATCH;
+        }
+        log.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("append   %d records, %.1f MB in %.2f s: %.0f records/s, %.1f MB/s%n",
+                offered, offered * SampleLog.RECORD_SIZE / 1e6, seconds, offered / seconds,
+                offered * SampleLog.RECORD_SIZE / 1e6 / seconds);
+
+        // crash in middle of record: last record of newest segment gets torn
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        File newest = files[files.length - 1];
+        long tail = (offered % ((segmentSize - SampleLog.HEADER_SIZE) / SampleLog.RECORD_SIZE));
+        if (tail == 0) {
+            tail = (segmentSize - SampleLog.HEADER_SIZE) / SampleLog.RECORD_SIZE;
+        }
+        RandomAccessFile raf = new RandomAccessFile(newest, "rw");
+        raf.seek(SampleLog.HEADER_SIZE + (tail - 1) * SampleLog.RECORD_SIZE + 12);
+        raf.writeLong(0x5A5A5A5A5A5A5A5AL);
+        raf.close();
+
+        log = new SampleLog(dir, segmentSize, SampleLog.ROLL_PERIOD_DEFAULT, Integer.MAX_VALUE);
+        start = System.nanoTime();
+        log.open();
+        double recovery = (System.nanoTime() - start) / 1e6;
+        log.close();
+        System.out.printf("recover  %d segments, %d of %d tail records valid in %.1f ms%n",
+                files.length, log.getRecovered(), tail, recovery);
+
+        // full scan, checks every record
+        final long[] seen = new long[1];
+        start = System.nanoTime();
+        log.scan(Long.MIN_VALUE, Long.MAX_VALUE, new SampleLog.Visitor() {
+            @Override
+            public void onSample(long time, int device, int endpoint, int key, double value) {
+                seen[0]++;
+            }
+        });
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("scan     %d records in %.2f s: %.0f records/s%n", seen[0], seconds, seen[0] / seconds);
+
+        clear(dir);
+    }
+
+    /* Stock firmware capture: frame every 2 s (tmr.alarm 2000), T and H with
+     * one decimal (%.1f), B and R seconds since boot, E error flag. Reading
+     * times carry poll jitter, temperature and humidity follow day cycle with
+     * sensor noise and occasional failed read. */
+    static SampleBatch[] am2302(int days, long start) {
+
+        Random random = new Random(2302);
+        int frames = days * 24 * 3600 / 2;
+        SampleBatch[] batches = new SampleBatch[frames];
+
+        char[] keys = { 'B', 'R', 'E', 'T', 'H' };
+        PortDriver.DataItem[] items = new PortDriver.DataItem[keys.length];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new PortDriver.DataItem();
+            items[i].keyId = keys[i];
+        }
+
+        double temp = 21.0;
+        double humid = 45.0;
+        long read = 0;
+        for (int f = 0; f < frames; f++) {
+            long uptime = f * 2L;
+            double day = 2 * Math.PI * (uptime % 86400) / 86400.0;
+            boolean error = random.nextInt(500) == 0;
+            if (!error) {
+                temp = Math.round((21.0 + 3.0 * Math.sin(day) + random.nextGaussian() * 0.05) * 10) / 10.0;
+                humid = Math.round((45.0 - 10.0 * Math.sin(day) + random.nextGaussian() * 0.2) * 10) / 10.0;
+                read = uptime;
+            }
+            double[] values = { uptime, read, error ? 1 : 0, temp, humid };
+
+            long time = start + uptime * 1000 + (long) (random.nextGaussian() * 15);
+            for (int i = 0; i < items.length; i++) {
+                items[i].value = values[i];
+                items[i].timestamp = time;
+            }
+            batches[f] = new SampleBatch(items, items.length, 0);
+        }
+        return batches;
+    }
+
+    private static void seriesCodec(int days) {
+
+        long samples = codecFuzz(20000);
+        System.out.printf("fuzz     %d samples in 20000 blocks round trip bit exact%n", samples);
+
+        // ratio and decode speed on firmware like capture
+        SampleBatch[] batches = am2302(days, 1451606400000L);
+        String[] names = { "raw", "xor", "decimal", "counter", "archive" };
+        for (int codec = 0; codec < names.length; codec++) {
+            // lossless codecs, archive uses defaults (decimal, times to 1 s)
+            SeriesArchive archive = new SeriesArchive(SensorSchema.getDefault());
+            if (codec <= SeriesCodec.CODEC_COUNTER) {
+                for (char key : new char[] { 'B', 'R', 'E', 'T', 'H' }) {
+                    SensorSchema.Sensor sensor = SensorSchema.getDefault().get(SensorSchema.getDefault().idOf(key));
+                    archive.setCodec(key, new SeriesCodec(codec, SeriesCodec.forSensor(sensor).decimals));
+                }
+            }
+
+            long start = System.nanoTime();
+            for (SampleBatch batch : batches) {
+                archive.add(batch);
+            }
+            double encode = (System.nanoTime() - start) / 1e9;
+
+            long count = 0;
+            long bytes = 0;
+            StringBuilder perKey = new StringBuilder();
+            for (SeriesArchive.Series series : archive.getSeries()) {
+                count += series.size();
+                bytes += series.getBytes();
+                perKey.append(String.format(" %c %.2f", (char) series.key, series.getBytes() * 8.0 / series.size()));
+            }
+
+            // decode, best of few runs
+            double decode = Double.MAX_VALUE;
+            double sum = 0;
+            for (int run = 0; run < 5; run++) {
+                start = System.nanoTime();
+                for (SeriesArchive.Series series : archive.getSeries()) {
+                    SeriesArchive.Cursor cursor = series.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+                    while (cursor.next()) {
+                        sum += cursor.getValue();
+                    }
+                }
+                decode = Math.min(decode, (System.nanoTime() - start) / 1e9);
+            }
+
+            System.out.printf("%-8s %d days, %d samples, %.1f MB, %.2f bits/sample (%s ), %.1fx of 16 B, " +
+                            "%.1fx of SeriesStore, encode %.0f ns/sample, decode %.1fM samples/s%s%n",
+                    names[codec], days, count, bytes / 1e6,
+                    bytes * 8.0 / count, perKey.toString().trim(), count * 16.0 / bytes, count * 12.0 / bytes,
+                    encode * 1e9 / count, count / decode / 1e6, sum == 0 ? " " : "");
+        }
+    }
+
+    /* Round trip fuzz, every codec, regular and hostile input, bit exact.
+     * Returns number of samples checked, throws on first mismatch. */
+    static long codecFuzz(int rounds) {
+
+        Random random = new Random(7);
+        long samples = 0;
+        for (int round = 0; round < rounds; round++) {
+            SeriesCodec codec = new SeriesCodec(random.nextInt(4), random.nextInt(SeriesCodec.MAX_DECIMALS + 1),
+                    random.nextBoolean() ? 1 : 1 + random.nextInt(5000));
+            SeriesCodec.Encoder encoder = codec.encoder();
+            int count = random.nextInt(round % 10 == 0 ? 5000 : 200);
+            long[] times = new long[count];
+            double[] values = new double[count];
+
+            long time = random.nextLong() / (1 + random.nextInt(1 << 20));
+            double value = random.nextGaussian() * 100;
+            for (int i = 0; i < count; i++) {
+                switch (random.nextInt(8)) {
+                    case 0: time += random.nextInt(3); break;
+                    case 1: time += Math.abs(random.nextLong() >> random.nextInt(64)); break;
+                    default: time += 2000 + random.nextInt(61) - 30; break;
+                }
+                switch (random.nextInt(12)) {
+                    case 0: value = random.nextDouble() * Math.pow(10, random.nextInt(600) - 300); break;
+                    case 1: value = Double.longBitsToDouble(random.nextLong()); break;
+                    case 2: value = new double[] { Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                            -0.0, 0.0, Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE }[random.nextInt(8)]; break;
+                    case 3: value = random.nextInt(); break;
+                    case 4: break;
+                    default:
+                        value = Math.round((value + random.nextGaussian()) * POW10[codec.decimals]) / POW10[codec.decimals];
+                        break;
+                }
+                if (time < 0 && times.length > 0 && i > 0 && time < times[i - 1])
+                    time = times[i - 1];  // overflow, keep order
+                times[i] = time;
+                values[i] = value;
+                if (!encoder.append(time, value))
+                    throw new IllegalStateException("Rejected in order sample");
+            }
+
+            SeriesCodec.Cursor cursor = encoder.seal().cursor();
+            for (int i = 0; i < count; i++) {
+                if (!cursor.next() || cursor.getTime() != codec.round(times[i]) ||
+                        Double.doubleToRawLongBits(cursor.getValue()) != Double.doubleToRawLongBits(values[i])) {
+                    throw new IllegalStateException("Round trip failed, round " + round + " codec " + codec.codec +
+                            " sample " + i + ": " + times[i] + " " + values[i] +
+                            " decoded " + cursor.getTime() + " " + cursor.getValue());
+                }
+            }
+            if (cursor.next())
+                throw new IllegalStateException("Extra sample, round " + round);
+            samples += count;
+        }
+        return samples;
+    }
+
+    private static void rollups(File dir, int days) throws IOException {
+
+        clear(dir);
+
+        long start = 1451606400000L;
+        long end = start + days * 24 * 3600 * 1000L;
+        Rollups rollups = new Rollups(SensorSchema.getDefault(), dir);
+        rollups.open();
+
+        // capture is generated day by day, only aggregation is timed
+        long samples = 0;
+        long elapsed = 0;
+        for (int day = 0; day < days; day++) {
+            SampleBatch[] batches = am2302(1, start + day * 24 * 3600 * 1000L);
+            long t = System.nanoTime();
+            for (SampleBatch batch : batches) {
+                rollups.add(batch);
+                samples += batch.size();
+            }
+            elapsed += System.nanoTime() - t;
+        }
+        rollups.close();
+        System.out.printf("ingest   %d days, %d samples, %.0f ns/sample%n", days, samples, (double) elapsed / samples);
+
+        long t = System.nanoTime();
+        rollups = new Rollups(SensorSchema.getDefault(), dir);
+        rollups.open();
+        System.out.printf("load     %.1f ms%n", (System.nanoTime() - t) / 1e6);
+
+        final long[] buckets = new long[1];
+        Rollups.Visitor visitor = new Rollups.Visitor() {
+            @Override
+            public void onBucket(long start, long count, double min, double max, double sum, double last) {
+                buckets[0]++;
+            }
+        };
+
+        int points = 500;
+        long[] windows = { 3600 * 1000L, 24 * 3600 * 1000L, 30 * 24 * 3600 * 1000L, 365 * 24 * 3600 * 1000L };
+        String[] names = { "1 h", "1 day", "30 days", "1 year" };
+        for (int w = 0; w < windows.length; w++) {
+            long from = Math.max(start, end - windows[w]);
+            int tier = rollups.selectTier(end - windows[w], end, points, end);
+            if (tier == Rollups.TIER_RAW) {
+                System.out.printf("query    %-7s raw samples needed for %d points%n", names[w], points);
+                continue;
+            }
+
+            // best of many runs, query is short
+            double best = Double.MAX_VALUE;
+            for (int run = 0; run < 200; run++) {
+                buckets[0] = 0;
+                t = System.nanoTime();
+                rollups.query('T', 0, 0, tier, from, end, visitor);
+                best = Math.min(best, (System.nanoTime() - t) / 1e3);
+            }
+            System.out.printf("query    %-7s tier %d (%d s), %d buckets, %.1f us%n", names[w], tier,
+                    rollups.getResolution(tier) / 1000, buckets[0], best);
+        }
+        rollups.close();
+
+        clear(dir);
+    }
+
+    private static void historyQuery(int days, int points) {
+
+        long start = 1451606400000L;
+        long end = start + days * 24 * 3600 * 1000L;
+
+        SeriesArchive archive = new SeriesArchive(SensorSchema.getDefault());
+        Rollups rollups = new Rollups(SensorSchema.getDefault());
+        for (int day = 0; day < days; day++) {
+            for (SampleBatch batch : am2302(1, start + day * 24 * 3600 * 1000L)) {
+                archive.add(batch);
+                rollups.add(batch);
+            }
+        }
+        System.out.printf("history  %d days, %d samples of T in %.1f MB archived%n", days,
+                archive.get('T').size(), archive.get('T').getBytes() / 1e6);
+
+        HistoryQuery[] engines = { new HistoryQuery(archive, rollups), new HistoryQuery(archive, null) };
+        String[] engineNames = { "rollups", "raw" };
+        long[] windows = { 24 * 3600 * 1000L, 30 * 24 * 3600 * 1000L, 365 * 24 * 3600 * 1000L };
+        String[] windowNames = { "1 day", "30 days", "1 year" };
+        int[] keys = { 'T', 'H' };
+
+        for (int e = 0; e < engines.length; e++) {
+            for (int w = 0; w < windows.length; w++) {
+                if (windows[w] > end - start)
+                    continue;
+                long from = end - windows[w];
+                for (int mode : new int[] { HistoryQuery.MODE_LTTB, HistoryQuery.MODE_ENVELOPE }) {
+                    int runs = e == 0 ? 50 : Math.max(3, (int) (30 * 24 * 3600 * 1000L / windows[w]));
+                    double[] ms = new double[runs];
+                    HistoryQuery.Series[] result = null;
+                    for (int run = 0; run < runs; run++) {
+                        long t = System.nanoTime();
+                        result = engines[e].query(keys, 0, 0, from, end, points, mode);
+                        ms[run] = (System.nanoTime() - t) / 1e6;
+                    }
+                    Arrays.sort(ms);
+                    System.out.printf("query    %-7s %-7s %-8s T+H, %d points, source %s: median %.2f ms, max %.2f ms%n",
+                            engineNames[e], windowNames[w], mode == HistoryQuery.MODE_LTTB ? "lttb" : "envelope",
+                            result[0].size, result[0].source == Rollups.TIER_RAW ? "raw" :
+                                    rollups.getResolution(result[0].source) / 1000 + " s",
+                            ms[runs / 2], ms[runs - 1]);
+                }
+            }
+        }
+    }
+
+    /* Polls of loopback stand-in device: HTTP/1.1 on one reused connection
+     * against former HTTP/1.0 poll on new connection closed by device */
+    private static void keepAlive(int requests) throws IOException, SimpleHttpReq.SimpleHttpReqException {
+
+        String frame = "<p>B=12 R=12 E=0 T=21.5C H=40.1% </p>";
+        String[] script = new String[requests];
+        long[] nanos = new long[requests];
+
+        Arrays.fill(script, "HTTP/1.1 200 OK\r\nContent-Length: " + frame.length() + "\r\n\r\n" + frame);
+        Stub stub = new Stub(script);
+        SocketChannel channel = SocketChannel.open(stub.address());
+        channel.configureBlocking(false);
+        SimpleHttpReq req = new SimpleHttpReq("node", true);
+        req.attach(channel);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long t = System.nanoTime();
+            req.fetch();
+            nanos[i] = System.nanoTime() - t;
+        }
+        latencies("keep-alive", nanos, System.nanoTime() - start, stub.accepted);
+        req.close();
+        channel.close();
+
+        Arrays.fill(script, frame + "\n");
+        stub = new Stub(script);
+        start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long t = System.nanoTime();
+            Socket socket = new Socket();
+            socket.connect(stub.address(), SimpleHttpReq.REQUEST_TIMEOUT);
+            new SimpleHttpReq(socket.getOutputStream(), socket.getInputStream(), "node", false).fetch();
+            socket.close();
+            nanos[i] = System.nanoTime() - t;
+        }
+        latencies("close", nanos, System.nanoTime() - start, stub.accepted);
+    }
+
+    private static void latencies(String what, long[] nanos, long elapsed, int connections) {
+
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-10s %d requests on %d connections in %.2f s: %.0f req/s, p50 %.0f us, p99 %.0f us, max %.0f us%n",
+                what, sorted.length, connections, elapsed / 1e9, sorted.length / (elapsed / 1e9),
+                sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3,
+                sorted[sorted.length - 1] / 1e3);
+    }
+
+    /* Decoding of device responses, each run twice so second one is warmed up */
+    private static void frameDecoder(int frames) {
+
+        Random random = new Random(1);
+        byte[][] bodies = new byte[64][];
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = String.format(Locale.US, "<p>B=%d R=%d E=0 T=%.1fC H=%.1f%% </p>\n", 100 + i, 96 + i,
+                    20 + random.nextGaussian(), 40 + random.nextGaussian() * 5).getBytes();
+        }
+
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        List<PortDriver.DataItem> items = new ArrayList<PortDriver.DataItem>();
+        for (int run = 0; run < 2; run++) {
+            long allocated = allocated();
+            long start = System.nanoTime();
+            double sum = 0;
+            for (int i = 0; i < frames; i++) {
+                byte[] body = bodies[i & (bodies.length - 1)];
+                FrameDecoder.decode(body, 0, body.length, frame);
+                for (int v = 0; v < frame.count; v++) {
+                    sum += frame.values[v];
+                }
+            }
+            decoded("decoder", frames, System.nanoTime() - start, allocated, sum);
+
+            allocated = allocated();
+            start = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < frames; i++) {
+                items.clear();
+                split(bodies[i & (bodies.length - 1)], items);
+                for (PortDriver.DataItem item : items) {
+                    sum += item.value;
+                }
+            }
+            decoded("split", frames, System.nanoTime() - start, allocated, sum);
+        }
+    }
+
+    /* Former parse path of ComLink poll thread, as it was before FrameDecoder */
+    private static void split(byte[] body, List<PortDriver.DataItem> items) {
+
+        for (String response : new String(body).split("\n")) {
+            if (response.length() == 0)
+                break;
+
+            String line = new String(response);
+            line = line.substring(line.indexOf(">") + 1);
+            line = line.substring(0, line.indexOf("<"));
+            String values[] = line.split(" ");
+
+            for (int v = 0; v < values.length; v++) {
+                PortDriver.DataItem item = new PortDriver.DataItem();
+                item.key = values[v].substring(0, 1);
+                int len = values[v].length();
+                if (item.key.contains("T") || item.key.contains("H"))
+                    len--;
+                item.value = Double.parseDouble(values[v].substring(2, len));
+                items.add(item);
+            }
+        }
+    }
+
+    private static void decoded(String what, int frames, long elapsed, long allocated, double sum) {
+
+        long bytes = allocated < 0 ? -1 : allocated() - allocated;
+        System.out.printf("%-8s %d frames in %.2f s: %.0f frames/s, %.0f ns/frame, %s (checksum %.1f)%n",
+                what, frames, elapsed / 1e9, frames / (elapsed / 1e9), (double) elapsed / frames,
+                bytes < 0 ? "allocation not reported by JVM" : String.format(Locale.US, "%.1f bytes/frame allocated",
+                        (double) bytes / frames), sum);
+    }
+
+    /* Driver to service hand-off, producer and consumer on own threads, nothing
+     * dropped. Allocation counts both threads, each run twice to warm up. */
+    private static void sampleRing(final int samples) throws InterruptedException {
+
+        final long[] produced = new long[1];
+        PortDriver.DataItem item = new PortDriver.DataItem();
+
+        for (int run = 0; run < 2; run++) {
+            for (int wait : new int[] { SampleRing.WAIT_PARK, SampleRing.WAIT_YIELD }) {
+                final SampleRing ring = new SampleRing(SampleRing.CAPACITY_DEFAULT, wait, SampleRing.OVERFLOW_BLOCK);
+                Thread producer = new Thread() {
+                    @Override
+                    public void run() {
+                        long allocated = allocated();
+                        for (int i = 0; i < samples; i++) {
+                            ring.offer('T', i, i, 0);
+                        }
+                        ring.close();
+                        produced[0] = allocated() - allocated;
+                    }
+                };
+                long allocated = allocated();
+                long start = System.nanoTime();
+                producer.start();
+                long received = 0;
+                while (ring.take(item)) {
+                    received++;
+                }
+                long elapsed = System.nanoTime() - start;
+                producer.join();
+                handedOff(wait == SampleRing.WAIT_PARK ? "ring/park" : "ring/yield", received, elapsed,
+                        allocated() - allocated + produced[0], "bounded by " + ring.capacity());
+            }
+
+            final LockedList list = new LockedList();
+            Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    long allocated = allocated();
+                    for (int i = 0; i < samples; i++) {
+                        list.add('T', i, i);
+                    }
+                    list.close();
+                    produced[0] = allocated() - allocated;
+                }
+            };
+            long allocated = allocated();
+            long start = System.nanoTime();
+            producer.start();
+            long received = 0;
+            while (list.receive(item)) {
+                received++;
+            }
+            long elapsed = System.nanoTime() - start;
+            producer.join();
+            handedOff("list", received, elapsed, allocated() - allocated + produced[0], "up to " + list.mMaxSize);
+        }
+    }
+
+    private static void handedOff(String what, long samples, long elapsed, long bytes, String backlog) {
+        System.out.printf("%-10s %d samples in %.2f s: %.0f samples/s, %.1f bytes/sample allocated, backlog %s%n",
+                what, samples, elapsed / 1e9, samples / (elapsed / 1e9), (double) bytes / samples, backlog);
+    }
+
+    /* Device publishing RATE frames of 5 values per second for SECONDS, stamped
+     * with System.nanoTime(). Service side either drains on publish as pooled
+     * Device task does, or polls one sample and sleeps 10 ms as former
+     * ServiceThread did. Wakeups count every time service side resumed. */
+    private static void eventLoop(int seconds, final int rate) throws InterruptedException {
+
+        final int frames = seconds * rate;
+        final long[] latencies = new long[frames * 5];
+
+        // drain task scheduled by ring listener, at most one queued or running
+        final SampleRing ring = new SampleRing();
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final AtomicBoolean pending = new AtomicBoolean(false);
+        final AtomicInteger wakeups = new AtomicInteger();
+        final int[] received = new int[1];
+        final Runnable drain = new Runnable() {
+            final PortDriver.DataItem[] items = items(2 * FrameDecoder.MAX_VALUES);
+
+            @Override
+            public void run() {
+                wakeups.incrementAndGet();
+                pending.set(false);
+                int n = ring.drain(items, 0);
+                long now = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    latencies[received[0]++] = now - items[i].timestamp;
+                }
+                scheduled.set(false);
+                if (n > items.length - FrameDecoder.MAX_VALUES || pending.get()) {
+                    schedule();
+                }
+            }
+
+            void schedule() {
+                if (scheduled.compareAndSet(false, true)) {
+                    pool.execute(this);
+                }
+            }
+        };
+        ring.setListener(new Runnable() {
+            @Override
+            public void run() {
+                pending.set(true);
+                if (scheduled.compareAndSet(false, true)) {
+                    pool.execute(drain);
+                }
+            }
+        });
+
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        frame.count = 5;
+        long start = System.nanoTime();
+        for (int f = 0; f < frames; f++) {
+            LockSupport.parkNanos(start + f * 1000000000L / rate - System.nanoTime());
+            long now = System.nanoTime();
+            for (int v = 0; v < frame.count; v++) {
+                frame.keys[v] = "BRETH".charAt(v);
+                frame.values[v] = f;
+            }
+            ring.offer(frame, now, 0);
+        }
+        while (!ring.isEmpty() || scheduled.get()) {
+            Thread.sleep(1);
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        looped("drain", received[0], System.nanoTime() - start, wakeups.get(), latencies);
+
+        // former loop on own thread
+        final LockedList list = new LockedList();
+        final int[] loops = new int[1];
+        received[0] = 0;
+        Thread service = new Thread() {
+            @Override
+            public void run() {
+                PortDriver.DataItem item = new PortDriver.DataItem();
+                while (list.receive(item)) {
+                    latencies[received[0]++] = System.nanoTime() - item.timestamp;
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    loops[0]++;
+                }
+            }
+        };
+        service.start();
+        start = System.nanoTime();
+        for (int f = 0; f < frames; f++) {
+            LockSupport.parkNanos(start + f * 1000000000L / rate - System.nanoTime());
+            long now = System.nanoTime();
+            for (int v = 0; v < 5; v++) {
+                list.add("BRETH".charAt(v), f, now);
+            }
+        }
+        list.close();
+        service.join();
+        looped("sleep", received[0], System.nanoTime() - start, loops[0] + list.mWakeups, latencies);
+    }
+
+    private static void looped(String what, int samples, long elapsed, int wakeups, long[] latencies) {
+
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        System.out.printf("%-6s %d samples in %.2f s: %.1f wakeups/s, %.2f samples per wakeup, " +
+                        "latency p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                what, samples, elapsed / 1e9, wakeups / (elapsed / 1e9), (double) samples / wakeups,
+                sorted[samples / 2] / 1e6, sorted[(int) (samples * 0.99)] / 1e6, sorted[samples - 1] / 1e6);
+    }
+
+    private static PortDriver.DataItem[] items(int count) {
+        PortDriver.DataItem[] items = new PortDriver.DataItem[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = new PortDriver.DataItem();
+        }
+        return items;
+    }
+
+    /* Former hand-off of ComLink: list guarded by lock, object per sample,
+     * consumer takes head with remove(0), list grows while consumer lags */
+    private static final class LockedList {
+
+        private final ArrayList<PortDriver.DataItem> mItems = new ArrayList<PortDriver.DataItem>();
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mCondition = mLock.newCondition();
+        private boolean mClosed = false;
+        int mMaxSize = 0;
+        int mWakeups = 0;  // consumer returns from waiting
+
+        void add(int key, double value, long timestamp) {
+
+            PortDriver.DataItem item = new PortDriver.DataItem();
+            item.key = FrameDecoder.keyName(key);
+            item.keyId = key;
+            item.value = value;
+            item.timestamp = timestamp;
+
+            mLock.lock();
+            try {
+                mItems.add(item);
+                mMaxSize = Math.max(mMaxSize, mItems.size());
+                mCondition.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        void close() {
+            mLock.lock();
+            try {
+                mClosed = true;
+                mCondition.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        boolean receive(PortDriver.DataItem frame) {
+
+            mLock.lock();
+            try {
+                while (mItems.isEmpty() && !mClosed) {
+                    mCondition.await();
+                    mWakeups++;
+                }
+                if (mItems.isEmpty()) {
+                    return false;
+                }
+                frame.clone(mItems.remove(0));
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /* Bytes allocated so far by calling thread, -1 when JVM does not report it */
+    static long allocated() {
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+
+    static void clear(File dir) throws IOException {
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File[] files = dir.listFiles();
+        for (File file : files) {
+            if (!file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,1214 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* Behavior checks of core classes, run by gradle check task. Devices are
+ * played by stand-ins on loopback, so no hardware nor network is needed.
+ *
+ *   Checks           every check
+ *   Checks NAME ...  selected checks, eg. Checks KeepAlive
+ */
+public final class Checks {
+
+    private static final String[] ALL = { "KeepAlive", "FrameDecoder", "HttpFramer", "MultiComLink", "SampleRing", "Stream", "TypedPath", "WatchdogWheel", "SeriesCodec", "HistoryQuery" };
+
+    private static final int TIMEOUT = 2000;  // ms, for answers stand-ins give at once
+
+    private static String gName = null;
+    private static int gExpected = 0;
+    private static int gFailed = 0;
+
+    public static void main(String[] args) throws Exception {
+
+        String[] names = args.length > 0 ? args : ALL;
+        for (String name : names) {
+            gName = name;
+            int failed = gFailed;
+            if ("KeepAlive".equals(name)) {
+                keepAlive();
+            } else if ("FrameDecoder".equals(name)) {
+                frameDecoder();
+            } else if ("HttpFramer".equals(name)) {
+                httpFramer();
+            } else if ("MultiComLink".equals(name)) {
+                multiComLink();
+            } else if ("SampleRing".equals(name)) {
+                sampleRing();
+            } else if ("Stream".equals(name)) {
+                stream();
+            } else if ("TypedPath".equals(name)) {
+                typedPath();
+            } else if ("WatchdogWheel".equals(name)) {
+                watchdogWheel();
+            } else if ("SeriesCodec".equals(name)) {
+                seriesCodec();
+            } else if ("HistoryQuery".equals(name)) {
+                historyQuery();
+            } else {
+                System.err.println("Unknown check " + name + ", known " + Arrays.toString(ALL));
+                System.exit(2);
+            }
+            System.out.printf("%-8s %s%n", gFailed == failed ? "ok" : "FAILED", name);
+        }
+
+        System.out.printf("%d expectations, %d failed%n", gExpected, gFailed);
+        System.exit(gFailed == 0 ? 0 : 1);  // links may leave poll threads behind
+    }
+
+    private static void expect(boolean condition, String what) {
+        gExpected++;
+        if (!condition) {
+            gFailed++;
+            System.out.println("  " + gName + ": " + what);
+        }
+    }
+
+    private static String body(SimpleHttpReq req, int len) {
+        return new String(req.getBody(), 0, len);
+    }
+
+    /* Observer dialing the stand-in again whenever link asks for fresh connection */
+    private static final class Redial implements ComLink.ComLinkObserver {
+
+        final Stub stub;
+        final AtomicReference<ComLink> link = new AtomicReference<ComLink>();
+        volatile int exceptions = 0;
+
+        Redial(Stub stub) {
+            this.stub = stub;
+        }
+
+        ComLink open(boolean streaming) throws IOException {
+            link.set(new ComLink(this, dial(), "node", true, new PollScheduler.Fixed(20), streaming));
+            return link.get();
+        }
+
+        private SocketChannel dial() throws IOException {
+            SocketChannel channel = SocketChannel.open(stub.address());
+            channel.configureBlocking(false);
+            return channel;
+        }
+
+        @Override
+        public void onException(int code) {
+            exceptions++;
+        }
+
+        @Override
+        public void onReconnect() {
+            // poll thread may call back before constructor returns
+            while (link.get() == null)
+                Thread.yield();
+            try {
+                link.get().updateChannel(dial());
+            } catch (IOException e) {
+                exceptions++;
+            }
+        }
+    }
+
+    /* Copies of first count values link delivers within TIMEOUT */
+    private static List<PortDriver.DataItem> collect(ComLink link, int count) {
+
+        List<PortDriver.DataItem> received = new ArrayList<PortDriver.DataItem>();
+        PortDriver.DataItem[] items = new PortDriver.DataItem[count];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new PortDriver.DataItem();
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (received.size() < count && System.currentTimeMillis() < deadline) {
+            int n = link.receive(Arrays.copyOf(items, count - received.size()), deadline - System.currentTimeMillis());
+            for (int i = 0; i < n; i++) {
+                received.add(new PortDriver.DataItem(items[i]));
+            }
+        }
+        return received;
+    }
+
+    /* user-001: one connection serves many polls, framed by length or chunks */
+    private static void keepAlive() throws Exception {
+
+        String frame = "<p>B=12 R=12 E=0 T=21.5C H=40.1% </p>";
+        String chunked = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                "7;name=value\r\n" + frame.substring(0, 7) + "\r\n" +
+                Integer.toHexString(frame.length() - 7) + "\r\n" + frame.substring(7) + "\r\n0\r\n\r\n";
+        String sized = "HTTP/1.1 200 OK\r\nContent-Length: " + frame.length() + "\r\n\r\n" + frame;
+        String last = "HTTP/1.1 200 OK\r\nContent-Length: " + frame.length() + "\r\nConnection: close\r\n\r\n" + frame;
+
+        // blocking streams, eg. bluetooth sockets
+        Stub stub = new Stub(sized, chunked, last);
+        Socket socket = new Socket();
+        socket.connect(stub.address(), TIMEOUT);
+        SimpleHttpReq req = new SimpleHttpReq(socket.getOutputStream(), socket.getInputStream(), "node", true);
+        boolean[] persistent = { true, true, false };
+        for (int i = 0; i < persistent.length; i++) {
+            String body = body(req, req.fetch());
+            expect(frame.equals(body), "stream poll " + i + " body " + body);
+            expect(req.isPersistent() == persistent[i], "stream poll " + i + " persistent " + req.isPersistent());
+        }
+        socket.close();
+        expect(stub.accepted == 1, "stream polls took " + stub.accepted + " connections");
+        expect(stub.requests.size() == 3 && stub.requests.get(0).equals("GET / HTTP/1.1"),
+                "stream requests " + stub.requests);
+
+        // non-blocking channel, deadline bounds a silent device
+        stub = new Stub(chunked, sized);
+        SocketChannel channel = SocketChannel.open(stub.address());
+        channel.configureBlocking(false);
+        req = new SimpleHttpReq("node", true);
+        req.attach(channel);
+        for (int i = 0; i < 2; i++) {
+            String body = body(req, req.fetch());
+            expect(frame.equals(body), "channel poll " + i + " body " + body);
+            expect(req.isPersistent(), "channel poll " + i + " not persistent");
+        }
+        expect(stub.accepted == 1, "channel polls took " + stub.accepted + " connections");
+
+        req.setTimeout(200);
+        String reason = null;
+        long start = System.currentTimeMillis();
+        try {
+            req.fetch();
+        } catch (SimpleHttpReq.SimpleHttpReqException e) {
+            reason = e.getReason();
+        }
+        long waited = System.currentTimeMillis() - start;
+        expect("ETIMEOUT".equals(reason), "silent device gave " + reason);
+        expect(waited >= 150 && waited < TIMEOUT, "silent device waited " + waited + " ms");
+        req.close();
+        channel.close();
+
+        // legacy firmware, HTTP/1.0 and bare payload read until close
+        stub = new Stub("HTTP/1.0 200 OK\r\n\r\n" + frame, frame + "\n");
+        for (int i = 0; i < 2; i++) {
+            socket = new Socket();
+            socket.connect(stub.address(), TIMEOUT);
+            req = new SimpleHttpReq(socket.getOutputStream(), socket.getInputStream(), "node", false);
+            List<String> lines = req.get();
+            expect(lines.size() == 1 && frame.equals(lines.get(0)), "legacy poll " + i + " lines " + lines);
+            expect(!req.isPersistent(), "legacy poll " + i + " persistent");
+            socket.close();
+        }
+        expect(stub.requests.size() == 2 && stub.requests.get(0).equals("GET / HTTP/1.0"),
+                "legacy requests " + stub.requests);
+    }
+
+    /* user-002: frames decode to the same values as Double.parseDouble,
+     * malformed ones are rejected */
+    private static void frameDecoder() throws Exception {
+
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        String[] good = {
+                "<p>B=100 R=96 E=1 T=25.3C H=37.7% </p>",
+                "B=100 R=96 E=0 T=-5.25C H=0.5%\r",
+                "  <p>T=21.0C\tH=99.9%</p>",
+        };
+        for (String text : good) {
+            byte[] data = text.getBytes();
+            int count = FrameDecoder.decode(data, 0, data.length, frame);
+            String[] tokens = text.replaceAll("<[^>]*>", " ").trim().split("\\s+");
+            expect(count == tokens.length && frame.count == count, "'" + text + "' gave " + count + " values");
+            for (int i = 0; i < Math.min(count, tokens.length); i++) {
+                double value = Double.parseDouble(tokens[i].substring(2).replaceAll("[^-0-9.]", ""));
+                expect(frame.keys[i] == tokens[i].charAt(0) && frame.values[i] == value,
+                        "'" + text + "' value " + i + " " + frame.keys[i] + "=" + frame.values[i]);
+            }
+        }
+
+        // frame in the middle of a larger buffer
+        byte[] data = "GARBAGE<p>T=1.5C</p>GARBAGE".getBytes();
+        int count = FrameDecoder.decode(data, 7, 13, frame);
+        expect(count == 1 && frame.keys[0] == 'T' && frame.values[0] == 1.5, "sub range gave " + count);
+
+        String[] empty = { "<p></p>", "  ", "" };
+        for (String text : empty) {
+            data = text.getBytes();
+            expect(FrameDecoder.decode(data, 0, data.length, frame) == 0, "'" + text + "' not empty");
+        }
+
+        String[] bad = { "<p>B=1", "<p>X</p>", "<p>T=1.2.3</p>", "B=", "T=-C", "T=21C5", "=5", "1=5",
+                "T=1234567890123456789", "<p>T=1 H=2 B=3 R=4 E=5 T=1 H=2 B=3 R=4 E=5 T=1 H=2 B=3 R=4 E=5 T=1 H=2</p>" };
+        for (String text : bad) {
+            data = text.getBytes();
+            count = FrameDecoder.decode(data, 0, data.length, frame);
+            expect(count == FrameDecoder.MALFORMED, "'" + text + "' gave " + count);
+        }
+
+        data = "T=1 H=2 B=3".getBytes();
+        count = FrameDecoder.decode(data, 0, data.length, new FrameDecoder.Frame(2));
+        expect(count == FrameDecoder.MALFORMED, "overflow of small frame gave " + count);
+
+        // random readings, up to 15 digits and 6 decimals are exact
+        Random random = new Random(2);
+        int wrong = 0;
+        for (int i = 0; i < 100000; i++) {
+            long mantissa = (long) (random.nextDouble() * Math.pow(10, 1 + random.nextInt(15)));
+            String text = BigDecimal.valueOf(random.nextBoolean() ? mantissa : -mantissa, random.nextInt(7))
+                    .toPlainString();
+            data = ("<p>T=" + text + "C</p>").getBytes();
+            if (FrameDecoder.decode(data, 0, data.length, frame) != 1 || frame.values[0] != Double.parseDouble(text))
+                wrong++;
+        }
+        expect(wrong == 0, wrong + " random readings decoded differently");
+
+        expect(FrameDecoder.keyName('T') == FrameDecoder.keyName('T') && "T".equals(FrameDecoder.keyName('T')),
+                "key names not shared");
+
+    }
+
+    /* user-004: framer agrees with SimpleHttpReq on every prefix of a response,
+     * one selector thread serves many endpoints and keeps their connections */
+    private static void httpFramer() throws Exception {
+
+        String frame = "<p>B=3 R=3 E=0 T=20.5C H=41.0% </p>";
+        String[] responses = {
+                "HTTP/1.1 200 OK\r\nContent-Length: " + frame.length() + "\r\n\r\n" + frame,
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3;x=1\r\n" + frame.substring(0, 3) +
+                        "\r\n " + Integer.toHexString(frame.length() - 3) + "\r\n" + frame.substring(3) +
+                        "\r\n0\r\nTrailer: 1\r\n\r\n",
+                "HTTP/1.0 200 OK\nConnection: keep-alive\nContent-Length: " + frame.length() + "\n\n" + frame,
+                "HTTP/1.1 200 OK\r\nConnection: close\r\n\r\n" + frame,
+                frame,
+                frame.substring(3, frame.length() - 4) + "\n",
+        };
+        boolean[] delimitedByClose = { false, false, false, true, false, false };
+
+        HttpFramer.Result result = new HttpFramer.Result();
+        for (int r = 0; r < responses.length; r++) {
+            byte[] data = responses[r].getBytes();
+
+            SimpleHttpReq req = new SimpleHttpReq(new ByteArrayOutputStream(),
+                    new ByteArrayInputStream(data), "node", true);
+            String expected = body(req, req.fetch());
+
+            int early = -1;
+            for (int len = 0; len < data.length; len++) {
+                if (HttpFramer.frame(Arrays.copyOf(data, data.length), len, false, result) != HttpFramer.NEED_MORE) {
+                    early = len;
+                    break;
+                }
+            }
+            expect(early < 0, "response " + r + " framed early at " + early + " of " + data.length + " bytes");
+
+            byte[] buf = Arrays.copyOf(data, data.length);
+            int status = HttpFramer.frame(buf, buf.length, delimitedByClose[r], result);
+            String body = status == HttpFramer.COMPLETE ? new String(buf, result.bodyOffset, result.bodyLength) : null;
+            expect(expected.equals(body), "response " + r + " framed " + body + ", reader got " + expected);
+            expect(result.persistent == req.isPersistent(),
+                    "response " + r + " persistent " + result.persistent + ", reader " + req.isPersistent());
+        }
+
+        String[] malformed = {
+                "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n",
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n",
+                "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n" + frame,
+                "HTTP/1.1 200 OK\r\nContent-Length: many\r\n\r\n",
+                "HTTP/",
+        };
+        for (String text : malformed) {
+            byte[] buf = text.getBytes();
+            int status = HttpFramer.frame(buf, buf.length, true, result);
+            expect(status == HttpFramer.MALFORMED, "'" + text.replace("\r\n", " ") + "' gave " + status);
+        }
+
+        // endpoints with own ports, persistent ones must keep single connection
+        int endpoints = 6;
+        Stub[] stubs = new Stub[endpoints];
+        String[] hosts = new String[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            String reading = "<p>B=" + i + " T=" + i + ".5C</p>";
+            String response = i % 3 == 2 ? reading :
+                    "HTTP/1.1 200 OK\r\nContent-Length: " + reading.length() + "\r\n\r\n" + reading;
+            String[] script = new String[1000];
+            Arrays.fill(script, response);
+            stubs[i] = new Stub(script);
+            hosts[i] = "127.0.0.1:" + stubs[i].address().getPort();
+        }
+
+        int threads = Thread.activeCount();
+        final int[] exceptions = new int[1];
+        MultiComLink link = new MultiComLink(new ComLink.ComLinkObserver() {
+            @Override
+            public void onException(int code) {
+                exceptions[0]++;
+            }
+
+            @Override
+            public void onReconnect() {
+            }
+        }, hosts, 80, true, 20);
+
+        int[] readings = new int[endpoints];
+        int wrong = 0;
+        PortDriver.DataItem[] items = new PortDriver.DataItem[64];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new PortDriver.DataItem();
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            int n = link.receive(items, deadline - System.currentTimeMillis());
+            for (int i = 0; i < n; i++) {
+                if (!"T".equals(items[i].key))
+                    continue;
+                readings[items[i].endpoint]++;
+                if (items[i].value != items[i].endpoint + 0.5)
+                    wrong++;
+            }
+            int served = 0;
+            for (int count : readings) {
+                if (count >= 5)
+                    served++;
+            }
+            if (served == endpoints)
+                break;
+        }
+        int added = Thread.activeCount() - threads;
+        link.destroy();
+
+        int min = Integer.MAX_VALUE;
+        for (int count : readings) {
+            min = Math.min(min, count);
+        }
+        expect(min >= 5 && wrong == 0, "readings per endpoint " + Arrays.toString(readings) + ", wrong " + wrong);
+        expect(added == 1 && exceptions[0] == 0, "link added " + added + " threads, " + exceptions[0] + " exceptions");
+        for (int i = 0; i < endpoints; i++) {
+            boolean legacy = i % 3 == 2;
+            expect(legacy ? stubs[i].accepted >= 5 : stubs[i].accepted == 1,
+                    "endpoint " + i + " took " + stubs[i].accepted + " connections");
+        }
+    }
+
+    /* user-004: one selector thread serves any number of endpoints, bad host
+     * specs are refused up front and a name that does not resolve only fails
+     * its own endpoint */
+    private static void multiComLink() throws Exception {
+
+        ComLink.ComLinkObserver observer = new ComLink.ComLinkObserver() {
+            @Override
+            public void onException(int code) {
+            }
+
+            @Override
+            public void onReconnect() {
+            }
+        };
+        String reading = "<p>T=1.5C</p>";
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: " + reading.length() + "\r\n\r\n" + reading;
+
+        for (int endpoints = 1; endpoints <= 256; endpoints *= 4) {
+            Stub[] stubs = new Stub[endpoints];
+            String[] hosts = new String[endpoints + 1];
+            for (int i = 0; i < endpoints; i++) {
+                // long scripts keep every stand-in thread alive while threads are counted
+                String[] script = new String[1000];
+                Arrays.fill(script, response);
+                stubs[i] = new Stub(script);
+                hosts[i] = "127.0.0.1:" + stubs[i].address().getPort();
+            }
+            hosts[endpoints] = "no-such-host.invalid";
+
+            // threads left by earlier checks may end meanwhile, so count new ones only
+            Set<Thread> threads = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+            MultiComLink link = new MultiComLink(observer, hosts, 80, true, 50);
+
+            boolean[] served = new boolean[endpoints + 1];
+            int count = 0;
+            PortDriver.DataItem[] items = new PortDriver.DataItem[64];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = new PortDriver.DataItem();
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (count < endpoints && System.currentTimeMillis() < deadline) {
+                int n = link.receive(items, deadline - System.currentTimeMillis());
+                for (int i = 0; i < n; i++) {
+                    if (!served[items[i].endpoint]) {
+                        served[items[i].endpoint] = true;
+                        count++;
+                    }
+                }
+            }
+            Set<Thread> added = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+            added.removeAll(threads);
+            link.destroy();
+            for (Stub stub : stubs) {
+                stub.close();
+            }
+
+            expect(count == endpoints && !served[endpoints], endpoints + " endpoints, " + count + " served");
+            expect(added.size() == 1, endpoints + " endpoints added " + added.size() + " threads");
+        }
+
+        String[] bad = { "127.0.0.1:abc", "127.0.0.1:0", "127.0.0.1:70000", ":80" };
+        for (String host : bad) {
+            boolean refused = false;
+            try {
+                new MultiComLink(observer, new String[] { "127.0.0.1", host }, 80, true).destroy();
+            } catch (IllegalArgumentException e) {
+                refused = e.getMessage().contains(host);
+            }
+            expect(refused, "host '" + host + "' accepted");
+        }
+    }
+
+    /* user-005: every overflow and wait policy under a racing producer, samples
+     * arrive in order and untorn, nothing is lost beyond counted drops, and
+     * overlapping consumers are refused */
+    private static void sampleRing() throws Exception {
+
+        String[] overflows = { "drop oldest", "drop newest", "block" };
+        String[] waits = { "spin", "yield", "park" };
+
+        for (int overflow = 0; overflow < overflows.length; overflow++) {
+            for (int wait = 0; wait < waits.length; wait++) {
+                // spinning sides may share one core, that costs a time slice per hand-off
+                final int samples = wait == SampleRing.WAIT_SPIN ? 5000 : 200000;
+                final SampleRing ring = new SampleRing(64, wait, overflow);
+                Thread producer = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < samples; i++) {
+                            ring.offer('A' + i % 26, i, i, i & 7);
+                        }
+                        ring.close();
+                    }
+                };
+                producer.start();
+
+                PortDriver.DataItem[] items = new PortDriver.DataItem[16];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = new PortDriver.DataItem();
+                }
+                long received = 0;
+                long last = -1;
+                int torn = 0;
+                int unordered = 0;
+                int gaps = 0;
+                for (int round = 0; ; round++) {
+                    // consumer mixes every read call
+                    int n;
+                    if (round % 3 == 0) {
+                        n = ring.drain(items, TIMEOUT);
+                    } else if (round % 3 == 1) {
+                        n = ring.take(items[0], TIMEOUT) ? 1 : 0;
+                    } else {
+                        n = ring.poll(items[0]) ? 1 : 0;
+                        if (n == 0 && !producer.isAlive() && ring.isEmpty())
+                            break;
+                    }
+                    if (n == 0 && round % 3 != 2)
+                        break;
+
+                    for (int i = 0; i < n; i++) {
+                        PortDriver.DataItem item = items[i];
+                        long seq = item.timestamp;
+                        if (item.value != seq || item.endpoint != (seq & 7) || item.keyId != 'A' + seq % 26 ||
+                                !FrameDecoder.keyName(item.keyId).equals(item.key))
+                            torn++;
+                        if (seq <= last)
+                            unordered++;
+                        else if (seq != last + 1)
+                            gaps++;
+                        last = seq;
+                        received++;
+                    }
+                }
+                producer.join();
+
+                String what = overflows[overflow] + "/" + waits[wait];
+                expect(torn == 0 && unordered == 0, what + " torn " + torn + " unordered " + unordered);
+                expect(received + ring.getDropped() == samples,
+                        what + " received " + received + " dropped " + ring.getDropped() + " of " + samples);
+                if (overflow == SampleRing.OVERFLOW_BLOCK)
+                    expect(gaps == 0 && ring.getDropped() == 0, what + " lost samples, gaps " + gaps);
+            }
+        }
+
+        // frames are published at once, in order and whole when producer blocks
+        final SampleRing ring = new SampleRing(16, SampleRing.WAIT_PARK, SampleRing.OVERFLOW_BLOCK);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                FrameDecoder.Frame frame = new FrameDecoder.Frame();
+                byte[] data = "B=1 R=2 E=3 T=4 H=5".getBytes();
+                for (int i = 0; i < 10000; i++) {
+                    FrameDecoder.decode(data, 0, data.length, frame);
+                    ring.offer(frame, i, 0);
+                }
+                ring.close();
+            }
+        };
+        producer.start();
+        PortDriver.DataItem item = new PortDriver.DataItem();
+        int received = 0;
+        int wrong = 0;
+        while (ring.take(item)) {
+            if (item.value != received % 5 + 1 || item.timestamp != received / 5)
+                wrong++;
+            received++;
+        }
+        producer.join();
+        expect(received == 50000 && wrong == 0, "frames gave " + received + " values, " + wrong + " out of place");
+
+        // overflow drops whole frames, consumer never sees a frame cut at either end
+        // and every drain ends on frame boundary
+        for (int overflow = 0; overflow < overflows.length; overflow++) {
+            final SampleRing frames = new SampleRing(16, SampleRing.WAIT_PARK, overflow);
+            producer = new Thread() {
+                @Override
+                public void run() {
+                    FrameDecoder.Frame frame = new FrameDecoder.Frame();
+                    for (int i = 0; i < 20000; i++) {
+                        frame.count = i % 5 + 1;
+                        for (int n = 0; n < frame.count; n++) {
+                            frame.keys[n] = (char) ('A' + n);
+                            frame.values[n] = n;
+                        }
+                        frames.offer(frame, i, 0);
+                    }
+                    frames.close();
+                }
+            };
+            producer.start();
+            PortDriver.DataItem[] items = new PortDriver.DataItem[7];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = new PortDriver.DataItem();
+            }
+            long values = 0;
+            long current = -1;
+            int next = 0;
+            int cut = 0;
+            int split = 0;
+            int n;
+            while ((n = frames.drain(items, TIMEOUT)) > 0) {
+                if (items[n - 1].value != items[n - 1].timestamp % 5)
+                    split++;
+                for (int i = 0; i < n; i++) {
+                    if (items[i].timestamp != current) {
+                        if (current >= 0 && next != current % 5 + 1)
+                            cut++;
+                        current = items[i].timestamp;
+                        next = 0;
+                    }
+                    if (items[i].value != next++)
+                        cut++;
+                    values++;
+                }
+            }
+            if (current >= 0 && next != current % 5 + 1)
+                cut++;
+            producer.join();
+            expect(cut == 0 && split == 0 && values + frames.getDropped() == 60000,
+                    overflows[overflow] + " frames cut " + cut + ", split by drain " + split + ", values " + values + " dropped " + frames.getDropped());
+        }
+
+        expect(new SampleRing(100, SampleRing.WAIT_PARK, SampleRing.OVERFLOW_BLOCK).capacity() == 128,
+                "capacity not rounded to power of two");
+
+        SampleRing empty = new SampleRing();
+        long start = System.currentTimeMillis();
+        boolean got = empty.take(item, 100);
+        long waited = System.currentTimeMillis() - start;
+        expect(!got && waited >= 90 && waited < TIMEOUT, "empty ring take waited " + waited + " ms, got " + got);
+
+        // pooled consumers must not overlap on one ring
+        final SampleRing shared = new SampleRing();
+        Thread reader = new Thread("Reader") {
+            @Override
+            public void run() {
+                shared.take(new PortDriver.DataItem());
+            }
+        };
+        reader.start();
+        while (reader.getState() != Thread.State.WAITING)
+            Thread.yield();
+        String refused = null;
+        try {
+            shared.poll(new PortDriver.DataItem());
+        } catch (IllegalStateException e) {
+            refused = e.getMessage();
+        }
+        shared.close();
+        reader.join();
+        expect(refused != null && refused.contains("Reader"), "second consumer not refused");
+
+        shared.offer('T', 1.0, 1, 0);
+        expect(shared.poll(item) && item.value == 1.0, "consumer not released after take");
+    }
+
+    private static String pushed(int first, int count) {
+
+        StringBuilder frames = new StringBuilder();
+        for (int i = first; i < first + count; i++) {
+            frames.append("<p>B=").append(i).append(" R=").append(i).append(" E=0 T=").append(i)
+                    .append(".0C H=50.0% </p>\n");
+            frames.append(i % 2 == 0 ? "\r\n" : "");  // keep-alive blank lines
+        }
+        return frames.toString();
+    }
+
+    /* user-008: negotiated stream delivers pushed frames, silent or lost stream is
+     * detected and renegotiated, failed negotiation falls back to polls */
+    private static void stream() throws Exception {
+
+        String accepted = "HTTP/1.1 200 OK\r\nX-Stream: frames\r\n";
+        String close = "Connection: close\r\n\r\n";
+        String frame = "<p>B=1 R=1 E=0 T=1.0C H=50.0% </p>";
+
+        // requestor level, frames one by one until device closes
+        Stub stub = new Stub(accepted + close + pushed(1, 3));
+        SocketChannel channel = SocketChannel.open(stub.address());
+        channel.configureBlocking(false);
+        SimpleHttpReq req = new SimpleHttpReq("node", true);
+        req.attach(channel);
+        expect(req.openStream(), "stream not negotiated");
+        for (int i = 1; i <= 3; i++) {
+            String body = body(req, req.readFrame(TIMEOUT));
+            expect(body.equals(pushed(i, 1).trim()), "frame " + i + " read as " + body);
+        }
+        String reason = null;
+        try {
+            req.readFrame(TIMEOUT);
+        } catch (SimpleHttpReq.SimpleHttpReqException e) {
+            reason = e.getReason();
+        }
+        expect("EEOF".equals(reason), "closed stream gave " + reason);
+        expect(stub.requests.size() == 1 && stub.requests.get(0).equals("GET " + SimpleHttpReq.STREAM_PATH + " HTTP/1.1"),
+                "stream requests " + stub.requests);
+        req.close();
+        channel.close();
+
+        // device without push answers like to a poll, silent stream times out
+        stub = new Stub("HTTP/1.1 200 OK\r\nContent-Length: " + frame.length() + "\r\n\r\n" + frame, accepted + "\r\n");
+        channel = SocketChannel.open(stub.address());
+        channel.configureBlocking(false);
+        req = new SimpleHttpReq("node", true);
+        req.attach(channel);
+        boolean streamed = req.openStream();
+        expect(!streamed && frame.equals(body(req, req.getLength())) && req.isPersistent(),
+                "plain answer streamed " + streamed + ", body " + body(req, req.getLength()));
+        expect(req.openStream(), "second negotiation failed");
+        reason = null;
+        long start = System.currentTimeMillis();
+        try {
+            req.readFrame(100);
+        } catch (SimpleHttpReq.SimpleHttpReqException e) {
+            reason = e.getReason();
+        }
+        long waited = System.currentTimeMillis() - start;
+        expect("ETIMEOUT".equals(reason) && waited >= 90 && waited < TIMEOUT,
+                "silent stream gave " + reason + " after " + waited + " ms");
+        req.close();
+        channel.close();
+
+        // link level, lost stream is negotiated again on fresh connection
+        stub = new Stub(accepted + close + pushed(1, 3), accepted + close + pushed(4, 2), accepted + "\r\n");
+        Redial redial = new Redial(stub);
+        ComLink link = redial.open(true);
+        List<PortDriver.DataItem> items = collect(link, 25);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!(stub.requests.size() == 3 && link.isStreaming()) && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        boolean streaming = link.isStreaming();
+        link.destroy();
+
+        double expected = 1;
+        int wrong = 0;
+        for (PortDriver.DataItem item : items) {
+            if ("T".equals(item.key) && item.value != expected++)
+                wrong++;
+        }
+        expect(items.size() == 25 && wrong == 0, "link delivered " + items.size() + " values, " + wrong + " out of order");
+        expect(streaming && redial.exceptions == 0, "link streaming " + streaming + " exceptions " + redial.exceptions);
+        expect(stub.accepted == 3 && stub.requests.size() == 3 &&
+                        stub.requests.get(2).startsWith("GET " + SimpleHttpReq.STREAM_PATH),
+                "link took " + stub.accepted + " connections for " + stub.requests);
+
+        // device without push support answers stream request with error, link polls instead
+        frame = "<p>B=7 R=7 E=0 T=1.5C H=2.5% </p>";
+        String sized = "HTTP/1.1 200 OK\r\nContent-Length: " + frame.length() + "\r\n\r\n" + frame;
+        stub = new Stub("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n",
+                sized, sized, sized);
+        redial = new Redial(stub);
+        link = redial.open(true);
+        items = collect(link, 15);
+        streaming = link.isStreaming();
+        link.destroy();
+
+        expect(items.size() == 15 && items.get(13).value == 1.5, "fallback polls delivered " + items.size() + " values");
+        expect(!streaming && redial.exceptions == 0, "fallback streaming " + streaming + " exceptions " + redial.exceptions);
+        expect(stub.accepted == 2 && stub.requests.get(0).startsWith("GET " + SimpleHttpReq.STREAM_PATH),
+                "fallback took " + stub.accepted + " connections for " + stub.requests);
+    }
+
+    /* Callback events as text, so parsers fed by different paths can be compared */
+    private static final class Recorder implements DataParser.IDataCallback {
+
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void onTemperatureChanged(double oldTemperature, double newTemperature) {
+            events.add("T " + oldTemperature + " " + newTemperature);
+        }
+
+        @Override
+        public void onHumidityChanged(double oldHumidity, double newHumidity) {
+            events.add("H " + oldHumidity + " " + newHumidity);
+        }
+
+        @Override
+        public void onBootTimeChanged(double newTime) {
+            events.add("B " + newTime);
+        }
+
+        @Override
+        public void onReadTimeChanged(double newTime) {
+            events.add("R " + newTime);
+        }
+
+        @Override
+        public void onDebug(String msg) {
+        }
+
+        @Override
+        public void onError(String msg) {
+            events.add("error " + msg);
+        }
+    }
+
+    /* user-010: decoded frames reach parser callbacks through ring and batch
+     * exactly as through the former JSON hand-off */
+    private static void typedPath() throws Exception {
+
+        SampleRing ring = new SampleRing(2048, SampleRing.WAIT_PARK, SampleRing.OVERFLOW_BLOCK);
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        Random random = new Random(10);
+        int frames = 200;
+        for (int f = 0; f < frames; f++) {
+            // two endpoints of one device, every third frame repeats a reading
+            double temperature = f % 3 == 0 ? 20.0 : Math.round(random.nextGaussian() * 50) / 10.0 + 20;
+            byte[] data = ("<p>B=" + f * 2 + " R=" + f * 2 + " E=0 T=" + temperature + "C H=" +
+                    (40 + f % 7) + ".5% X=" + f + "</p>").getBytes();
+            FrameDecoder.decode(data, 0, data.length, frame);
+            ring.offer(frame, 1000L + f, f % 2);
+        }
+
+        PortDriver.DataItem[] items = new PortDriver.DataItem[frames * 6];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new PortDriver.DataItem();
+        }
+        int count = 0;
+        int n;
+        while ((n = ring.drain(Arrays.copyOfRange(items, count, items.length), 0)) > 0)
+            count += n;
+        SampleBatch batch = new SampleBatch(items, count, 1);
+
+        int wrong = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            int f = i / 6;
+            if (batch.getKey(i) != items[i].keyId || batch.getValue(i) != items[i].value ||
+                    batch.getTimestamp(i) != 1000L + f || batch.getEndpoint(i) != f % 2 || batch.getDevice(i) != 1)
+                wrong++;
+        }
+        expect(count == frames * 6 && wrong == 0, "batch of " + count + " samples, " + wrong + " differ from ring");
+
+        int last = batch.indexOf('T', 1, 1);
+        expect(last == (frames - 1) * 6 + 3 && batch.indexOf('T', 2, 1) < 0 && batch.indexOf('T', 1, 0) < 0,
+                "latest T of endpoint 1 at " + last);
+
+        // same samples encoded the old way, source taken from first one
+        Recorder typed = new Recorder();
+        DataParser parser = new DataParser();
+        parser.setCallback(typed);
+        parser.exec(batch);
+
+        Recorder json = new Recorder();
+        DataParser legacy = new DataParser();
+        legacy.setCallback(json);
+        for (int i = 0; i < batch.size(); i++) {
+            legacy.exec("{\"KEY\":\"" + FrameDecoder.keyName(batch.getKey(i)) + "\",\"VALUE\":" + batch.getValue(i) +
+                    ",\"ENDPOINT\":" + batch.getEndpoint(i) + ",\"DEVICE\":" + batch.getDevice(i) + "}");
+        }
+
+        expect(parser.getEndpoint() == 0 && parser.getDevice() == 1,
+                "parser source " + parser.getEndpoint() + "/" + parser.getDevice());
+        expect(typed.events.size() > frames / 2 && typed.events.equals(json.events),
+                "typed path gave " + typed.events.size() + " events, JSON path " + json.events.size());
+
+        // conflated batch keeps latest sample of every source, in arrival order
+        SampleBatch older = batch;
+        SampleBatch newer = new SampleBatch(Arrays.copyOf(items, 6), 6, 2);
+        SampleBatch latest = SampleBatch.conflate(older, newer);
+        expect(latest.size() == 18, "conflated to " + latest.size() + " samples");
+        for (int i = 0; i < latest.size(); i++) {
+            int device = latest.getDevice(i);
+            int endpoint = latest.getEndpoint(i);
+            SampleBatch source = device == 2 ? newer : older;
+            int index = source.indexOf(latest.getKey(i), endpoint, device);
+            if (index < 0 || source.getValue(index) != latest.getValue(i) ||
+                    source.getTimestamp(index) != latest.getTimestamp(i))
+                wrong++;
+        }
+        expect(wrong == 0, wrong + " conflated samples are not latest of their source");
+    }
+
+    /* user-015: fed entries stay quiet, starved ones fire once near their deadline,
+     * also when deadline is more than one revolution away */
+    private static void watchdogWheel() throws Exception {
+
+        long tick = 10;
+        WatchdogWheel wheel = new WatchdogWheel(tick, 16);  // revolution of 160 ms
+        wheel.start();
+
+        int entries = 200;
+        final AtomicIntegerArray fired = new AtomicIntegerArray(entries);
+        final AtomicLongArray firedAt = new AtomicLongArray(entries);
+        long[] timeouts = new long[entries];
+        WatchdogWheel.Entry[] watched = new WatchdogWheel.Entry[entries];
+        for (int i = 0; i < entries; i++) {
+            final int index = i;
+            timeouts[i] = 50 + (i % 6) * 50;  // up to 300 ms, almost two revolutions
+            watched[i] = wheel.register(timeouts[i], new Runnable() {
+                @Override
+                public void run() {
+                    firedAt.compareAndSet(index, 0, System.currentTimeMillis());
+                    fired.incrementAndGet(index);
+                    if (index == 0)
+                        throw new IllegalStateException("failing action must not stop the wheel");
+                }
+            });
+        }
+
+        // first half starves after one feed, quarter is fed, last quarter disarmed
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < entries; i++) {
+            watched[i].feed();
+        }
+        for (int i = entries * 3 / 4; i < entries; i++) {
+            watched[i].disarm();
+        }
+        while (System.currentTimeMillis() - start < 600) {
+            for (int i = entries / 2; i < entries * 3 / 4; i++) {
+                watched[i].feed();
+            }
+            Thread.sleep(tick * 2);
+        }
+
+        int early = 0;
+        int late = 0;
+        int wrong = 0;
+        for (int i = 0; i < entries; i++) {
+            boolean starved = i < entries / 2;
+            if (fired.get(i) != (starved ? 1 : 0)) {
+                wrong++;
+            } else if (starved) {
+                long after = firedAt.get(i) - start;
+                if (after < timeouts[i] - 2 * tick)  // feed takes coarse time, deadline rounds down
+                    early++;
+                if (after > timeouts[i] + 4 * tick + 100)  // scheduler slack of busy single core
+                    late++;
+            }
+        }
+        expect(wrong == 0, wrong + " entries fired wrong number of times");
+        expect(early == 0 && late == 0, early + " entries fired early, " + late + " late");
+
+        // fired entry is disarmed, next feed watches it again
+        expect(!watched[1].isArmed(), "fired entry still armed");
+        watched[1].feed();
+        Thread.sleep(timeouts[1] + 10 * tick);
+        expect(fired.get(1) == 2, "refed entry fired " + fired.get(1) + " times");
+
+        wheel.stop();
+    }
+
+    /* user-023: blocks decode bit exact, archive reopened after torn write keeps
+     * a prefix of every series and log recovery restores the rest */
+    private static void seriesCodec() throws Exception {
+
+        try {
+            long samples = Bench.codecFuzz(2000);
+            expect(samples > 100000, "fuzz checked only " + samples + " samples");
+        } catch (IllegalStateException e) {
+            expect(false, e.getMessage());
+        }
+
+        SeriesCodec.Encoder encoder = new SeriesCodec(SeriesCodec.CODEC_XOR, 0, 1).encoder();
+        for (int i = 0; i < 100; i++) {
+            encoder.append(i * 2000L, i);
+        }
+        SeriesCodec.Cursor cursor = encoder.seal().cursor();
+        expect(cursor.seek(3000) && cursor.getTime() == 4000 && cursor.getValue() == 2, "seek landed on " + cursor.getTime());
+        expect(cursor.seek(4000) && cursor.getTime() == 4000, "seek to current sample moved on");
+        expect(!cursor.seek(200000), "seek past last sample found " + cursor.getTime());
+
+        File dir = File.createTempFile("checks", "");
+        if (!dir.delete())
+            throw new IOException("Cannot replace " + dir);
+        File logDir = new File(dir, "log");
+        File file = new File(dir, "archive");
+        Bench.clear(logDir);
+
+        SampleBatch[] batches = Bench.am2302(1, 1451606400000L);
+        SampleLog log = new SampleLog(logDir);
+        log.open();
+        SeriesArchive archive = new SeriesArchive(SensorSchema.getDefault(), file, 1000);
+        archive.open();
+        for (int i = 0; i < 10000; i++) {
+            archive.add(batches[i]);
+            while (!log.append(batches[i]))
+                Thread.yield();
+        }
+        log.close();
+        archive.close();
+
+        // crash in the middle of sealing a block
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 7);
+        raf.close();
+
+        SeriesArchive reopened = new SeriesArchive(SensorSchema.getDefault(), file, 1000);
+        reopened.open();
+        long lost = 0;
+        for (SeriesArchive.Series series : archive.getSeries()) {
+            long size = reopened.get(series.key).size();
+            expect(size > 0 && compare(series, reopened.get(series.key)) == size,
+                    (char) series.key + " reopened with " + size + " samples not a prefix of original");
+            lost += series.size() - size;
+        }
+        expect(lost > 0, "torn block not dropped");
+
+        reopened.recover(log);
+        for (SeriesArchive.Series series : archive.getSeries()) {
+            SeriesArchive.Series recovered = reopened.get(series.key);
+            expect(recovered.size() == series.size() && compare(series, recovered) == series.size(),
+                    (char) series.key + " recovered " + recovered.size() + " of " + series.size() + " samples");
+        }
+        reopened.close();
+
+        Bench.clear(logDir);
+        Bench.clear(dir);
+        if (!dir.delete())
+            throw new IOException("Cannot delete " + dir);
+    }
+
+    /* Length of common prefix of two series */
+    private static long compare(SeriesArchive.Series expected, SeriesArchive.Series actual) {
+
+        SeriesArchive.Cursor a = expected.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        SeriesArchive.Cursor b = actual.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        long same = 0;
+        while (a.next() && b.next() && a.getTime() == b.getTime() &&
+                Double.doubleToRawLongBits(a.getValue()) == Double.doubleToRawLongBits(b.getValue()))
+            same++;
+        return same;
+    }
+
+    /* Textbook LTTB over equal time buckets of inner samples, indices of kept samples */
+    private static List<Integer> lttb(long[] times, double[] values, List<Integer> range, long from, long to,
+                                      int points) {
+
+        List<Integer> kept = new ArrayList<Integer>();
+        if (range.isEmpty())
+            return kept;
+
+        int first = range.get(0);
+        int last = range.get(range.size() - 1);
+        int buckets = points - 2;
+        double width = (double) (to - from) / buckets;
+
+        List<List<Integer>> filled = new ArrayList<List<Integer>>();
+        List<Integer> bucket = null;
+        int current = -1;
+        for (int k = 1; k < range.size() - 1; k++) {
+            int i = range.get(k);
+            int b = (int) Math.min(buckets - 1, (times[i] - from) / width);
+            if (b != current) {
+                bucket = new ArrayList<Integer>();
+                filled.add(bucket);
+                current = b;
+            }
+            bucket.add(i);
+        }
+
+        kept.add(first);
+        int previous = first;
+        for (int b = 0; b < filled.size(); b++) {
+            double nextTime = times[last] - from;
+            double nextValue = values[last];
+            if (b + 1 < filled.size()) {
+                nextTime = 0;
+                nextValue = 0;
+                for (int i : filled.get(b + 1)) {
+                    nextTime += times[i] - from;
+                    nextValue += values[i];
+                }
+                nextTime /= filled.get(b + 1).size();
+                nextValue /= filled.get(b + 1).size();
+            }
+
+            int best = -1;
+            double bestArea = -1;
+            for (int i : filled.get(b)) {
+                double area = Math.abs((times[previous] - from - nextTime) * (values[i] - values[previous]) -
+                        (times[previous] - times[i]) * (nextValue - values[previous]));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            kept.add(best);
+            previous = best;
+        }
+
+        if (range.size() > 1)
+            kept.add(last);
+        return kept;
+    }
+
+    /* user-025: LTTB and envelopes match brute force on raw samples, rollups
+     * covering only recent days are completed from raw samples of one series */
+    private static void historyQuery() {
+
+        Random random = new Random(5);
+        int wrongLttb = 0;
+        int wrongEnvelope = 0;
+        for (int round = 0; round < 100; round++) {
+            SeriesArchive archive = new SeriesArchive(SensorSchema.getDefault(), null, 1000);
+            archive.setCodec('T', new SeriesCodec(SeriesCodec.CODEC_XOR, 0));
+
+            // irregular times with gaps, noisy values with spikes
+            int count = 1 + random.nextInt(round % 10 == 0 ? 20000 : 2000);
+            long[] times = new long[count];
+            double[] values = new double[count];
+            long time = 1000000 + random.nextInt(1000);
+            double value = 20;
+            for (int i = 0; i < count; i++) {
+                time += 1 + random.nextInt(random.nextInt(20) == 0 ? 50000 : 3000);
+                value += random.nextGaussian() * (random.nextInt(100) == 0 ? 20 : 0.3);
+                times[i] = time;
+                values[i] = value;
+                archive.add('T', 0, 0, time, value);
+            }
+
+            long from = random.nextBoolean() ? times[count / 3] : times[0] - random.nextInt(5000);
+            long to = times[count - 1] + 1 + random.nextInt(5000);
+            int points = HistoryQuery.MIN_POINTS + random.nextInt(600);
+            List<Integer> range = new ArrayList<Integer>();
+            for (int i = 0; i < count; i++) {
+                if (times[i] >= from && times[i] < to)
+                    range.add(i);
+            }
+
+            HistoryQuery query = new HistoryQuery(archive, null);
+            HistoryQuery.Series series = query.lttb('T', 0, 0, from, to, points);
+            List<Integer> kept = lttb(times, values, range, from, to, points);
+            boolean same = series.size == kept.size() && series.size <= points;
+            for (int i = 0; same && i < series.size; i++) {
+                same = series.getTime(i) == times[kept.get(i)] && series.getValue(i) == values[kept.get(i)];
+            }
+            if (!same)
+                wrongLttb++;
+
+            HistoryQuery.Series envelope = query.envelope(new int[] { 'T' }, 0, 0, from, to, points)[0];
+            long width = (to - from + points - 1) / points;
+            for (int column = 0; column < points; column++) {
+                double min = Double.NaN;
+                double max = Double.NaN;
+                double sum = 0;
+                int n = 0;
+                for (int i : range) {
+                    if (Math.min(points - 1, (times[i] - from) / width) != column)
+                        continue;
+                    min = n == 0 ? values[i] : Math.min(min, values[i]);
+                    max = n == 0 ? values[i] : Math.max(max, values[i]);
+                    sum += values[i];
+                    n++;
+                }
+                boolean match = n == 0 ? Double.isNaN(envelope.getValue(column)) :
+                        min == envelope.getMin(column) && max == envelope.getMax(column) &&
+                                Math.abs(sum / n - envelope.getValue(column)) < 1e-9;
+                if (!match) {
+                    wrongEnvelope++;
+                    break;
+                }
+            }
+        }
+        expect(wrongLttb == 0, wrongLttb + " of 100 LTTB queries differ from reference");
+        expect(wrongEnvelope == 0, wrongEnvelope + " of 100 envelopes differ from brute force");
+
+        // two devices, rollups fed for last 3 of 10 days only
+        long day = 24 * 3600 * 1000L;
+        long start = 1451606400000L;
+        long end = start + 10 * day;
+        long fed = end - 3 * day;
+        SeriesArchive archive = new SeriesArchive(SensorSchema.getDefault());
+        Rollups rollups = new Rollups(SensorSchema.getDefault());
+        for (long t = start; t < end; t += 2000) {
+            for (int device = 0; device < 2; device++) {
+                double reading = (device == 0 ? 50 : 10) + random.nextDouble() * 10;
+                archive.add('T', 0, device, t, reading);
+                if (t >= fed)
+                    rollups.add('T', 0, device, t, reading);
+            }
+        }
+
+        int points = 1000;
+        HistoryQuery merged = new HistoryQuery(archive, rollups);
+        HistoryQuery raw = new HistoryQuery(archive, null);
+        HistoryQuery.Series envelope = merged.envelope(new int[] { 'T' }, 0, 1, start, end, points)[0];
+        HistoryQuery.Series reference = raw.envelope(new int[] { 'T' }, 0, 1, start, end, points)[0];
+        long oldest = rollups.getOldest('T', 0, 1, envelope.source);
+        long width = (end - start + points - 1) / points;
+        int holes = 0;
+        int leaked = 0;
+        int differ = 0;
+        for (int column = 0; column < points; column++) {
+            if (Double.isNaN(envelope.getValue(column)))
+                holes++;
+            else if (envelope.getMin(column) < 10 || envelope.getMax(column) > 20)
+                leaked++;
+            if (envelope.getTime(column) + width <= oldest && (envelope.getMin(column) != reference.getMin(column) ||
+                    envelope.getMax(column) != reference.getMax(column) ||
+                    envelope.getValue(column) != reference.getValue(column)))
+                differ++;
+        }
+        expect(envelope.source != Rollups.TIER_RAW && oldest >= fed && oldest < end,
+                "merged query source " + envelope.source + ", oldest bucket " + (oldest - start) + " ms from start");
+        expect(holes == 0 && leaked == 0, holes + " empty columns, " + leaked + " with other device values");
+        expect(differ == 0, differ + " raw columns differ from raw only query");
+
+        HistoryQuery.Series line = merged.lttb('T', 0, 1, start, end, points);
+        int unordered = 0;
+        for (int i = 1; i < line.size; i++) {
+            if (line.getTime(i) <= line.getTime(i - 1) || line.getValue(i) < 10 || line.getValue(i) > 20)
+                unordered++;
+        }
+        expect(line.size == points && line.getTime(0) < fed && unordered == 0,
+                "merged LTTB of " + line.size + " points, " + unordered + " out of order or foreign");
+        expect(merged.lttb('H', 0, 1, start, end, points).source == Rollups.TIER_RAW, "series without rollups not raw");
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/* Stand-in device on loopback. Answers each request with next scripted
+ * response, connection is closed after a response that does not keep it
+ * alive. When script ends, last connection is left open and silent. */
+final class Stub implements Runnable {
+
+    final ServerSocket server;
+    final String[] script;
+    final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    volatile int accepted = 0;
+
+    Stub(String... script) throws IOException {
+        this.server = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        this.script = script;
+
+        Thread thread = new Thread(this, "Stub");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    InetSocketAddress address() {
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+
+    void close() throws IOException {
+        server.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            int next = 0;
+            while (next < script.length) {
+                Socket socket = server.accept();
+                accepted++;
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+
+                while (next < script.length) {
+                    String request = readLine(in);
+                    if (request == null)
+                        break;
+                    // HTTP/1.0 requests of legacy mode carry no header block
+                    if (request.endsWith("HTTP/1.1")) {
+                        String line;
+                        while ((line = readLine(in)) != null && line.length() > 0)
+                            ;
+                    }
+                    requests.add(request);
+
+                    String response = script[next++];
+                    out.write(response.getBytes());
+                    out.flush();
+                    if (!response.startsWith("HTTP/1.1") || response.contains("Connection: close")) {
+                        socket.close();
+                        break;
+                    }
+                }
+            }
+            server.close();
+        } catch (IOException e) {
+            // link gave up, checks see the outcome
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Decides whether new reading of one sensor is worth change event.
+ * Stages, each off by default:
+ *  - median of last N readings rejects single spikes,
+ *  - deadband (absolute or relative to last reported value) ignores noise,
+ *  - hysteresis widens deadband when value turns back, so it does not flap
+ *    between two neighbouring values,
+ *  - minimum interval between two events.
+ * Not thread safe, one instance per sensor and consumer. */
+public final class ChangeFilter {
+
+    public static final int MAX_MEDIAN = 9;
+
+    private final Config mConfig;
+
+    private final double[] mWindow;
+    private final double[] mSorted;
+    private int mCount = 0;
+    private int mPos = 0;
+
+    private boolean mReported = false;
+    private double mLast = 0.0;  // last reported value
+    private long mLastTime = 0;
+    private int mDirection = 0;  // of last reported change, -1, 0 or 1
+
+    private double mValue = 0.0;
+
+    public static final class Config {
+
+        public double deadband = 0.0;    // absolute, in sensor units
+        public double relative = 0.0;    // fraction of last reported value, eg. 0.01
+        public double hysteresis = 0.0;  // extra band when direction changes
+        public long minInterval = 0;     // ms
+        public int median = 1;           // window, 1 disables
+
+        public Config() {
+        }
+
+        public Config(double deadband, double relative, double hysteresis, long minInterval, int median) {
+            this.deadband = deadband;
+            this.relative = relative;
+            this.hysteresis = hysteresis;
+            this.minInterval = minInterval;
+            this.median = median;
+        }
+
+        /* Deadband as given in settings, "0.2" absolute or "1%" relative */
+        public void setDeadband(String band) {
+
+            band = band.trim();
+            if (band.endsWith("%")) {
+                deadband = 0.0;
+                relative = Double.parseDouble(band.substring(0, band.length() - 1)) / 100.0;
+            } else {
+                deadband = Double.parseDouble(band);
+                relative = 0.0;
+            }
+        }
+
+        public boolean isEnabled() {
+            return deadband > 0 || relative > 0 || hysteresis > 0 || minInterval > 0 || median > 1;
+        }
+    }
+
+    public ChangeFilter(Config config) {
+
+        mConfig = config;
+
+        // odd window, so median is one of readings
+        int window = Math.max(1, Math.min(MAX_MEDIAN, config.median)) | 1;
+        mWindow = new double[window];
+        mSorted = new double[window];
+    }
+
+    /* Feeds reading taken at given time (ms), true when change should be reported */
+    public boolean accept(double value, long time) {
+
+        value = median(value);
+
+        if (!mReported) {
+            return report(value, time, 0);
+        }
+
+        double delta = value - mLast;
+        if (delta == 0.0) {
+            return false;
+        }
+
+        int direction = delta > 0 ? 1 : -1;
+        double band = Math.max(mConfig.deadband, mConfig.relative * Math.abs(mLast));
+        if (mDirection != 0 && direction != mDirection) {
+            band += mConfig.hysteresis;
+        }
+
+        if (Math.abs(delta) < band) {
+            return false;
+        }
+
+        if (mConfig.minInterval > 0 && time - mLastTime < mConfig.minInterval) {
+            return false;
+        }
+
+        return report(value, time, direction);
+    }
+
+    /* Value to report after accept() returned true */
+    public double getValue() {
+        return mValue;
+    }
+
+    public void reset() {
+        mCount = 0;
+        mPos = 0;
+        mReported = false;
+        mDirection = 0;
+    }
+
+    private boolean report(double value, long time, int direction) {
+        mReported = true;
+        mLast = value;
+        mLastTime = time;
+        mDirection = direction;
+        mValue = value;
+        return true;
+    }
+
+    private double median(double value) {
+
+        if (mWindow.length == 1)
+            return value;
+
+        mWindow[mPos] = value;
+        mPos = (mPos + 1) % mWindow.length;
+        if (mCount < mWindow.length)
+            mCount++;
+
+        // insertion sort of few values, no allocation
+        for (int i = 0; i < mCount; i++) {
+            double v = mWindow[i];
+            int j = i - 1;
+            while (j >= 0 && mSorted[j] > v) {
+                mSorted[j + 1] = mSorted[j];
+                j--;
+            }
+            mSorted[j + 1] = v;
+        }
+        return mSorted[mCount / 2];
+    }
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+
+/* This is simple communication link driver that fetches string data from custom device
+ * Only RX path is available */
+public final class ComLink {
+
+    private static final String TAG = "ComLink";
+
+    static final int GET_PERIOD = 5000;
+
+    /* Streaming device pushes every reading, longer silence means broken link */
+    private static final int STREAM_TIMEOUT = 3 * GET_PERIOD;
+
+    private InputStream mInput = null;
+    private OutputStream mOutput = null;
+
+    private SocketChannel mChannel = null;
+    private boolean mChannelMode = false;
+
+    private String mHost = null;
+    private boolean mKeepAlive = false;
+
+    private SimpleHttpReq mRequestor = null;
+
+    private PollScheduler mScheduler = null;
+
+    private boolean mStreaming = false;
+    private volatile boolean mStreamActive = false;  // read by isStreaming() from other threads
+
+    private Thread mPollThread = null;
+
+    private SampleRing mItems = null;
+
+    private ComLinkObserver mObserver = null;
+
+    public interface ComLinkObserver {
+        void onException(int code);
+
+        void onReconnect();
+    }
+
+    public ComLink(ComLinkObserver observer, InputStream input, OutputStream output) {
+        this(observer, input, output, null, false);
+    }
+
+    /* In keep-alive mode the connection is reused across requests and
+     * the observer is asked to reconnect only when the link breaks */
+    public ComLink(ComLinkObserver observer, InputStream input, OutputStream output,
+                   String host, boolean keepAlive) {
+
+        mObserver = observer;
+        mInput = input;
+        mOutput = output;
+        mHost = host;
+        mKeepAlive = keepAlive;
+        mScheduler = new PollScheduler.Fixed(GET_PERIOD);
+
+        mItems = new SampleRing();
+
+        mPollThread = new Thread(new PollThread());
+        mPollThread.start();
+    }
+
+    /* Non-blocking variant, requests wait on selector with a deadline */
+    public ComLink(ComLinkObserver observer, SocketChannel channel, String host, boolean keepAlive) {
+        this(observer, channel, host, keepAlive, new PollScheduler.Fixed(GET_PERIOD));
+    }
+
+    public ComLink(ComLinkObserver observer, SocketChannel channel, String host, boolean keepAlive,
+                   PollScheduler scheduler) {
+        this(observer, channel, host, keepAlive, scheduler, false);
+    }
+
+    /* With streaming set, push mode is negotiated on every connect and
+     * polling driven by scheduler is used when device does not support it */
+    public ComLink(ComLinkObserver observer, SocketChannel channel, String host, boolean keepAlive,
+                   PollScheduler scheduler, boolean streaming) {
+
+        mObserver = observer;
+        mStreaming = streaming;
+        mChannel = channel;
+        mChannelMode = true;
+        mHost = host;
+        mKeepAlive = keepAlive;
+        mScheduler = scheduler;
+
+        mItems = new SampleRing();
+
+        mPollThread = new Thread(new PollThread());
+        mPollThread.start();
+    }
+
+    public void updateIO(InputStream input, OutputStream output) {
+        mInput = input;
+        mOutput = output;
+        mRequestor = null;
+    }
+
+    public void updateChannel(SocketChannel channel) {
+        mChannel = channel;
+    }
+
+    public void destroy() {
+
+        mItems.close();
+
+        try {
+            if (mPollThread != null) {
+                mPollThread.interrupt();
+                mPollThread.join();
+            }
+        } catch (InterruptedException e) {
+        }
+
+        if (mRequestor != null) {
+            mRequestor.close();
+            mRequestor = null;
+        }
+    }
+
+    public boolean receive(PortDriver.DataItem frame) {
+        return mItems.take(frame);
+    }
+
+    public void setListener(Runnable listener) {
+        mItems.setListener(listener);
+    }
+
+    public int receive(PortDriver.DataItem[] items, long timeout) {
+        return mItems.drain(items, timeout);
+    }
+
+    private SimpleHttpReq requestor() throws IOException {
+
+        if (!mChannelMode) {
+            if (mRequestor == null) {
+                mRequestor = new SimpleHttpReq(mOutput, mInput, mHost, mKeepAlive);
+            }
+            return mRequestor;
+        }
+
+        if (mChannel == null) {
+            throw new IOException("Not connected");
+        }
+
+        if (mRequestor == null) {
+            mRequestor = new SimpleHttpReq(mHost, mKeepAlive);
+        }
+
+        if (mRequestor.getChannel() != mChannel) {
+            mRequestor.attach(mChannel);
+        }
+
+        return mRequestor;
+    }
+
+    private int request() throws SimpleHttpReq.SimpleHttpReqException, IOException {
+
+        try {
+            return requestor().fetch();
+        } catch (SimpleHttpReq.SimpleHttpReqException e) {
+            if (!mKeepAlive || Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+
+            // reused connection may have been dropped by device, retry once on fresh one
+            HubLog.w(TAG, "Keep-alive request failed " + e.getReason() + ", reconnecting");
+            mObserver.onReconnect();
+            return requestor().fetch();
+        }
+    }
+
+    public boolean isStreaming() {
+        return mStreamActive;
+    }
+
+    private void deliver(FrameDecoder.Frame frame, byte[] body, int length) {
+
+        long now = System.currentTimeMillis();
+
+        // one frame per line
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && body[end] != '\n')
+                end++;
+
+            if (end > start) {
+                int count = FrameDecoder.decode(body, start, end - start, frame);
+                if (count == FrameDecoder.MALFORMED) {
+                    HubLog.e(TAG, "Malformed frame dropped");
+                }
+
+                if (count > 0) {
+                    long age;
+                    if (mStreamActive) {
+                        // pushed right after reading
+                        age = PollScheduler.lag(frame);
+                    } else {
+                        mScheduler.onFrame(now, frame);
+                        age = mScheduler.getSampleAge(now);
+                    }
+                    HubLog.d(TAG, "RX frame, reading age " + age + " ms");
+                    mItems.offer(frame, now - age, 0);
+                }
+            }
+
+            start = end + 1;
+        }
+    }
+
+    private class PollThread implements Runnable {
+
+        @Override
+        public void run() {
+
+            FrameDecoder.Frame frame = new FrameDecoder.Frame();
+            boolean negotiate = mStreaming;
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                int length;
+                boolean negotiating = negotiate;
+
+                try {
+                    if (negotiate) {
+                        negotiate = false;
+                        mStreamActive = requestor().openStream();
+                        HubLog.i(TAG, mStreamActive ? "Device pushes frames" : "Device does not stream, polling");
+                        length = mRequestor.getLength();
+                    } else if (mStreamActive) {
+                        length = mRequestor.readFrame(STREAM_TIMEOUT);
+                    } else {
+                        length = request();
+                    }
+                } catch (SimpleHttpReq.SimpleHttpReqException e) {
+                    if (Thread.currentThread().isInterrupted())
+                        break;
+                    if (mStreamActive) {
+                        // stream broken, connect again and negotiate from scratch
+                        HubLog.w(TAG, "Stream lost " + e.getReason());
+                        mStreamActive = false;
+                        negotiate = true;
+                        mObserver.onReconnect();
+                        continue;
+                    }
+                    if (negotiating) {
+                        // device may not understand stream request at all, poll it on fresh connection
+                        HubLog.w(TAG, "Stream negotiation failed " + e.getReason() + ", polling");
+                        mObserver.onReconnect();
+                        continue;
+                    }
+                    HubLog.e(TAG, "Http error " + e.getReason());
+                    mObserver.onException(-1);
+                    break;
+                } catch (IOException e) {
+                    HubLog.e(TAG, "Link error " + e.toString());
+                    mObserver.onException(-1);
+                    break;
+                }
+
+                deliver(frame, mRequestor.getBody(), length);
+
+                if (mStreamActive)
+                    continue;
+
+                // reset connection socket unless device keeps it open
+                if (!mRequestor.isPersistent()) {
+                    mObserver.onReconnect();
+                }
+
+                try {
+                    Thread.sleep(mScheduler.nextDelay(System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+            }
+        }
+    }
+}
+
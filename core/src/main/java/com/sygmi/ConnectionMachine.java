@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.IOException;
+import java.util.Random;
+
+/* Drives driver bring-up: radio enabling, association and socket connect.
+ * Every stage has its own timeout, waiting thread sleeps until signal() is
+ * called (e.g. from broadcast receiver) or recheck period passes, so no busy
+ * spinning. Failed attempt is retried after exponential backoff with jitter
+ * and after last attempt the machine gives up, so both time to first sample
+ * and time to failure are bounded.
+ * run() drives the machine on calling thread. A scheduler may drive it
+ * instead with start() and then step() whenever the returned delay passed
+ * or signal() was called, no thread is held in between. */
+public final class ConnectionMachine {
+
+    private static final String TAG = "ConnectionMachine";
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_ENABLING = 1;
+    public static final int STATE_ASSOCIATING = 2;
+    public static final int STATE_CONNECTING = 3;
+    public static final int STATE_CONNECTED = 4;
+    public static final int STATE_BACKOFF = 5;
+    public static final int STATE_FAILED = 6;
+
+    public static final int MAX_ATTEMPTS_DEFAULT = 3;
+
+    private static final long BACKOFF_BASE = 500;
+    private static final long BACKOFF_MAX = 8000;
+    private static final long RECHECK_PERIOD = 250;  // in case signal is missed
+
+    private static final long[] TIMEOUT_DEFAULT = {
+            0,
+            10000,  // ENABLING
+            15000,  // ASSOCIATING
+            5000,   // CONNECTING
+    };
+
+    /* Driver specific part of bring-up */
+    public interface Steps {
+        /* Starts given stage and may do bounded blocking work.
+         * Returns true when stage is already done. */
+        boolean begin(int state, long timeout) throws IOException;
+        /* Checked after every signal and recheck period */
+        boolean isDone(int state);
+        /* Releases whatever failed attempt left behind */
+        void abort();
+    }
+
+    public interface ProgressObserver {
+        /* elapsed is time in ms since run() or start() */
+        void onProgress(int state, int attempt, long elapsed);
+    }
+
+    private final Steps mSteps;
+    private final ProgressObserver mObserver;
+    private final long[] mTimeouts = TIMEOUT_DEFAULT.clone();
+    private final Random mRandom = new Random();
+    private final Object mLock = new Object();
+
+    private int mMaxAttempts = MAX_ATTEMPTS_DEFAULT;
+    private boolean mSignaled = false;
+
+    private volatile int mState = STATE_IDLE;
+    private int mAttempt = 0;
+    private long mDeadline = 0;  // ms, of current stage or backoff
+    private boolean mBegunDone = false;  // current stage was done by begin()
+    private long mStart = 0;
+    private volatile long mElapsed = -1;
+
+    public ConnectionMachine(Steps steps, ProgressObserver observer) {
+        mSteps = steps;
+        mObserver = observer;
+    }
+
+    public void setTimeout(int state, long timeout) {
+        mTimeouts[state] = timeout;
+    }
+
+    public void setMaxAttempts(int attempts) {
+        mMaxAttempts = Math.max(1, attempts);
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /* Time in ms spent by last run until connected or failed, -1 while running */
+    public long getElapsed() {
+        return mElapsed;
+    }
+
+    /* Upper bound of run() duration in ms */
+    public long getMaxDuration() {
+
+        long total = 0;
+        for (int attempt = 1; attempt <= mMaxAttempts; attempt++) {
+            for (int state = STATE_ENABLING; state <= STATE_CONNECTING; state++) {
+                total += mTimeouts[state];
+            }
+            if (attempt < mMaxAttempts) {
+                total += backoffLimit(attempt);
+            }
+        }
+        return total;
+    }
+
+    /* Wakes up stage waiting for external event. When a scheduler drives
+     * step(), caller of signal() should let it step soon too */
+    public void signal() {
+        synchronized (mLock) {
+            mSignaled = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /* Blocks until connected or all attempts failed */
+    public boolean run() {
+
+        start();
+
+        long delay;
+        while ((delay = step()) >= 0) {
+            synchronized (mLock) {
+                try {
+                    if (!mSignaled) {
+                        mLock.wait(Math.max(1, delay));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    break;
+                }
+                mSignaled = false;
+            }
+        }
+
+        return mState == STATE_CONNECTED;
+    }
+
+    /* Starts first attempt, machine is then driven by step() */
+    public void start() {
+
+        mStart = System.currentTimeMillis();
+        mElapsed = -1;
+        mAttempt = 1;
+        enter(STATE_ENABLING);
+    }
+
+    /* Never waits, only Steps.begin() of next stage may do its bounded work.
+     * Returns ms after which machine wants next step(), signal() may come
+     * earlier, or -1 once connected or failed, see getState() */
+    public long step() {
+
+        while (true) {
+            int state = mState;
+            long now = System.currentTimeMillis();
+
+            if (state == STATE_CONNECTED || state == STATE_FAILED) {
+                return -1;
+            }
+
+            if (state == STATE_BACKOFF) {
+                if (now < mDeadline) {
+                    return mDeadline - now;
+                }
+                mAttempt++;
+                enter(STATE_ENABLING);
+            } else if (mBegunDone || mSteps.isDone(state)) {
+                if (state == STATE_CONNECTING) {
+                    setState(STATE_CONNECTED, mAttempt);
+                    mElapsed = now - mStart;
+                    HubLog.i(TAG, "Connected in " + mElapsed + " ms, attempt " + mAttempt);
+                } else {
+                    enter(state + 1);
+                }
+            } else if (now >= mDeadline) {
+                HubLog.w(TAG, "State " + state + " timeout");
+                fail(state);
+            } else {
+                return Math.min(mDeadline - now, RECHECK_PERIOD);
+            }
+        }
+    }
+
+    /* Gives up at once, eg. when scheduler driving step() stops */
+    public void cancel() {
+
+        int state = mState;
+        if (state == STATE_CONNECTED || state == STATE_FAILED) {
+            return;
+        }
+        if (state != STATE_BACKOFF && state != STATE_IDLE) {
+            mSteps.abort();
+        }
+        giveUp();
+    }
+
+    private void enter(int state) {
+
+        setState(state, mAttempt);
+
+        long timeout = mTimeouts[state];
+        mDeadline = System.currentTimeMillis() + timeout;
+        mBegunDone = false;
+
+        synchronized (mLock) {
+            mSignaled = false;
+        }
+
+        try {
+            mBegunDone = mSteps.begin(state, timeout);
+        } catch (IOException e) {
+            HubLog.e(TAG, "State " + state + " failed " + e.toString());
+            fail(state);
+        }
+    }
+
+    private void fail(int state) {
+
+        HubLog.w(TAG, "Attempt " + mAttempt + " failed in state " + state);
+        mSteps.abort();
+
+        if (mAttempt >= mMaxAttempts || Thread.currentThread().isInterrupted()) {
+            giveUp();
+            return;
+        }
+
+        setState(STATE_BACKOFF, mAttempt);
+        mDeadline = System.currentTimeMillis() + backoff(mAttempt);
+    }
+
+    private void giveUp() {
+
+        setState(STATE_FAILED, 0);
+        mElapsed = System.currentTimeMillis() - mStart;
+        HubLog.e(TAG, "Giving up after " + mElapsed + " ms");
+    }
+
+    private void setState(int state, int attempt) {
+
+        mState = state;
+        if (mObserver != null) {
+            mObserver.onProgress(state, attempt, System.currentTimeMillis() - mStart);
+        }
+    }
+
+    private long backoffLimit(int attempt) {
+        return Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt - 1, 16));
+    }
+
+    /* Half of the delay is fixed, the other half random, so devices
+     * restarted together do not retry in lockstep */
+    private long backoff(int attempt) {
+        long limit = backoffLimit(attempt);
+        return limit / 2 + (long) (mRandom.nextDouble() * (limit / 2));
+    }
+}
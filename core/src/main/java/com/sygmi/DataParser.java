@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/* Parses samples of one source (device endpoint), parsers, change filters and
+ * statistics hold one value per key, so samples of different sources must not
+ * mix. Samples of other sources are skipped, see setSource(). */
+public class DataParser {
+
+    private static final String TAG = "DataParser";
+
+    public final static double MIN_VAL = 0.0;
+    public final static double MAX_VAL = 100.0;
+
+    /* Source of first sample parsed is taken */
+    public static final int SOURCE_FIRST = -1;
+
+    private IDataCallback mCallback = null;
+    private ISensorCallback mSensorCallback = null;
+
+    private final SensorSchema mSchema;
+
+    /* Indexed by sensor id, grown when schema gets new sensors */
+    private Parser[] mParsers = new Parser[0];
+
+    private RollingStats mStats = null;
+
+    /* Change filter of gauge sensors without own one, null for none */
+    private ChangeFilter.Config mFilterConfig = null;
+
+    private int mEndpoint = SOURCE_FIRST;
+    private int mDevice = SOURCE_FIRST;
+
+    // keys supported by default schema
+    private static final String[] gKeys = new String[]{ "T",    // Temperature
+                                                        "H",    // Humidity
+                                                        "B",    // Time from boot (sec)
+                                                        "R",    // Time of last read (sec)
+                                                        "E",    // Error indicator
+                                                          };
+
+    public static String[] getKeys() {
+        return gKeys;
+    }
+
+    public DataParser() {
+        this(SensorSchema.getDefault());
+    }
+
+    public DataParser(SensorSchema schema) {
+        mSchema = schema;
+        update();
+    }
+
+    public SensorSchema getSchema() {
+        return mSchema;
+    }
+
+    public void setCallback(IDataCallback callback) {
+        if (mCallback != null) {
+            return;
+        }
+        mCallback = callback;
+    }
+
+    /* Gets sensors without own IDataCallback method, eg. ones added to schema later */
+    public void setSensorCallback(ISensorCallback callback) {
+        mSensorCallback = callback;
+    }
+
+    /* Valid samples are also fed to given statistics, before change filtering */
+    public void setStatistics(RollingStats stats) {
+        mStats = stats;
+    }
+
+    /* Parses only samples of given endpoint and device from now on, last
+     * values and filters start from scratch */
+    public void setSource(int endpoint, int device) {
+
+        mEndpoint = endpoint;
+        mDevice = device;
+        for (Parser parser : mParsers) {
+            parser.reset();
+        }
+    }
+
+    public int getEndpoint() {
+        return mEndpoint;
+    }
+
+    public int getDevice() {
+        return mDevice;
+    }
+
+    /* Filters changes of all gauge sensors, null reports every change */
+    public void setFilter(ChangeFilter.Config config) {
+
+        mFilterConfig = config != null && config.isEnabled() ? config : null;
+        for (Parser parser : mParsers) {
+            if (parser.mSensor.kind == SensorSchema.KIND_GAUGE) {
+                parser.setFilter(mFilterConfig);
+            }
+        }
+    }
+
+    /* Filters changes of one sensor, overrides common filter set before */
+    public void setFilter(int key, ChangeFilter.Config config) {
+
+        update();
+        int id = mSchema.idOf(key);
+        if (id != SensorSchema.NO_ID) {
+            mParsers[id].setFilter(config != null && config.isEnabled() ? config : null);
+        }
+    }
+
+    private abstract class Parser {
+
+        protected final SensorSchema.Sensor mSensor;
+        protected double mValue = 0.0;
+
+        private ChangeFilter mFilter = null;
+        protected double mFiltered = 0.0;
+
+        Parser(SensorSchema.Sensor sensor) {
+            mSensor = sensor;
+        }
+
+        void setFilter(ChangeFilter.Config config) {
+            mFilter = config != null ? new ChangeFilter(config) : null;
+        }
+
+        void reset() {
+            mValue = 0.0;
+            mFiltered = 0.0;
+            if (mFilter != null)
+                mFilter.reset();
+        }
+
+        /* True when value differs enough from last reported one, see mFiltered */
+        protected boolean changed(double value, long time) {
+
+            if (mFilter == null) {
+                mFiltered = value;
+                return value != mValue;
+            }
+
+            if (!mFilter.accept(value, time))
+                return false;
+
+            mFiltered = mFilter.getValue();
+            return mFiltered != mValue;
+        }
+
+        abstract void job(double value, long time);
+    }
+
+    /* Typed path, key is single character id as decoded by FrameDecoder,
+     * value is taken as coming from parsed source */
+    public void exec(int key, double value) throws DataParserException {
+
+        dispatch(key, value, System.currentTimeMillis());
+    }
+
+    /* Whole snapshot in one go, so related values change together */
+    public void exec(SampleBatch snapshot) throws DataParserException {
+
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (fromSource(snapshot.getEndpoint(i), snapshot.getDevice(i))) {
+                dispatch(snapshot.getKey(i), snapshot.getValue(i), snapshot.getTimestamp(i));
+            }
+        }
+    }
+
+    /* Compatibility path for JSON encoded samples */
+    public void exec(String json) throws DataParserException {
+
+        try {
+            JSONObject data = new JSONObject(json);
+
+            HubLog.d(TAG, "item val " + data.get("VALUE"));
+
+            if (!fromSource(data.optInt("ENDPOINT", 0), data.optInt("DEVICE", 0)))
+                return;
+
+            String key = data.getString("KEY");
+            dispatch(key != null && key.length() == 1 ? key.charAt(0) : -1, data.getDouble("VALUE"),
+                    System.currentTimeMillis());
+        } catch (JSONException e) {
+            throw new DataParserException("Wrong JSON string!");
+        }
+    }
+
+    private boolean fromSource(int endpoint, int device) {
+
+        if (mEndpoint == SOURCE_FIRST || mDevice == SOURCE_FIRST) {
+            mEndpoint = endpoint;
+            mDevice = device;
+            HubLog.i(TAG, "Parsing endpoint " + endpoint + " of device " + device);
+        }
+        return endpoint == mEndpoint && device == mDevice;
+    }
+
+    private void dispatch(int key, double value, long time) throws DataParserException {
+
+        if (mCallback == null) {
+            throw new DataParserException("Callback not set!");
+        }
+
+        int id = mSchema.idOf(key);
+        if (id >= mParsers.length) {
+            update();
+        }
+
+        if (id != SensorSchema.NO_ID) {
+            if (mParsers[id].mSensor.isValid(value)) {
+                if (mStats != null) {
+                    mStats.add(key, value, time);
+                }
+            }
+            mParsers[id].job(value, time);
+        } else {
+            mCallback.onError("key not mapped " + FrameDecoder.keyName(key));
+        }
+    }
+
+    /* Creates parsers for sensors defined since last call */
+    private void update() {
+
+        int size = mSchema.size();
+        if (size <= mParsers.length)
+            return;
+
+        Parser[] parsers = new Parser[size];
+        System.arraycopy(mParsers, 0, parsers, 0, mParsers.length);
+
+        for (int id = mParsers.length; id < size; id++) {
+            SensorSchema.Sensor sensor = mSchema.get(id);
+            switch (sensor.key) {
+                case 'T':
+                    parsers[id] = new Temperature(sensor);
+                    break;
+                case 'H':
+                    parsers[id] = new Humidity(sensor);
+                    break;
+                case 'B':
+                    parsers[id] = new BootWatcher(sensor);
+                    break;
+                case 'R':
+                    parsers[id] = new ReadWatcher(sensor);
+                    break;
+                default:
+                    parsers[id] = sensor.kind == SensorSchema.KIND_MONOTONIC ?
+                            new Counter(sensor) : new Gauge(sensor);
+                    break;
+            }
+            if (sensor.kind == SensorSchema.KIND_GAUGE) {
+                parsers[id].setFilter(mFilterConfig);
+            }
+        }
+        mParsers = parsers;
+    }
+
+    private class Temperature extends Parser {
+
+        Temperature(SensorSchema.Sensor sensor) {
+            super(sensor);
+        }
+
+        @Override
+        public void job(double value, long time) {
+
+            mCallback.onDebug("debug temperature " + value);
+
+            if (mSensor.isValid(value) && changed(value, time)) {
+                mCallback.onTemperatureChanged(mValue, mFiltered);
+                mValue = mFiltered;
+            }
+        }
+    }
+
+    private class Humidity extends Parser {
+
+        Humidity(SensorSchema.Sensor sensor) {
+            super(sensor);
+        }
+
+        @Override
+        public void job(double value, long time) {
+
+            mCallback.onDebug("debug humidity " + value);
+
+            if (mSensor.isValid(value) && changed(value, time)) {
+                mCallback.onHumidityChanged(mValue, mFiltered);
+                mValue = mFiltered;
+            }
+        }
+    }
+
+    private class BootWatcher extends Parser {
+
+        BootWatcher(SensorSchema.Sensor sensor) {
+            super(sensor);
+        }
+
+        @Override
+        public void job(double value, long time) {
+
+            mCallback.onDebug("debug time from boot " + value);
+
+            if (value < mValue)
+                mCallback.onError("Inconsistent value !");
+            else
+                mCallback.onBootTimeChanged(value);
+
+            mValue = value;
+        }
+    }
+
+    private class ReadWatcher extends Parser {
+
+        ReadWatcher(SensorSchema.Sensor sensor) {
+            super(sensor);
+        }
+
+        @Override
+        public void job(double value, long time) {
+
+            mCallback.onDebug("debug read time " + value);
+
+            if (value < mValue)
+                mCallback.onError("Inconsistent value !");
+            else
+                mCallback.onReadTimeChanged(value);
+
+            mValue = value;
+        }
+    }
+
+    /* Any gauge or status sensor, reports valid changes */
+    private class Gauge extends Parser {
+
+        Gauge(SensorSchema.Sensor sensor) {
+            super(sensor);
+        }
+
+        @Override
+        public void job(double value, long time) {
+
+            if (mSensor.isValid(value) && changed(value, time)) {
+                if (mSensorCallback != null)
+                    mSensorCallback.onSensorChanged(mSensor, mValue, mFiltered);
+                mValue = mFiltered;
+            }
+        }
+    }
+
+    /* Any monotonic sensor, going back is reported as error */
+    private class Counter extends Parser {
+
+        Counter(SensorSchema.Sensor sensor) {
+            super(sensor);
+        }
+
+        @Override
+        public void job(double value, long time) {
+
+            if (value < mValue) {
+                mCallback.onError("Inconsistent " + mSensor.name + " !");
+            } else if (value != mValue && mSensorCallback != null) {
+                mSensorCallback.onSensorChanged(mSensor, mValue, value);
+            }
+
+            mValue = value;
+        }
+    }
+
+    public interface ISensorCallback {
+
+        void onSensorChanged(SensorSchema.Sensor sensor, double oldValue, double newValue);
+    }
+
+    public interface IDataCallback {
+
+        void onTemperatureChanged(double oldTemperature, double newTemperature);
+
+        void onHumidityChanged(double oldHumidity, double newHumidity);
+
+        void onBootTimeChanged(double newTime);
+
+        void onReadTimeChanged(double newTime);
+
+        void onDebug(String msg);
+
+        void onError(String msg);
+    }
+
+    public class DataParserException extends Exception {
+
+        private String mReason;
+
+        public DataParserException(String reason) {
+            mReason = reason;
+        }
+
+        public String getReason() {
+            return mReason;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+public class FakeDevice extends PortDriver implements Runnable {
+
+    private static final String TAG = "FakeDevice";
+
+    public final static String DEVICE_NAME = "FAKEDEVICE";
+
+    private Thread mFeedThread;
+    private SampleRing mItems = new SampleRing();
+
+    private final byte[] mFakeResp = "B=100 R=96 E=1 T=25.3C H=37.7%".getBytes(); // example
+    private final FrameDecoder.Frame mFrame = new FrameDecoder.Frame();
+
+    public FakeDevice() {
+        mIsConnected = true;
+        mFeedThread = new Thread(this);
+        mFeedThread.start();
+
+        setName(DEVICE_NAME);
+    }
+
+    @Override
+    public void run() {
+        if (mIsConnected) {
+            long now = System.currentTimeMillis();
+
+            int count = FrameDecoder.decode(mFakeResp, 0, mFakeResp.length, mFrame);
+
+            if (count > 0) {
+                mItems.offer(mFrame, now, 0);
+            }
+        }
+        if (mIsConnected) {
+            Platform.get().schedule(this, 1000);
+        }
+    }
+
+    @Override
+    public boolean initiate() {
+        super.initiate();
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        mIsConnected = false;
+        mItems.close();
+        mFeedThread.interrupt();
+        super.destroy();
+    }
+
+    @Override
+    public boolean poll(DataItem frame) {
+        return mItems.take(frame);
+    }
+
+    @Override
+    public boolean setDataListener(Runnable listener) {
+        mItems.setListener(listener);
+        return true;
+    }
+
+    @Override
+    public int poll(DataItem[] items, long timeout) {
+        return mItems.drain(items, timeout);
+    }
+}
+
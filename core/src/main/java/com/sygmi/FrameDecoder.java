@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Decoder of device frames like "<p>B=100 R=96 E=0 T=25.3C H=37.7% </p>".
+ * Works directly on raw bytes and writes decoded values into caller supplied
+ * Frame, so no intermediate strings nor objects are created per frame.
+ * Surrounding tag is optional, bare "B=100 R=96 ..." payload is accepted too. */
+public final class FrameDecoder {
+
+    public static final int MAX_VALUES = 16;
+
+    public static final int MALFORMED = -1;
+
+    private static final int MAX_DIGITS = 18;
+
+    private static final double[] POW10 = new double[MAX_DIGITS + 1];
+
+    private static final String[] gKeyNames = new String[128];
+
+    static {
+        double pow = 1.0;
+        for (int i = 0; i < POW10.length; i++) {
+            POW10[i] = pow;
+            pow *= 10.0;
+        }
+
+        for (int i = 0; i < gKeyNames.length; i++) {
+            gKeyNames[i] = String.valueOf((char) i);
+        }
+    }
+
+    private FrameDecoder() {
+    }
+
+    /* Caller owned storage for one decoded frame */
+    public static final class Frame {
+
+        public final char[] keys;
+        public final double[] values;
+        public int count = 0;
+
+        public Frame() {
+            this(MAX_VALUES);
+        }
+
+        public Frame(int capacity) {
+            keys = new char[capacity];
+            values = new double[capacity];
+        }
+    }
+
+    /* Shared string instance for a single character key */
+    public static String keyName(int key) {
+        if (key < 0 || key >= gKeyNames.length) {
+            return null;
+        }
+        return gKeyNames[key];
+    }
+
+    /* Decodes one frame from buf[offset, offset + length).
+     * Returns number of values stored in frame or MALFORMED. */
+    public static int decode(byte[] buf, int offset, int length, Frame frame) {
+
+        int pos = offset;
+        int end = offset + length;
+
+        frame.count = 0;
+
+        pos = skipSpaces(buf, pos, end);
+        if (pos < end && buf[pos] == '<') {
+            // skip opening tag, payload ends at closing tag
+            while (pos < end && buf[pos] != '>')
+                pos++;
+            if (pos == end)
+                return MALFORMED;
+            pos++;
+
+            int close = pos;
+            while (close < end && buf[close] != '<')
+                close++;
+            if (close == end)
+                return MALFORMED;
+            end = close;
+        }
+
+        while (true) {
+            pos = skipSpaces(buf, pos, end);
+            if (pos == end)
+                break;
+
+            if (frame.count == frame.keys.length)
+                return MALFORMED;
+
+            // key is single letter followed by '='
+            int key = buf[pos];
+            if (!((key >= 'A' && key <= 'Z') || (key >= 'a' && key <= 'z')))
+                return MALFORMED;
+            pos++;
+            if (pos == end || buf[pos] != '=')
+                return MALFORMED;
+            pos++;
+
+            boolean negative = false;
+            if (pos < end && buf[pos] == '-') {
+                negative = true;
+                pos++;
+            }
+
+            long mantissa = 0;
+            int digits = 0;
+            int scale = -1;
+
+            for (; pos < end; pos++) {
+                int c = buf[pos];
+                if (c >= '0' && c <= '9') {
+                    if (++digits > MAX_DIGITS)
+                        return MALFORMED;
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (scale >= 0)
+                        scale++;
+                } else if (c == '.' && scale < 0) {
+                    scale = 0;
+                } else {
+                    break;
+                }
+            }
+
+            if (digits == 0)
+                return MALFORMED;
+
+            // optional unit suffix like 'C' or '%', ends at any separator
+            while (pos < end && !isSpace(buf[pos])) {
+                int c = buf[pos];
+                if ((c >= '0' && c <= '9') || c == '=' || c == '.')
+                    return MALFORMED;
+                pos++;
+            }
+
+            double value = scale > 0 ? mantissa / POW10[scale] : (double) mantissa;
+
+            frame.keys[frame.count] = (char) key;
+            frame.values[frame.count] = negative ? -value : value;
+            frame.count++;
+        }
+
+        return frame.count;
+    }
+
+    private static int skipSpaces(byte[] buf, int pos, int end) {
+        while (pos < end && isSpace(buf[pos]))
+            pos++;
+        return pos;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+}
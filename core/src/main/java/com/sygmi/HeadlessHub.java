@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Runs polling pipeline without Android, eg. on Linux gateway:
+ *
+ *   ./gradlew :core:installDist
+ *   core/build/install/core/bin/core --device net:10.0.0.5,10.0.0.6:8080 --out samples.csv
+ *
+ * Every device gets own thread draining its driver, samples are written as
+ * "timestamp,device,endpoint,key,value" lines to stdout or given file.
+ * Throughput is reported to stderr on exit. */
+public final class HeadlessHub {
+
+    private static final String TAG = "HeadlessHub";
+
+    private static final int MAX_BATCH = 2 * FrameDecoder.MAX_VALUES;
+    private static final long POLL_TIMEOUT = 2 * ComLink.GET_PERIOD;
+
+    private final List<PortDriver> mDrivers = new ArrayList<PortDriver>();
+    private final List<Thread> mThreads = new ArrayList<Thread>();
+    private final Writer mOut;
+
+    private final AtomicLong mSamples = new AtomicLong();
+    private long mStarted = 0;
+
+    private final class Drain implements Runnable {
+
+        private final int mIndex;
+        private final PortDriver mDriver;
+        private final PortDriver.DataItem[] mItems = new PortDriver.DataItem[MAX_BATCH];
+        private final StringBuilder mLine = new StringBuilder();
+
+        Drain(int index, PortDriver driver) {
+            mIndex = index;
+            mDriver = driver;
+            for (int i = 0; i < mItems.length; i++) {
+                mItems[i] = new PortDriver.DataItem();
+            }
+        }
+
+        @Override
+        public void run() {
+
+            while (!Thread.currentThread().isInterrupted()) {
+                int count = mDriver.poll(mItems, POLL_TIMEOUT);
+                if (count == 0)
+                    continue;
+
+                mLine.setLength(0);
+                for (int i = 0; i < count; i++) {
+                    PortDriver.DataItem item = mItems[i];
+                    mLine.append(item.timestamp).append(',')
+                            .append(mIndex).append(',')
+                            .append(item.endpoint).append(',')
+                            .append(FrameDecoder.keyName(item.keyId)).append(',')
+                            .append(item.value).append('\n');
+                }
+
+                try {
+                    synchronized (mOut) {
+                        mOut.write(mLine.toString());
+                        mOut.flush();
+                    }
+                } catch (IOException e) {
+                    HubLog.e(TAG, "Output failed " + e.toString());
+                    return;
+                }
+                mSamples.addAndGet(count);
+            }
+        }
+    }
+
+    public HeadlessHub(Writer out) {
+        mOut = out;
+    }
+
+    /* Creates and brings up driver, false if it failed */
+    public boolean addDevice(int type, String auxData) {
+
+        PortDriver driver = PortDriverRegistry.create(type, null, true, auxData);
+        if (driver == null || !driver.initiate()) {
+            HubLog.e(TAG, "Device #" + mDrivers.size() + " of type " + type + " not started");
+            if (driver != null)
+                driver.destroy();
+            return false;
+        }
+
+        HubLog.i(TAG, "Device #" + mDrivers.size() + " " + driver.getProduct() + " attached");
+        mDrivers.add(driver);
+        return true;
+    }
+
+    public void start() {
+
+        mStarted = System.currentTimeMillis();
+        for (int i = 0; i < mDrivers.size(); i++) {
+            Thread thread = new Thread(new Drain(i, mDrivers.get(i)), "drain-" + i);
+            thread.start();
+            mThreads.add(thread);
+        }
+    }
+
+    public void stop() {
+
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+        for (PortDriver driver : mDrivers) {
+            driver.destroy();
+        }
+        for (Thread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        mThreads.clear();
+        mDrivers.clear();
+    }
+
+    public long getSamples() {
+        return mSamples.get();
+    }
+
+    public long getElapsed() {
+        return System.currentTimeMillis() - mStarted;
+    }
+
+    private static int parseType(String name) {
+
+        for (PortDriverRegistry.Provider provider : PortDriverRegistry.getProviders()) {
+            if (provider.getName().equalsIgnoreCase(name))
+                return provider.getType();
+        }
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: HeadlessHub --device TYPE[:AUX] [--device ...] [--out FILE] [--duration SEC] [--verbose]");
+        System.err.println("  TYPE is one of registered drivers, eg. net or fake");
+        System.err.println("  AUX is driver specific, for net comma separated host[:port] list");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        List<String> devices = new ArrayList<String>();
+        String outFile = null;
+        long duration = 0;
+        boolean verbose = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--device".equals(arg) && i + 1 < args.length) {
+                devices.add(args[++i]);
+            } else if ("--out".equals(arg) && i + 1 < args.length) {
+                outFile = args[++i];
+            } else if ("--duration".equals(arg) && i + 1 < args.length) {
+                duration = Long.parseLong(args[++i]) * 1000;
+            } else if ("--verbose".equals(arg)) {
+                verbose = true;
+            } else {
+                usage();
+            }
+        }
+
+        if (devices.isEmpty()) {
+            usage();
+        }
+
+        Platform.set(new Platform.Jvm(System.err, verbose ? Platform.DEBUG : Platform.INFO));
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                outFile != null ? new FileOutputStream(outFile, true) : System.out, "UTF-8"));
+
+        final HeadlessHub hub = new HeadlessHub(out);
+        for (String device : devices) {
+            int colon = device.indexOf(':');
+            String name = colon < 0 ? device : device.substring(0, colon);
+            String aux = colon < 0 ? null : device.substring(colon + 1);
+
+            int type = parseType(name);
+            if (type < 0) {
+                HubLog.e(TAG, "Unknown device type " + name);
+                continue;
+            }
+            hub.addDevice(type, aux);
+        }
+
+        hub.start();
+
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                // let main thread stop devices and report before JVM goes down
+                main.interrupt();
+                try {
+                    main.join();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+
+        try {
+            if (duration > 0) {
+                Thread.sleep(duration);
+            } else {
+                Thread.sleep(Long.MAX_VALUE);
+            }
+        } catch (InterruptedException e) {
+        }
+
+        hub.stop();
+        out.close();
+
+        long elapsed = Math.max(1, hub.getElapsed());
+        System.err.println(hub.getSamples() + " samples in " + elapsed + " ms, "
+                + (hub.getSamples() * 1000 / elapsed) + " samples/s");
+    }
+}
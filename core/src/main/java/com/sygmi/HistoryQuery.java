@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Reads history of sensors over time range reduced to given number of
+ * points, ready to be graphed. Series is selected by key, endpoint and
+ * device, same as in SeriesArchive and Rollups.
+ * Data comes from the coarsest rollup tier still dense enough for requested
+ * points (see Rollups.selectTier()), or from raw samples of SeriesArchive
+ * when no tier is. Part of range older than oldest bucket of the tier, eg.
+ * history from before rollups were fed or already dropped by retention, is
+ * read from raw samples too. Either way samples are streamed, never loaded
+ * whole: archive blocks are decoded on the fly, rollups hand over at most
+ * few buckets per point.
+ * Two reductions:
+ *  - MODE_LTTB, Largest-Triangle-Three-Buckets, keeps real samples which
+ *    preserve shape of the curve, peaks included. Range is split into equal
+ *    time buckets and only two of them are held at once. Points of every key
+ *    have their own times.
+ *  - MODE_ENVELOPE, min, max and mean per equal time bucket. Keys queried
+ *    together share bucket times, eg. temperature and humidity side by side.
+ * Rollup bucket enters LTTB as its mean in the middle of bucket. */
+public final class HistoryQuery {
+
+    public static final int MODE_LTTB = 0;
+    public static final int MODE_ENVELOPE = 1;
+
+    public static final int MIN_POINTS = 3;
+
+    private final SeriesArchive mArchive;
+    private final Rollups mRollups;
+
+    /* Reduced history of one key */
+    public static final class Series {
+
+        public final int key;
+        public final int endpoint;
+        public final int device;
+        public final int source;  // rollup tier, possibly preceded by raw samples, or Rollups.TIER_RAW
+        public final int size;
+
+        private final long[] mTimes;
+        private final double[] mValues;
+        private final double[] mMin;  // null for LTTB
+        private final double[] mMax;
+
+        Series(int key, int endpoint, int device, int source, int size, long[] times, double[] values,
+               double[] min, double[] max) {
+            this.key = key;
+            this.endpoint = endpoint;
+            this.device = device;
+            this.source = source;
+            this.size = size;
+            mTimes = times;
+            mValues = values;
+            mMin = min;
+            mMax = max;
+        }
+
+        public long getTime(int i) {
+            return mTimes[i];
+        }
+
+        /* Sample value for LTTB, bucket mean for envelope, NaN for empty bucket */
+        public double getValue(int i) {
+            return mValues[i];
+        }
+
+        public boolean hasEnvelope() {
+            return mMin != null;
+        }
+
+        public double getMin(int i) {
+            return mMin != null ? mMin[i] : mValues[i];
+        }
+
+        public double getMax(int i) {
+            return mMax != null ? mMax[i] : mValues[i];
+        }
+    }
+
+    /* Takes samples or buckets in time order, span is 0 for raw samples */
+    private interface Sink {
+        void add(long start, long span, double mean, double min, double max, double sum, long count);
+    }
+
+    /* Either may be null, without rollups every query reads raw samples */
+    public HistoryQuery(SeriesArchive archive, Rollups rollups) {
+        mArchive = archive;
+        mRollups = rollups;
+    }
+
+    /* Keys of given endpoint and device */
+    public Series[] query(int[] keys, int endpoint, int device, long from, long to, int points, int mode) {
+        if (mode == MODE_ENVELOPE)
+            return envelope(keys, endpoint, device, from, to, points);
+
+        Series[] series = new Series[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            series[k] = lttb(keys[k], endpoint, device, from, to, points);
+        }
+        return series;
+    }
+
+    /* At most given number of real samples of series in [from, to) */
+    public Series lttb(int key, int endpoint, int device, long from, long to, int points) {
+
+        check(from, to, points);
+        Lttb lttb = new Lttb(from, to, points);
+        int source = scan(key, endpoint, device, from, to, points, lttb);
+        lttb.finish();
+        return new Series(key, endpoint, device, source, lttb.mSize, lttb.mOutTimes, lttb.mOutValues,
+                null, null);
+    }
+
+    /* Min, max and mean of keys of given endpoint and device in given number
+     * of equal buckets of [from, to), all series share bucket start times */
+    public Series[] envelope(int[] keys, int endpoint, int device, long from, long to, int points) {
+
+        check(from, to, points);
+        final long width = (to - from + points - 1) / points;
+        long[] times = new long[points];
+        for (int i = 0; i < points; i++) {
+            times[i] = from + i * width;
+        }
+
+        Series[] series = new Series[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            final double[] min = new double[points];
+            final double[] max = new double[points];
+            final double[] sum = new double[points];
+            final long[] count = new long[points];
+            final long start = from;
+            final int last = points - 1;
+
+            int source = scan(keys[k], endpoint, device, from, to, points, new Sink() {
+                @Override
+                public void add(long t, long span, double mean, double lo, double hi, double total, long n) {
+                    int i = (int) Math.min(last, (t - start) / width);
+                    if (count[i] == 0 || lo < min[i])
+                        min[i] = lo;
+                    if (count[i] == 0 || hi > max[i])
+                        max[i] = hi;
+                    sum[i] += total;
+                    count[i] += n;
+                }
+            });
+
+            double[] mean = new double[points];
+            for (int i = 0; i < points; i++) {
+                if (count[i] == 0) {
+                    mean[i] = min[i] = max[i] = Double.NaN;
+                } else {
+                    mean[i] = sum[i] / count[i];
+                }
+            }
+            series[k] = new Series(keys[k], endpoint, device, source, points, times, mean, min, max);
+        }
+        return series;
+    }
+
+    private static void check(long from, long to, int points) {
+        if (to <= from) {
+            throw new IllegalArgumentException("Empty range");
+        }
+        if (points < MIN_POINTS) {
+            throw new IllegalArgumentException("At least " + MIN_POINTS + " points needed");
+        }
+    }
+
+    /* Feeds sink from rollups when dense enough, from archive otherwise or
+     * for part of range the tier does not reach. Returns source used. */
+    private int scan(int key, int endpoint, int device, long from, long to, int points, final Sink sink) {
+
+        int tier = mRollups != null ? mRollups.selectTier(key, endpoint, device, from, to, points)
+                : Rollups.TIER_RAW;
+        long oldest = tier != Rollups.TIER_RAW ? mRollups.getOldest(key, endpoint, device, tier) : to;
+        if (oldest >= to) {
+            tier = Rollups.TIER_RAW;
+            oldest = to;
+        }
+
+        if (oldest > from && mArchive != null) {
+            SeriesArchive.Series series = mArchive.get(key, endpoint, device);
+            if (series != null) {
+                SeriesArchive.Cursor cursor = series.cursor(from, oldest);
+                while (cursor.next()) {
+                    double v = cursor.getValue();
+                    sink.add(cursor.getTime(), 0, v, v, v, v, 1);
+                }
+            }
+        }
+
+        if (tier != Rollups.TIER_RAW) {
+            final long span = mRollups.getResolution(tier);
+            final long[] newest = { Long.MIN_VALUE };
+            final long begin = Math.max(from, oldest);
+            final long end = to;
+            Rollups.Visitor visitor = new Rollups.Visitor() {
+                @Override
+                public void onBucket(long start, long count, double min, double max, double sum, double last) {
+                    // open bucket may repeat sealed one or lie out of range
+                    if (start <= newest[0] || start < begin || start >= end)
+                        return;
+                    newest[0] = start;
+                    sink.add(start, span, sum / count, min, max, sum, count);
+                }
+            };
+            mRollups.query(key, endpoint, device, tier, begin, to, visitor);
+            mRollups.queryOpen(key, endpoint, device, tier, visitor);
+        }
+        return tier;
+    }
+
+    /* Streaming LTTB over equal time buckets. First and last samples are
+     * kept, from every other bucket the sample forming largest triangle with
+     * point selected before and mean of next bucket. Current bucket is
+     * decided once next one is complete, so only these two are buffered. */
+    private static final class Lttb implements Sink {
+
+        private final long mFrom;
+        private final double mWidth;
+        private final int mBuckets;
+
+        private final long[] mOutTimes;
+        private final double[] mOutValues;
+        private int mSize = 0;
+
+        private Bucket mCur = new Bucket();
+        private Bucket mNext = new Bucket();
+
+        private boolean mStarted = false;
+        private long mAnchorTime;  // last selected point
+        private double mAnchorValue;
+        private long mLastTime;    // last sample seen, kept at the end
+        private double mLastValue;
+
+        private static final class Bucket {
+
+            int index = -1;
+            int size = 0;
+            long[] times = new long[16];
+            double[] values = new double[16];
+            double sumTime = 0.0;   // relative to mFrom
+            double sumValue = 0.0;
+
+            void add(long time, double value, long from) {
+                if (size == times.length) {
+                    long[] t = new long[size * 2];
+                    double[] v = new double[size * 2];
+                    System.arraycopy(times, 0, t, 0, size);
+                    System.arraycopy(values, 0, v, 0, size);
+                    times = t;
+                    values = v;
+                }
+                times[size] = time;
+                values[size] = value;
+                size++;
+                sumTime += time - from;
+                sumValue += value;
+            }
+
+            void removeLast(long from) {
+                size--;
+                sumTime -= times[size] - from;
+                sumValue -= values[size];
+            }
+
+            void clear(int index) {
+                this.index = index;
+                size = 0;
+                sumTime = 0.0;
+                sumValue = 0.0;
+            }
+        }
+
+        Lttb(long from, long to, int points) {
+            mFrom = from;
+            mBuckets = points - 2;
+            mWidth = (double) (to - from) / mBuckets;
+            mOutTimes = new long[points];
+            mOutValues = new double[points];
+        }
+
+        @Override
+        public void add(long start, long span, double mean, double min, double max, double sum, long count) {
+
+            long time = start + span / 2;
+            if (Double.isNaN(mean))
+                return;
+
+            if (!mStarted) {
+                mStarted = true;
+                output(time, mean);
+                mLastTime = time;
+                mLastValue = mean;
+                return;
+            }
+            mLastTime = time;
+            mLastValue = mean;
+
+            int index = (int) Math.min(mBuckets - 1, (time - mFrom) / mWidth);
+            if (index != mNext.index) {
+                if (mNext.size > 0) {
+                    if (mCur.size > 0) {
+                        select(mCur, mNext.sumTime / mNext.size, mNext.sumValue / mNext.size);
+                    }
+                    Bucket b = mCur;
+                    mCur = mNext;
+                    mNext = b;
+                }
+                mNext.clear(index);
+            }
+            mNext.add(time, mean, mFrom);
+        }
+
+        void finish() {
+
+            if (!mStarted)
+                return;
+
+            // last sample is kept on its own, not as part of its bucket
+            boolean single = mSize == 1 && mNext.size == 0 && mCur.size == 0;
+            if (mNext.size > 0) {
+                mNext.removeLast(mFrom);
+            }
+
+            double lastTime = mLastTime - mFrom;
+            if (mCur.size > 0) {
+                if (mNext.size > 0) {
+                    select(mCur, mNext.sumTime / mNext.size, mNext.sumValue / mNext.size);
+                } else {
+                    select(mCur, lastTime, mLastValue);
+                }
+            }
+            if (mNext.size > 0) {
+                select(mNext, lastTime, mLastValue);
+            }
+            if (!single) {
+                output(mLastTime, mLastValue);
+            }
+        }
+
+        /* Picks point of bucket forming largest triangle with anchor and (t, v) */
+        private void select(Bucket b, double t, double v) {
+
+            double at = mAnchorTime - mFrom;
+            double av = mAnchorValue;
+            int best = 0;
+            double bestArea = -1.0;
+            for (int i = 0; i < b.size; i++) {
+                double area = Math.abs((at - t) * (b.values[i] - av) - (at - (b.times[i] - mFrom)) * (v - av));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            output(b.times[best], b.values[best]);
+        }
+
+        private void output(long time, double value) {
+            mOutTimes[mSize] = time;
+            mOutValues[mSize] = value;
+            mSize++;
+            mAnchorTime = time;
+            mAnchorValue = value;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Push style HTTP response framer for non-blocking readers.
+ * Caller accumulates received bytes and asks whether a whole response is
+ * already there. Chunked bodies are joined in place. Bare legacy payloads
+ * end with new line, closing tag or end of stream.
+ * Status line, header and chunk size parsing is shared with SimpleHttpReq,
+ * which reads the same responses line by line. */
+final class HttpFramer {
+
+    public static final int NEED_MORE = 0;
+    public static final int COMPLETE = 1;
+    public static final int MALFORMED = -1;
+
+    private static final byte[] HTTP = "HTTP/".getBytes();
+    private static final byte[] FRAME_END = "</p>".getBytes();
+
+    private HttpFramer() {
+    }
+
+    /* Status and framing headers of a response */
+    public static final class Head {
+        public int code = 0;
+        public boolean persistent = false;
+        public boolean chunked = false;
+        public boolean streamed = false;
+        public int length = -1;
+    }
+
+    public static final class Result {
+        public int bodyOffset = 0;
+        public int bodyLength = 0;
+        public boolean persistent = false;
+
+        private final Head mHead = new Head();
+    }
+
+    /* Parses status line, returns false when it is not "HTTP/x.x code ..." */
+    static boolean parseStatus(byte[] buf, int from, int to, Head head) {
+
+        String[] parts = new String(buf, from, to - from).split(" ");
+        if (parts.length < 2) {
+            return false;
+        }
+
+        try {
+            head.code = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        head.persistent = parts[0].equals("HTTP/1.1");
+        head.chunked = false;
+        head.streamed = false;
+        head.length = -1;
+        return true;
+    }
+
+    /* Parses one header line into head, returns false on malformed framing value */
+    static boolean parseHeader(byte[] buf, int from, int to, Head head) {
+
+        String header = new String(buf, from, to - from);
+        int colon = header.indexOf(':');
+        if (colon <= 0)
+            return true;
+
+        String name = header.substring(0, colon).trim().toLowerCase();
+        String value = header.substring(colon + 1).trim().toLowerCase();
+
+        if (name.equals("content-length")) {
+            try {
+                head.length = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        } else if (name.equals("transfer-encoding")) {
+            head.chunked = value.contains("chunked");
+        } else if (name.equals("connection")) {
+            if (value.contains("close"))
+                head.persistent = false;
+            else if (value.contains("keep-alive"))
+                head.persistent = true;
+        } else if (name.equals(SimpleHttpReq.STREAM_HEADER)) {
+            head.streamed = true;
+        }
+
+        return true;
+    }
+
+    public static int frame(byte[] buf, int len, boolean eof, Result result) {
+
+        result.persistent = false;
+
+        if (len == 0) {
+            return eof ? MALFORMED : NEED_MORE;
+        }
+
+        int prefix = Math.min(len, HTTP.length);
+        boolean http = true;
+        for (int i = 0; i < prefix; i++) {
+            if (buf[i] != HTTP[i]) {
+                http = false;
+                break;
+            }
+        }
+
+        if (http && prefix < HTTP.length) {
+            return eof ? MALFORMED : NEED_MORE;
+        }
+
+        if (!http) {
+            return frameLegacy(buf, len, eof, result);
+        }
+
+        int headerEnd = indexOfHeaderEnd(buf, len);
+        if (headerEnd < 0) {
+            return eof ? MALFORMED : NEED_MORE;
+        }
+
+        Head head = result.mHead;
+        int lineEnd = indexOf(buf, 0, headerEnd, (byte) '\n');
+        if (!parseStatus(buf, 0, trimCr(buf, 0, lineEnd), head) || head.code != 200) {
+            return MALFORMED;
+        }
+
+        for (int pos = lineEnd + 1; pos < headerEnd; pos = lineEnd + 1) {
+            lineEnd = indexOf(buf, pos, headerEnd, (byte) '\n');
+            if (!parseHeader(buf, pos, trimCr(buf, pos, lineEnd), head)) {
+                return MALFORMED;
+            }
+        }
+
+        boolean persistent = head.persistent;
+        int length = head.length;
+
+        result.bodyOffset = headerEnd;
+
+        if (head.chunked) {
+            int complete = joinChunks(buf, headerEnd, len, result);
+            if (complete == NEED_MORE && eof)
+                return MALFORMED;
+            result.persistent = persistent;
+            return complete;
+        }
+
+        if (length >= 0) {
+            if (len - headerEnd < length) {
+                return eof ? MALFORMED : NEED_MORE;
+            }
+            result.bodyLength = length;
+            result.persistent = persistent;
+            return COMPLETE;
+        }
+
+        // no framing, body ends with connection
+        if (!eof) {
+            return NEED_MORE;
+        }
+        result.bodyLength = len - headerEnd;
+        return COMPLETE;
+    }
+
+    private static int frameLegacy(byte[] buf, int len, boolean eof, Result result) {
+
+        result.bodyOffset = 0;
+
+        for (int i = 0; i < len; i++) {
+            if (buf[i] == '\n') {
+                result.bodyLength = i;
+                return COMPLETE;
+            }
+            if (buf[i] == '>' && i + 1 >= FRAME_END.length) {
+                boolean match = true;
+                for (int j = 0; j < FRAME_END.length; j++) {
+                    if (buf[i + 1 - FRAME_END.length + j] != FRAME_END[j]) {
+                        match = false;
+                        break;
+                    }
+                }
+                if (match) {
+                    result.bodyLength = i + 1;
+                    return COMPLETE;
+                }
+            }
+        }
+
+        if (eof) {
+            result.bodyLength = len;
+            return COMPLETE;
+        }
+
+        return NEED_MORE;
+    }
+
+    /* Returns offset of body or -1 if header block is not complete yet */
+    private static int indexOfHeaderEnd(byte[] buf, int len) {
+
+        for (int i = 0; i < len; i++) {
+            if (buf[i] != '\n')
+                continue;
+            if (i + 1 < len && buf[i + 1] == '\n')
+                return i + 2;
+            if (i + 2 < len && buf[i + 1] == '\r' && buf[i + 2] == '\n')
+                return i + 3;
+        }
+
+        return -1;
+    }
+
+    /* Validates chunk sequence and moves chunk data together right after headers */
+    private static int joinChunks(byte[] buf, int start, int len, Result result) {
+
+        int pos = start;
+
+        // first pass, check whole body is already received
+        while (true) {
+            int lineEnd = indexOf(buf, pos, len, (byte) '\n');
+            if (lineEnd < 0)
+                return NEED_MORE;
+
+            int size = parseHex(buf, pos, lineEnd);
+            if (size < 0)
+                return MALFORMED;
+
+            pos = lineEnd + 1;
+            if (size == 0)
+                break;
+
+            pos += size;
+            int crlf = indexOf(buf, pos, len, (byte) '\n');
+            if (crlf < 0)
+                return NEED_MORE;
+            pos = crlf + 1;
+        }
+
+        // trailers end with an empty line
+        while (true) {
+            int lineEnd = indexOf(buf, pos, len, (byte) '\n');
+            if (lineEnd < 0)
+                return NEED_MORE;
+            boolean empty = lineEnd == pos || (lineEnd == pos + 1 && buf[pos] == '\r');
+            pos = lineEnd + 1;
+            if (empty)
+                break;
+        }
+
+        // second pass, compact chunk data
+        int out = start;
+        pos = start;
+        while (true) {
+            int lineEnd = indexOf(buf, pos, len, (byte) '\n');
+            int size = parseHex(buf, pos, lineEnd);
+            pos = lineEnd + 1;
+            if (size == 0)
+                break;
+            System.arraycopy(buf, pos, buf, out, size);
+            out += size;
+            pos = indexOf(buf, pos + size, len, (byte) '\n') + 1;
+        }
+
+        result.bodyLength = out - start;
+        return COMPLETE;
+    }
+
+    private static int trimCr(byte[] buf, int from, int to) {
+        return to > from && buf[to - 1] == '\r' ? to - 1 : to;
+    }
+
+    private static int indexOf(byte[] buf, int from, int len, byte c) {
+        for (int i = from; i < len; i++) {
+            if (buf[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /* Chunk size line, extensions ignored, -1 when malformed */
+    static int parseHex(byte[] buf, int from, int to) {
+
+        int value = 0;
+        int digits = 0;
+
+        for (int i = from; i < to; i++) {
+            int c = buf[i];
+            int d;
+            if (c >= '0' && c <= '9')
+                d = c - '0';
+            else if (c >= 'a' && c <= 'f')
+                d = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F')
+                d = c - 'A' + 10;
+            else if (c == ' ' && digits == 0)
+                continue;
+            else if (c == ';' || c == '\r' || c == ' ')
+                break;
+            else
+                return -1;
+
+            if (++digits > 7)
+                return -1;
+            value = value * 16 + d;
+        }
+
+        return digits > 0 ? value : -1;
+    }
+}
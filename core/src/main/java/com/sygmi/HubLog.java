@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* android.util.Log look-alike for core classes, goes through Platform */
+public final class HubLog {
+
+    private HubLog() {
+    }
+
+    public static void v(String tag, String msg) {
+        Platform.get().log(Platform.VERBOSE, tag, msg);
+    }
+
+    public static void d(String tag, String msg) {
+        Platform.get().log(Platform.DEBUG, tag, msg);
+    }
+
+    public static void i(String tag, String msg) {
+        Platform.get().log(Platform.INFO, tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        Platform.get().log(Platform.WARN, tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        Platform.get().log(Platform.ERROR, tag, msg);
+    }
+}
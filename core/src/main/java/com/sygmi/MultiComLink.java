@@ -0,0 +1,383 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/* Multi endpoint variant of ComLink.
+ * All device sockets are served by one selector thread, requests are staggered
+ * evenly across poll period and every item is tagged with endpoint index.
+ * Failing endpoint is reconnected on its next slot without affecting others. */
+public final class MultiComLink {
+
+    private static final String TAG = "MultiComLink";
+
+    private static final int RX_BUFFER = 512;
+    private static final int MAX_RESPONSE = 16 * 1024;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_SENDING = 2;
+    private static final int STATE_RECEIVING = 3;
+
+    private final Endpoint[] mEndpoints;
+    private final int mPeriod;
+
+    private Selector mSelector = null;
+    private Thread mPollThread = null;
+
+    private final ByteBuffer mRx = ByteBuffer.allocateDirect(RX_BUFFER);
+    private final HttpFramer.Result mResult = new HttpFramer.Result();
+    private final FrameDecoder.Frame mFrame = new FrameDecoder.Frame();
+
+    private SampleRing mItems = new SampleRing();
+
+    private ComLink.ComLinkObserver mObserver = null;
+
+    private static final class Endpoint {
+
+        final int index;
+        final String host;
+        final int port;
+        final ByteBuffer request;
+
+        SocketChannel channel = null;
+        SelectionKey key = null;
+        int state = STATE_IDLE;
+
+        long nextPoll = 0;
+        long deadline = 0;
+
+        byte[] rx = new byte[RX_BUFFER];
+        int rxLen = 0;
+
+        int failures = 0;
+
+        Endpoint(int index, String host, int port, boolean keepAlive) {
+
+            // host may carry own port, eg. gateway simulators on one box
+            String given = host;
+            int colon = host.indexOf(':');
+            if (colon >= 0 && colon == host.lastIndexOf(':')) {
+                try {
+                    port = Integer.parseInt(host.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    port = -1;
+                }
+                host = host.substring(0, colon);
+            }
+
+            if (host.length() == 0 || port <= 0 || port > 0xFFFF) {
+                throw new IllegalArgumentException("Bad endpoint " + index + " '" + given + "', expected host or host:port with port 1-65535");
+            }
+
+            // name is resolved by poll thread on connect, never by caller
+            this.index = index;
+            this.host = host;
+            this.port = port;
+
+            String req = keepAlive ?
+                    "GET / HTTP/1.1\r\nHost: " + host + "\r\nConnection: keep-alive\r\n\r\n" :
+                    "GET / HTTP/1.0\r\n";
+            byte[] data = req.getBytes();
+            request = ByteBuffer.allocateDirect(data.length);
+            request.put(data);
+            request.flip();
+        }
+    }
+
+    public MultiComLink(ComLink.ComLinkObserver observer, String[] hosts, int port, boolean keepAlive) {
+        this(observer, hosts, port, keepAlive, ComLink.GET_PERIOD);
+    }
+
+    public MultiComLink(ComLink.ComLinkObserver observer, String[] hosts, int port,
+                        boolean keepAlive, int period) {
+
+        mObserver = observer;
+        mPeriod = period;
+
+        mEndpoints = new Endpoint[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            mEndpoints[i] = new Endpoint(i, hosts[i], port, keepAlive);
+        }
+
+        mPollThread = new Thread(new PollThread());
+        mPollThread.start();
+    }
+
+    public int getEndpointCount() {
+        return mEndpoints.length;
+    }
+
+    public void destroy() {
+
+        mItems.close();
+
+        try {
+            if (mPollThread != null) {
+                mPollThread.interrupt();
+                mPollThread.join();
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    public boolean receive(PortDriver.DataItem frame) {
+        return mItems.take(frame);
+    }
+
+    public void setListener(Runnable listener) {
+        mItems.setListener(listener);
+    }
+
+    public int receive(PortDriver.DataItem[] items, long timeout) {
+        return mItems.drain(items, timeout);
+    }
+
+    private void start(Endpoint ep, long now) throws IOException {
+
+        ep.rxLen = 0;
+        ep.request.rewind();
+        ep.deadline = now + SimpleHttpReq.REQUEST_TIMEOUT;
+
+        if (ep.channel != null && ep.channel.isConnected()) {
+            ep.state = STATE_SENDING;
+            ep.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        // resolved for every new connection, so changed or late DNS entries are picked up
+        InetSocketAddress address = new InetSocketAddress(ep.host, ep.port);
+        if (address.isUnresolved()) {
+            throw new IOException("Cannot resolve " + ep.host);
+        }
+
+        ep.channel = SocketChannel.open();
+        ep.channel.configureBlocking(false);
+        ep.key = ep.channel.register(mSelector, 0, ep);
+
+        if (ep.channel.connect(address)) {
+            ep.state = STATE_SENDING;
+            ep.key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            ep.state = STATE_CONNECTING;
+            ep.key.interestOps(SelectionKey.OP_CONNECT);
+        }
+    }
+
+    private void handle(Endpoint ep, long now) throws IOException {
+
+        if (ep.state == STATE_CONNECTING && ep.key.isConnectable()) {
+            ep.channel.finishConnect();
+            ep.state = STATE_SENDING;
+            ep.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        if (ep.state == STATE_SENDING && ep.key.isWritable()) {
+            ep.channel.write(ep.request);
+            if (!ep.request.hasRemaining()) {
+                ep.state = STATE_RECEIVING;
+                ep.key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
+
+        if (ep.state == STATE_RECEIVING && ep.key.isReadable()) {
+            boolean eof = false;
+            int n;
+
+            mRx.clear();
+            while ((n = ep.channel.read(mRx)) > 0) {
+                mRx.flip();
+                if (ep.rxLen + n > ep.rx.length) {
+                    if (ep.rxLen + n > MAX_RESPONSE) {
+                        throw new IOException("Response too long");
+                    }
+                    byte[] rx = new byte[Math.max(ep.rx.length * 2, ep.rxLen + n)];
+                    System.arraycopy(ep.rx, 0, rx, 0, ep.rxLen);
+                    ep.rx = rx;
+                }
+                mRx.get(ep.rx, ep.rxLen, n);
+                ep.rxLen += n;
+                mRx.clear();
+            }
+            if (n < 0)
+                eof = true;
+
+            int status = HttpFramer.frame(ep.rx, ep.rxLen, eof, mResult);
+            if (status == HttpFramer.MALFORMED) {
+                throw new IOException("Malformed response");
+            }
+
+            if (status == HttpFramer.COMPLETE) {
+                deliver(ep, ep.rx, mResult.bodyOffset, mResult.bodyLength);
+                ep.failures = 0;
+                if (!mResult.persistent || eof) {
+                    disconnect(ep);
+                } else {
+                    ep.key.interestOps(0);
+                }
+                schedule(ep, now);
+            } else if (eof) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    private void deliver(Endpoint ep, byte[] body, int offset, int length) {
+
+        int end = offset + length;
+        long now = System.currentTimeMillis();
+
+        // one frame per line
+        int start = offset;
+        while (start < end) {
+            int stop = start;
+            while (stop < end && body[stop] != '\n')
+                stop++;
+
+            if (stop > start) {
+                int count = FrameDecoder.decode(body, start, stop - start, mFrame);
+                if (count == FrameDecoder.MALFORMED) {
+                    HubLog.e(TAG, "Malformed frame dropped from endpoint " + ep.index);
+                }
+
+                if (count > 0) {
+                    mItems.offer(mFrame, now, ep.index);
+                }
+            }
+
+            start = stop + 1;
+        }
+    }
+
+    private void fail(Endpoint ep, long now, String reason) {
+
+        ep.failures++;
+        HubLog.w(TAG, "Endpoint " + ep.index + " " + ep.host + ":" + ep.port + " failed (" + ep.failures + "): " + reason);
+
+        disconnect(ep);
+        schedule(ep, now);
+    }
+
+    private void disconnect(Endpoint ep) {
+
+        if (ep.key != null) {
+            ep.key.cancel();
+            ep.key = null;
+        }
+
+        try {
+            if (ep.channel != null) {
+                ep.channel.close();
+            }
+        } catch (IOException e) {
+            HubLog.e(TAG, "Problem when closing endpoint " + ep.index + " " + e.toString());
+        }
+
+        ep.channel = null;
+    }
+
+    /* Keeps endpoint on its own slot, skipping slots missed by slow responses */
+    private void schedule(Endpoint ep, long now) {
+
+        ep.state = STATE_IDLE;
+        ep.nextPoll += mPeriod;
+        if (ep.nextPoll <= now) {
+            ep.nextPoll += ((now - ep.nextPoll) / mPeriod + 1) * mPeriod;
+        }
+    }
+
+    private class PollThread implements Runnable {
+
+        @Override
+        public void run() {
+
+            try {
+                mSelector = Selector.open();
+            } catch (IOException e) {
+                HubLog.e(TAG, "Problem when opening selector " + e.toString());
+                mObserver.onException(-1);
+                return;
+            }
+
+            // spread requests evenly across period
+            long now = System.currentTimeMillis();
+            for (Endpoint ep : mEndpoints) {
+                ep.nextPoll = now + (long) mPeriod * ep.index / mEndpoints.length;
+            }
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                now = System.currentTimeMillis();
+                long wake = now + mPeriod;
+
+                for (Endpoint ep : mEndpoints) {
+                    if (ep.state == STATE_IDLE && now >= ep.nextPoll) {
+                        try {
+                            start(ep, now);
+                        } catch (IOException e) {
+                            fail(ep, now, e.toString());
+                        } catch (RuntimeException e) {
+                            // eg. UnsupportedAddressTypeException, must not stop other endpoints
+                            fail(ep, now, e.toString());
+                        }
+                    } else if (ep.state != STATE_IDLE && now >= ep.deadline) {
+                        fail(ep, now, "timeout");
+                    }
+
+                    wake = Math.min(wake, ep.state == STATE_IDLE ? ep.nextPoll : ep.deadline);
+                }
+
+                try {
+                    mSelector.select(Math.max(1, wake - now));
+                } catch (IOException e) {
+                    HubLog.e(TAG, "Selector error " + e.toString());
+                    mObserver.onException(-1);
+                    break;
+                }
+
+                now = System.currentTimeMillis();
+
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    Endpoint ep = (Endpoint) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handle(ep, now);
+                        }
+                    } catch (IOException e) {
+                        fail(ep, now, e.toString());
+                    } catch (RuntimeException e) {
+                        fail(ep, now, e.toString());
+                    }
+                }
+            }
+
+            for (Endpoint ep : mEndpoints) {
+                disconnect(ep);
+            }
+
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Endpoints reachable over plain TCP, no radio to bring up first.
+ * Used by gateways where network is managed by the host system.
+ * Hosts are comma separated, each may carry own port as host:port. */
+public class NetDriver extends PortDriver implements ComLink.ComLinkObserver {
+
+    private static final String TAG = "NetDriver";
+
+    public final static String DEVICE_NAME = "NET";
+
+    public final static int DEVICE_PORT = 80;
+
+    private final static boolean KEEP_ALIVE = true;
+
+    private final String[] mHosts;
+
+    private MultiComLink mLink = null;
+
+    public NetDriver(String hosts) {
+        mHosts = hosts != null && !hosts.isEmpty() ? hosts.split(",") : new String[0];
+        for (int i = 0; i < mHosts.length; i++) {
+            mHosts[i] = mHosts[i].trim();
+        }
+
+        setName(DEVICE_NAME);
+    }
+
+    public int getEndpointCount() {
+        return mHosts.length;
+    }
+
+    @Override
+    public void onException(int code) {
+        HubLog.e(TAG, "Link exception " + code);
+    }
+
+    @Override
+    public void onReconnect() {
+        /* MultiComLink reconnects endpoints on its own */
+    }
+
+    @Override
+    public boolean initiate() {
+        super.initiate();
+
+        if (mHosts.length == 0) {
+            HubLog.e(TAG, "No host address found ....");
+            return false;
+        }
+
+        try {
+            mLink = new MultiComLink(this, mHosts, DEVICE_PORT, KEEP_ALIVE);
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            HubLog.e(TAG, "Incorrect host address found .... " + e.getMessage());
+            return false;
+        }
+
+        mIsConnected = true;
+        return true;
+    }
+
+    @Override
+    public void destroy() {
+        if (mLink != null) {
+            mLink.destroy();
+        }
+        mIsConnected = false;
+        super.destroy();
+    }
+
+    @Override
+    public boolean poll(DataItem frame) {
+        return mLink != null && mLink.receive(frame);
+    }
+
+    @Override
+    public boolean setDataListener(Runnable listener) {
+        if (mLink != null) {
+            mLink.setListener(listener);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int poll(DataItem[] items, long timeout) {
+        return mLink != null ? mLink.receive(items, timeout) : 0;
+    }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/* Everything core needs from the system it runs on: logging, a main thread
+ * for observers and delayed tasks. Android app ships AndroidPlatform which is
+ * picked up by name, anywhere else plain JVM implementation is used. */
+public abstract class Platform {
+
+    public static final int VERBOSE = 2;  // same priorities as android.util.Log
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final String ANDROID_PLATFORM = "com.sygmi.AndroidPlatform";
+
+    private static Platform gPlatform = null;
+
+    public static synchronized Platform get() {
+        if (gPlatform == null) {
+            gPlatform = find();
+        }
+        return gPlatform;
+    }
+
+    /* Overrides detected platform, call before any core class is used */
+    public static synchronized void set(Platform platform) {
+        gPlatform = platform;
+    }
+
+    private static Platform find() {
+        try {
+            return (Platform) Class.forName(ANDROID_PLATFORM).newInstance();
+        } catch (Exception e) {
+            return new Jvm();
+        }
+    }
+
+    public abstract void log(int priority, String tag, String msg);
+
+    /* Runs tasks one by one on main (UI) thread */
+    public abstract Executor getMainExecutor();
+
+    /* Runs task on main thread after delay ms */
+    public abstract void schedule(Runnable task, long delay);
+
+    /* Headless JVM: one daemon thread plays main thread, log goes to stderr */
+    public static class Jvm extends Platform {
+
+        private static final String LEVELS = "??VDIWE";
+
+        private final PrintStream mOut;
+        private final int mMinPriority;
+
+        private final ScheduledThreadPoolExecutor mMain = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "main-dispatch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        public Jvm() {
+            this(System.err, INFO);
+        }
+
+        public Jvm(PrintStream out, int minPriority) {
+            mOut = out;
+            mMinPriority = minPriority;
+        }
+
+        @Override
+        public void log(int priority, String tag, String msg) {
+            if (priority < mMinPriority)
+                return;
+            char level = priority >= 0 && priority < LEVELS.length() ? LEVELS.charAt(priority) : '?';
+            mOut.println(System.currentTimeMillis() + " " + level + "/" + tag + ": " + msg);
+        }
+
+        @Override
+        public Executor getMainExecutor() {
+            return mMain;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            mMain.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
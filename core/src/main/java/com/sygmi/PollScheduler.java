@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Decides when ComLink sends next request.
+ * Scheduler sees every decoded frame and also estimates how old the reading
+ * carried by the frame is, so samples can be stamped with acquisition time. */
+public abstract class PollScheduler {
+
+    /* Called with every decoded frame, now is hub time in ms */
+    public abstract void onFrame(long now, FrameDecoder.Frame frame);
+
+    /* Delay in ms until next request */
+    public abstract long nextDelay(long now);
+
+    /* Estimated age in ms of the reading carried by the last frame */
+    public abstract long getSampleAge(long now);
+
+    protected static double find(FrameDecoder.Frame frame, char key, double def) {
+        for (int i = 0; i < frame.count; i++) {
+            if (frame.keys[i] == key)
+                return frame.values[i];
+        }
+        return def;
+    }
+
+    /* Time between last read attempt (B) and last successful read (R) */
+    protected static long lag(FrameDecoder.Frame frame) {
+        double boot = find(frame, 'B', -1);
+        double read = find(frame, 'R', -1);
+        if (boot >= 0 && read >= 0 && boot >= read) {
+            return (long) ((boot - read) * 1000);
+        }
+        return 0;
+    }
+
+    /* Constant period, does not follow device */
+    public static final class Fixed extends PollScheduler {
+
+        private final long mPeriod;
+        private long mLag = 0;
+
+        public Fixed(long period) {
+            mPeriod = period;
+        }
+
+        @Override
+        public void onFrame(long now, FrameDecoder.Frame frame) {
+            mLag = lag(frame);
+        }
+
+        @Override
+        public long nextDelay(long now) {
+            return mPeriod;
+        }
+
+        @Override
+        public long getSampleAge(long now) {
+            return mLag;
+        }
+    }
+
+    /* Follows device read cycle.
+     * Device reports time from boot (B) of its last read attempt, so a change
+     * of B means a new reading landed between previous and current request.
+     * Scheduler keeps a window where next reading should land, bisects it with
+     * probe requests and then polls just after its end. Period is learned from
+     * consecutive B values. When device reports error (E=1) or values do not
+     * change, following readings are skipped with growing backoff. */
+    public static final class Adaptive extends PollScheduler {
+
+        public static final long DEFAULT_PERIOD = 2000;
+
+        private static final long MIN_PERIOD = 500;
+        private static final long MAX_PERIOD = 60000;
+        private static final long GUARD = 100;      // margin after predicted landing
+        private static final long PRECISION = 50;   // window width good enough
+        private static final long DRIFT = 10;       // window widening per period
+        private static final long MIN_DELAY = 20;
+        private static final int MAX_BACKOFF = 8;
+
+        private long mPeriod = DEFAULT_PERIOD;
+        private int mBackoff = 1;
+
+        private double mBoot = -1;
+        private double mTemp = Double.NaN;
+        private double mHumid = Double.NaN;
+
+        private long mLastPoll = -1;
+        private long mLanding = -1;   // estimated landing of current reading
+        private long mLo = -1;        // next reading lands in (mLo, mHi]
+        private long mHi = -1;
+        private long mLag = 0;
+
+        public Adaptive() {
+        }
+
+        public Adaptive(long period) {
+            mPeriod = period;
+        }
+
+        public long getPeriod() {
+            return mPeriod;
+        }
+
+        public int getBackoff() {
+            return mBackoff;
+        }
+
+        @Override
+        public void onFrame(long now, FrameDecoder.Frame frame) {
+
+            double boot = find(frame, 'B', -1);
+            mLag = lag(frame);
+
+            if (boot < 0) {
+                // device does not report its cycle, behave like fixed period
+                mLanding = now;
+                mLo = mHi = -1;
+                mLastPoll = now;
+                return;
+            }
+
+            if (boot != mBoot) {
+                long lo = mLastPoll >= 0 ? Math.max(mLastPoll, now - mPeriod) : now - mPeriod;
+                long hi = now;
+                if (mHi >= 0) {
+                    lo = Math.min(Math.max(lo, mLo), now);
+                    hi = Math.max(Math.min(now, mHi), lo);
+                }
+
+                if (mBoot >= 0 && boot > mBoot) {
+                    updatePeriod((long) ((boot - mBoot) * 1000));
+                }
+
+                mBoot = boot;
+                mLanding = (lo + hi) / 2;
+                updateBackoff(frame);
+
+                mLo = lo + mBackoff * mPeriod - DRIFT;
+                mHi = hi + mBackoff * mPeriod + DRIFT;
+            } else if (mHi >= 0 && now >= mHi) {
+                // predicted reading did not come, search again
+                mLo = now;
+                mHi = now + mPeriod;
+            } else if (now > mLo) {
+                mLo = now;
+            }
+
+            mLastPoll = now;
+        }
+
+        @Override
+        public long nextDelay(long now) {
+
+            long target;
+
+            if (mHi < 0) {
+                target = now + mPeriod / 2;
+            } else if (mHi - mLo <= PRECISION) {
+                target = mHi + GUARD;
+            } else {
+                target = (mLo + mHi) / 2;
+            }
+
+            return Math.max(MIN_DELAY, target - now);
+        }
+
+        @Override
+        public long getSampleAge(long now) {
+            return (mLanding >= 0 ? now - mLanding : 0) + mLag;
+        }
+
+        private void updatePeriod(long delta) {
+
+            // skipped readings give multiple of period
+            long k = Math.max(1, Math.round(delta / (double) mPeriod));
+            long sample = delta / k;
+
+            if (sample >= MIN_PERIOD && sample <= MAX_PERIOD) {
+                mPeriod = (3 * mPeriod + sample) / 4;
+            }
+        }
+
+        private void updateBackoff(FrameDecoder.Frame frame) {
+
+            double err = find(frame, 'E', 0);
+            double temp = find(frame, 'T', Double.NaN);
+            double humid = find(frame, 'H', Double.NaN);
+
+            boolean unchanged = temp == mTemp && humid == mHumid;
+
+            if (err != 0 || unchanged) {
+                mBackoff = Math.min(mBackoff * 2, MAX_BACKOFF);
+            } else {
+                mBackoff = 1;
+            }
+
+            mTemp = temp;
+            mHumid = humid;
+        }
+    }
+}
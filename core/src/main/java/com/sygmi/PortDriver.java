@@ -8,24 +8,21 @@
 
 package com.sygmi;
 
-import android.content.Context;
-
 public abstract class PortDriver {
 
     protected String mName = null;
 
-    protected Context mContext = null;
-
     protected boolean mIsConnected = false;
 
     public interface PortDriverMonitor {
         void onException(int code);
+        /* Bring-up progress, see ConnectionMachine states */
+        void onProgress(int state, int attempt, long elapsed);
     }
 
-    public PortDriver(Context context) {
-        mContext = context;
+    public PortDriver() {
     }
-    
+
     protected void setName(String str) {
         mName = str;
     }
@@ -46,10 +43,31 @@ public abstract class PortDriver {
         return false;
     }
 
+    /* Batch variant, waits up to timeout ms (negative waits forever) for data
+     * and fills items with all pending samples. Returns number of items filled,
+     * 0 on timeout or when driver was destroyed. Drivers without own queue
+     * fall back to single item poll, which ignores timeout. */
+    public int poll(DataItem[] items, long timeout) {
+        if (items.length > 0 && poll(items[0])) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /* Listener is run on producer thread whenever new data can be polled,
+     * so caller does not need to block in poll(). Returns false when driver
+     * cannot signal and has to be polled with timeout. */
+    public boolean setDataListener(Runnable listener) {
+        return false;
+    }
+
     public static class DataItem {
 
         public String key = null;
+        public int keyId = 0;  // key character code, see FrameDecoder
         public double value;
+        public int endpoint = 0;  // index of source endpoint
+        public long timestamp = 0;  // ms, estimated time of device reading
 
 	    public DataItem() {
 
@@ -63,7 +81,10 @@ public abstract class PortDriver {
         public void clone(DataItem item) {
 
             this.key = item.key;
+            this.keyId = item.keyId;
             this.value = item.value; // todo: copy ?
+            this.endpoint = item.endpoint;
+            this.timestamp = item.timestamp;
         }
 
     }
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Known transports described by metadata only. Driver class is resolved and
+ * constructed when its type is selected, so unused transports never touch
+ * their system services. New transports register own provider, either as
+ * subclass or by class name, without editing the service. */
+public final class PortDriverRegistry {
+
+    private static final String TAG = "PortDriverRegistry";
+
+    public static final int DEVICE_WIFI = 0;
+    public static final int DEVICE_BLUETOOTH = 1;
+    public static final int DEVICE_NET = 2;  // plain TCP endpoints, no radio bring-up
+    public static final int DEVICE_FAKE = 0xFF;
+
+    public static final int CAP_STREAMING = 0x01;       // device pushes frames over open stream
+    public static final int CAP_BATCH = 0x02;           // poll(DataItem[], timeout) drains many samples
+    public static final int CAP_MULTI_ENDPOINT = 0x04;  // one driver serves many endpoints
+    public static final int CAP_LISTENER = 0x08;        // setDataListener() signals new data
+
+    private static final List<Provider> gProviders = new ArrayList<Provider>();
+
+    static {
+        // radio drivers live in the app, elsewhere they just fail to load
+        register(new ClassProvider(DEVICE_WIFI, "WIFI", "com.sygmi.WifiDriver",
+                CAP_STREAMING | CAP_BATCH | CAP_MULTI_ENDPOINT | CAP_LISTENER));
+        register(new ClassProvider(DEVICE_BLUETOOTH, "BT", "com.sygmi.BluetoothDriver",
+                CAP_BATCH | CAP_LISTENER));
+        register(new ClassProvider(DEVICE_NET, "NET", "com.sygmi.NetDriver",
+                CAP_BATCH | CAP_MULTI_ENDPOINT | CAP_LISTENER));
+        register(new ClassProvider(DEVICE_FAKE, "FAKE", "com.sygmi.FakeDevice",
+                CAP_BATCH | CAP_LISTENER));
+    }
+
+    public static abstract class Provider {
+
+        private final int mType;
+        private final String mName;
+        private final int mCapabilities;
+
+        public Provider(int type, String name, int capabilities) {
+            mType = type;
+            mName = name;
+            mCapabilities = capabilities;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getCapabilities() {
+            return mCapabilities;
+        }
+
+        public boolean has(int capability) {
+            return (mCapabilities & capability) == capability;
+        }
+
+        /* Called on pool thread for every hosted device of this type.
+         * Context is platform specific (Android Context in the app, may be
+         * null elsewhere), wasEnabled tells whether transport was on before
+         * service started, auxData is transport specific (eg. comma separated
+         * host list). */
+        public abstract PortDriver create(Object context, boolean wasEnabled, String auxData);
+    }
+
+    /* Loads driver class by name on first use. Picks public constructor with
+     * most parameters that can all be filled: context for its own type,
+     * wasEnabled for boolean and auxData for String. */
+    public static class ClassProvider extends Provider {
+
+        private final String mClassName;
+        private Class<?> mClass = null;
+
+        public ClassProvider(int type, String name, String className, int capabilities) {
+            super(type, name, capabilities);
+            mClassName = className;
+        }
+
+        @Override
+        public PortDriver create(Object context, boolean wasEnabled, String auxData) {
+
+            try {
+                Constructor<?> best = null;
+                Object[] bestArgs = null;
+
+                for (Constructor<?> ctor : resolve().getConstructors()) {
+                    Object[] args = bind(ctor.getParameterTypes(), context, wasEnabled, auxData);
+                    if (args != null && (bestArgs == null || args.length > bestArgs.length)) {
+                        best = ctor;
+                        bestArgs = args;
+                    }
+                }
+
+                if (best == null) {
+                    HubLog.e(TAG, "Driver " + mClassName + " has no usable constructor");
+                    return null;
+                }
+                return (PortDriver) best.newInstance(bestArgs);
+            } catch (InvocationTargetException e) {
+                HubLog.e(TAG, "Driver " + mClassName + " failed " + e.getCause());
+            } catch (ClassCastException e) {
+                HubLog.e(TAG, "Class " + mClassName + " is not a PortDriver");
+            } catch (Exception e) {
+                HubLog.e(TAG, "Driver " + mClassName + " not loadable " + e.toString());
+            }
+            return null;
+        }
+
+        private synchronized Class<?> resolve() throws ClassNotFoundException {
+            if (mClass == null) {
+                mClass = Class.forName(mClassName);
+            }
+            return mClass;
+        }
+
+        private static Object[] bind(Class<?>[] types, Object context, boolean wasEnabled, String auxData) {
+
+            Object[] args = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == boolean.class) {
+                    args[i] = wasEnabled;
+                } else if (types[i] == String.class) {
+                    args[i] = auxData;
+                } else if (context != null && types[i].isInstance(context)) {
+                    args[i] = context;
+                } else {
+                    return null;
+                }
+            }
+            return args;
+        }
+    }
+
+    private PortDriverRegistry() {
+    }
+
+    /* Replaces provider already registered for the same type */
+    public static synchronized void register(Provider provider) {
+
+        for (int i = 0; i < gProviders.size(); i++) {
+            if (gProviders.get(i).getType() == provider.getType()) {
+                gProviders.set(i, provider);
+                return;
+            }
+        }
+        gProviders.add(provider);
+    }
+
+    public static synchronized void unregister(int type) {
+
+        for (int i = 0; i < gProviders.size(); i++) {
+            if (gProviders.get(i).getType() == type) {
+                gProviders.remove(i);
+                return;
+            }
+        }
+    }
+
+    /* Provider of given type, null if none */
+    public static synchronized Provider get(int type) {
+
+        for (Provider provider : gProviders) {
+            if (provider.getType() == type)
+                return provider;
+        }
+        return null;
+    }
+
+    public static synchronized List<Provider> getProviders() {
+        return new ArrayList<Provider>(gProviders);
+    }
+
+    /* Driver of given type, null if type is unknown or driver cannot be created */
+    public static PortDriver create(int type, Object context, boolean wasEnabled, String auxData) {
+
+        Provider provider = get(type);
+        if (provider == null) {
+            HubLog.e(TAG, "No driver provider for type " + type);
+            return null;
+        }
+        return provider.create(context, wasEnabled, auxData);
+    }
+}
@@ -0,0 +1,358 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Rolling statistics of every sensor over few time windows (1 min, 15 min
+ * and 24 h by default), raw samples are never stored.
+ * Window is split into SLOTS time slots, each holding count, Welford mean and
+ * M2, min, max and fixed-bin histogram of its samples. Sample only updates
+ * current slot, O(1) and allocation free. When slot closes, its extremes enter
+ * monotonic min/max deques, oldest slot leaves the window and new immutable
+ * Snapshot is published. Readers take snapshots from volatile field, so they
+ * never lock nor block ingest thread. Snapshots lag by at most one slot
+ * (2 s, 30 s and 48 min by default).
+ * Ingest (add) must come from one thread, eg. the one running DataParser.
+ * Statistics are kept per key, so samples of one source (endpoint and
+ * device) only should be added. */
+public final class RollingStats {
+
+    public static final long[] WINDOWS_DEFAULT = { 60 * 1000L, 15 * 60 * 1000L, 24 * 60 * 60 * 1000L };
+
+    public static final int SLOTS = 30;
+    public static final int BINS = 128;  // histogram resolution is sensor range / BINS
+
+    public static final long EWMA_TAU_DEFAULT = 60 * 1000L;  // ms, time constant
+
+    /* Sensors with range wider than this (counters, status) get no histogram */
+    private static final double MAX_HISTOGRAM_RANGE = 1e6;
+
+    private final SensorSchema mSchema;
+    private final long[] mWindows;
+    private final long mTau;
+
+    /* Indexed by sensor id, grown when schema gets new sensors */
+    private volatile Sensor[] mSensors = new Sensor[0];
+
+    public static final class Snapshot {
+
+        public final int key;
+        public final long window;  // ms
+        public final long from;    // ms, covered time is [from, to)
+        public final long to;
+        public final long count;
+        public final double min;
+        public final double max;
+        public final double mean;
+        public final double variance;
+        public final double ewma;
+        public final double last;
+
+        private final int[] mHistogram;
+        private final double mLow;
+        private final double mBinWidth;
+
+        Snapshot(int key, long window, long from, long to, long count, double min, double max,
+                 double mean, double variance, double ewma, double last,
+                 int[] histogram, double low, double binWidth) {
+            this.key = key;
+            this.window = window;
+            this.from = from;
+            this.to = to;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.variance = variance;
+            this.ewma = ewma;
+            this.last = last;
+            mHistogram = histogram;
+            mLow = low;
+            mBinWidth = binWidth;
+        }
+
+        public double stddev() {
+            return Math.sqrt(variance);
+        }
+
+        /* Approximate q-quantile (0..1), interpolated inside histogram bin.
+         * NaN for empty window or sensors without histogram. */
+        public double quantile(double q) {
+
+            if (count == 0 || mHistogram == null)
+                return Double.NaN;
+
+            double rank = Math.max(0.0, Math.min(1.0, q)) * count;
+            long seen = 0;
+            for (int i = 0; i < mHistogram.length; i++) {
+                int n = mHistogram[i];
+                if (n > 0 && seen + n >= rank) {
+                    double value = mLow + mBinWidth * (i + (rank - seen) / n);
+                    return Math.max(min, Math.min(max, value));
+                }
+                seen += n;
+            }
+            return max;
+        }
+    }
+
+    /* One window of one sensor, ingest thread only apart of mSnapshot */
+    private static final class Window {
+
+        final long length;
+        final long slotLength;
+
+        // per slot state, struct of arrays
+        final long[] start = new long[SLOTS];
+        final long[] count = new long[SLOTS];
+        final double[] mean = new double[SLOTS];
+        final double[] m2 = new double[SLOTS];
+        final double[] min = new double[SLOTS];
+        final double[] max = new double[SLOTS];
+        final int[] bins;     // SLOTS x BINS, null without histogram
+        final int[] total;    // window histogram, sum of live slot bins
+
+        // monotonic deques of closed slot indices, ring buffers
+        final int[] minQueue = new int[SLOTS];
+        final int[] maxQueue = new int[SLOTS];
+        int minHead = 0, minSize = 0;
+        int maxHead = 0, maxSize = 0;
+
+        int current = -1;
+
+        volatile Snapshot snapshot = null;
+
+        Window(long length, boolean histogram) {
+            this.length = length;
+            this.slotLength = Math.max(1, length / SLOTS);
+            bins = histogram ? new int[SLOTS * BINS] : null;
+            total = histogram ? new int[BINS] : null;
+        }
+    }
+
+    private static final class Sensor {
+
+        final SensorSchema.Sensor sensor;
+        final Window[] windows;
+        final double low;
+        final double binWidth;
+
+        long lastTime = 0;
+        volatile double last = Double.NaN;
+        volatile double ewma = Double.NaN;
+
+        Sensor(SensorSchema.Sensor sensor, long[] lengths) {
+            this.sensor = sensor;
+
+            boolean histogram = sensor.max - sensor.min <= MAX_HISTOGRAM_RANGE;
+            low = sensor.min;
+            binWidth = histogram ? (sensor.max - sensor.min) / BINS : 0.0;
+
+            windows = new Window[lengths.length];
+            for (int i = 0; i < lengths.length; i++) {
+                windows[i] = new Window(lengths[i], histogram);
+            }
+        }
+    }
+
+    public RollingStats(SensorSchema schema) {
+        this(schema, WINDOWS_DEFAULT, EWMA_TAU_DEFAULT);
+    }
+
+    public RollingStats(SensorSchema schema, long[] windows, long tau) {
+        mSchema = schema;
+        mWindows = windows.clone();
+        mTau = tau;
+    }
+
+    public int getWindowCount() {
+        return mWindows.length;
+    }
+
+    public long getWindow(int window) {
+        return mWindows[window];
+    }
+
+    /* Feeds samples of given endpoint and device, others are skipped */
+    public void add(SampleBatch batch, int endpoint, int device) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getEndpoint(i) == endpoint && batch.getDevice(i) == device)
+                add(batch.getKey(i), batch.getValue(i), batch.getTimestamp(i));
+        }
+    }
+
+    /* Feeds one sample taken at time (ms), unknown keys are ignored */
+    public void add(int key, double value, long time) {
+
+        int id = mSchema.idOf(key);
+        if (id == SensorSchema.NO_ID || Double.isNaN(value))
+            return;
+
+        Sensor[] sensors = mSensors;
+        if (id >= sensors.length) {
+            sensors = grow();
+        }
+
+        Sensor s = sensors[id];
+        if (Double.isNaN(s.ewma)) {
+            s.ewma = value;
+        } else if (time > s.lastTime) {
+            double alpha = 1.0 - Math.exp(-(double) (time - s.lastTime) / mTau);
+            s.ewma = s.ewma + alpha * (value - s.ewma);
+        }
+        s.last = value;
+        s.lastTime = Math.max(s.lastTime, time);
+
+        int bin = -1;
+        if (s.binWidth > 0) {
+            bin = (int) ((value - s.low) / s.binWidth);
+            bin = Math.max(0, Math.min(BINS - 1, bin));
+        }
+
+        for (Window w : s.windows) {
+            long start = time - time % w.slotLength;
+            if (w.current < 0 || start > w.start[w.current]) {
+                roll(s, w, start);
+            }
+            // late sample goes to current slot
+
+            int i = w.current;
+            long n = ++w.count[i];
+            double delta = value - w.mean[i];
+            w.mean[i] += delta / n;
+            w.m2[i] += delta * (value - w.mean[i]);
+            if (value < w.min[i])
+                w.min[i] = value;
+            if (value > w.max[i])
+                w.max[i] = value;
+
+            if (bin >= 0) {
+                w.bins[i * BINS + bin]++;
+                w.total[bin]++;
+            }
+        }
+    }
+
+    /* Latest published statistics of key over given window index, null if none yet */
+    public Snapshot getSnapshot(int key, int window) {
+
+        int id = mSchema.idOf(key);
+        Sensor[] sensors = mSensors;
+        if (id == SensorSchema.NO_ID || id >= sensors.length || sensors[id] == null)
+            return null;
+        return sensors[id].windows[window].snapshot;
+    }
+
+    /* Current EWMA of key, NaN if none, cheaper than snapshot */
+    public double getEwma(int key) {
+
+        int id = mSchema.idOf(key);
+        Sensor[] sensors = mSensors;
+        if (id == SensorSchema.NO_ID || id >= sensors.length || sensors[id] == null)
+            return Double.NaN;
+        return sensors[id].ewma;
+    }
+
+    private Sensor[] grow() {
+
+        Sensor[] old = mSensors;
+        Sensor[] sensors = new Sensor[mSchema.size()];
+        System.arraycopy(old, 0, sensors, 0, old.length);
+        for (int id = old.length; id < sensors.length; id++) {
+            sensors[id] = new Sensor(mSchema.get(id), mWindows);
+        }
+        mSensors = sensors;
+        return sensors;
+    }
+
+    /* Closes current slot, moves window to slot starting at given time and publishes snapshot */
+    private void roll(Sensor s, Window w, long start) {
+
+        if (w.current >= 0) {
+            int closed = w.current;
+            if (w.count[closed] > 0) {
+                // monotonic deques, front holds window extreme
+                while (w.minSize > 0 && w.min[w.minQueue[(w.minHead + w.minSize - 1) % SLOTS]] >= w.min[closed])
+                    w.minSize--;
+                w.minQueue[(w.minHead + w.minSize++) % SLOTS] = closed;
+
+                while (w.maxSize > 0 && w.max[w.maxQueue[(w.maxHead + w.maxSize - 1) % SLOTS]] <= w.max[closed])
+                    w.maxSize--;
+                w.maxQueue[(w.maxHead + w.maxSize++) % SLOTS] = closed;
+            }
+        }
+
+        // slots starting before this leave the window, including one about to be reused
+        long oldest = start - w.length + w.slotLength;
+
+        while (w.minSize > 0 && w.start[w.minQueue[w.minHead]] < oldest) {
+            w.minHead = (w.minHead + 1) % SLOTS;
+            w.minSize--;
+        }
+        while (w.maxSize > 0 && w.start[w.maxQueue[w.maxHead]] < oldest) {
+            w.maxHead = (w.maxHead + 1) % SLOTS;
+            w.maxSize--;
+        }
+
+        for (int i = 0; i < SLOTS; i++) {
+            if (w.count[i] > 0 && w.start[i] < oldest) {
+                clear(w, i);
+            }
+        }
+
+        int next = (int) ((start / w.slotLength) % SLOTS);
+        clear(w, next);
+        w.start[next] = start;
+        w.current = next;
+
+        publish(s, w, start);
+    }
+
+    private static void clear(Window w, int i) {
+
+        if (w.bins != null && w.count[i] > 0) {
+            int base = i * BINS;
+            for (int b = 0; b < BINS; b++) {
+                w.total[b] -= w.bins[base + b];
+                w.bins[base + b] = 0;
+            }
+        }
+        w.count[i] = 0;
+        w.mean[i] = 0.0;
+        w.m2[i] = 0.0;
+        w.min[i] = Double.POSITIVE_INFINITY;
+        w.max[i] = Double.NEGATIVE_INFINITY;
+    }
+
+    /* Merges closed slots (Chan et al. parallel variance) into new snapshot */
+    private void publish(Sensor s, Window w, long to) {
+
+        long n = 0;
+        double mean = 0.0;
+        double m2 = 0.0;
+
+        for (int i = 0; i < SLOTS; i++) {
+            long nb = w.count[i];
+            if (nb == 0 || i == w.current)
+                continue;
+
+            double delta = w.mean[i] - mean;
+            long total = n + nb;
+            mean += delta * nb / total;
+            m2 += w.m2[i] + delta * delta * n * nb / total;
+            n = total;
+        }
+
+        double min = w.minSize > 0 ? w.min[w.minQueue[w.minHead]] : Double.NaN;
+        double max = w.maxSize > 0 ? w.max[w.maxQueue[w.maxHead]] : Double.NaN;
+
+        w.snapshot = new Snapshot(s.sensor.key, w.length, to - w.length + w.slotLength, to, n,
+                min, max, n > 0 ? mean : Double.NaN, n > 1 ? m2 / (n - 1) : 0.0,
+                s.ewma, s.last, w.total != null ? w.total.clone() : null, s.low, s.binWidth);
+    }
+}
@@ -0,0 +1,703 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/* Continuous aggregation of samples into time buckets of few resolutions
+ * (tiers, 1 min, 1 h and 1 day by default). Bucket keeps min, max, sum,
+ * count and last value. Every sample updates open bucket of each tier, when
+ * sample falls into later bucket the open one is sealed: it enters in-memory
+ * ring of its tier and is appended to tier file by writer thread. Each tier
+ * keeps its own retention, in memory and in file, which is compacted once it
+ * holds twice as many buckets as retained.
+ * Queries over long ranges read the coarsest tier still giving requested
+ * number of points, see selectTier(), so their cost does not depend on how
+ * much raw history exists.
+ * Buckets are kept per series, ie. key of one endpoint of one device, like
+ * in SeriesArchive. Only gauge sensors are rolled up, aggregates of status
+ * and monotonic sensors mean nothing. Rings grow with history up to their
+ * retention, so fresh rollups take little memory.
+ * Samples come from one thread (service archive thread), queries from any. */
+public final class Rollups {
+
+    private static final String TAG = "Rollups";
+
+    public static final long[] RESOLUTIONS_DEFAULT = { 60 * 1000L, 3600 * 1000L, 24 * 3600 * 1000L };
+
+    /* 30 days of minutes, 400 days of hours, 10 years of days */
+    public static final long[] RETENTIONS_DEFAULT = { 30 * 24 * 3600 * 1000L, 400 * 24 * 3600 * 1000L,
+            3650 * 24 * 3600 * 1000L };
+
+    /* No tier dense enough, raw samples should be read */
+    public static final int TIER_RAW = -1;
+
+    private static final int MAGIC = 0x494F5452;  // "IOTR"
+    private static final int RECORD_SIZE = 64;
+
+    /* Buckets ring starts with, doubled when full until retention is reached */
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final SensorSchema mSchema;
+    private final File mDir;
+    private final long[] mResolutions;
+    private final long[] mRetentions;
+
+    private final ExecutorService mWriter;
+    private final RandomAccessFile[] mFiles;
+    private final long[] mWritten;  // records in tier file, writer only
+
+    private volatile Series[] mSeries = new Series[0];
+    private Series mLastAdded = null;  // ingest thread only
+
+    private volatile long mLate = 0;
+
+    public interface Visitor {
+        void onBucket(long start, long count, double min, double max, double sum, double last);
+    }
+
+    /* Sealed buckets of one series and tier, ring of primitive arrays */
+    private static final class Tier {
+
+        final int limit;  // retained buckets
+        int capacity;
+        long[] start;
+        long[] count;
+        double[] min;
+        double[] max;
+        double[] sum;
+        double[] last;
+        long head = 0;  // buckets ever sealed
+
+        // open bucket, written by ingest thread under lock
+        long openStart = Long.MIN_VALUE;
+        long openCount = 0;
+        double openMin;
+        double openMax;
+        double openSum;
+        double openLast;
+
+        Tier(int limit) {
+            this.limit = limit;
+            allocate(Math.min(limit, INITIAL_CAPACITY));
+        }
+
+        private void allocate(int size) {
+            capacity = size;
+            start = new long[size];
+            count = new long[size];
+            min = new double[size];
+            max = new double[size];
+            sum = new double[size];
+            last = new double[size];
+        }
+
+        /* Doubles full ring unless it holds whole retention already */
+        private void grow() {
+
+            if (head < capacity || capacity == limit)
+                return;
+
+            long[] oldStart = start, oldCount = count;
+            double[] oldMin = min, oldMax = max, oldSum = sum, oldLast = last;
+            int oldCapacity = capacity;
+            allocate((int) Math.min(limit, 2L * capacity));
+
+            for (long q = head - oldCapacity; q < head; q++) {
+                int from = (int) (q % oldCapacity);
+                int to = (int) (q % capacity);
+                start[to] = oldStart[from];
+                count[to] = oldCount[from];
+                min[to] = oldMin[from];
+                max[to] = oldMax[from];
+                sum[to] = oldSum[from];
+                last[to] = oldLast[from];
+            }
+        }
+
+        /* Appends bucket, one with same start as newest replaces it */
+        synchronized void seal(long s, long n, double lo, double hi, double total, double v) {
+            int i;
+            if (head > 0 && start[(int) ((head - 1) % capacity)] == s) {
+                i = (int) ((head - 1) % capacity);
+            } else if (head > 0 && start[(int) ((head - 1) % capacity)] > s) {
+                return;
+            } else {
+                grow();
+                i = (int) (head % capacity);
+                head++;
+            }
+            start[i] = s;
+            count[i] = n;
+            min[i] = lo;
+            max[i] = hi;
+            sum[i] = total;
+            last[i] = v;
+        }
+
+        /* Takes newest sealed bucket back as open one if it starts at s */
+        synchronized boolean reopen(long s) {
+            if (head == 0)
+                return false;
+            int i = (int) ((head - 1) % capacity);
+            if (start[i] != s)
+                return false;
+            openStart = s;
+            openCount = count[i];
+            openMin = min[i];
+            openMax = max[i];
+            openSum = sum[i];
+            openLast = last[i];
+            head--;
+            return true;
+        }
+
+        synchronized long newest() {
+            return head > 0 ? start[(int) ((head - 1) % capacity)] : Long.MIN_VALUE;
+        }
+    }
+
+    private static final class Series {
+
+        final int key;
+        final int endpoint;
+        final int device;
+        final SensorSchema.Sensor sensor;
+        final Tier[] tiers;
+
+        Series(SensorSchema.Sensor sensor, int endpoint, int device, Tier[] tiers) {
+            this.sensor = sensor;
+            this.key = sensor.key;
+            this.endpoint = endpoint;
+            this.device = device;
+            this.tiers = tiers;
+        }
+    }
+
+    /* In memory only rollups */
+    public Rollups(SensorSchema schema) {
+        this(schema, null, RESOLUTIONS_DEFAULT, RETENTIONS_DEFAULT);
+    }
+
+    /* Rollups persisted in given directory, call open() before feeding samples */
+    public Rollups(SensorSchema schema, File dir) {
+        this(schema, dir, RESOLUTIONS_DEFAULT, RETENTIONS_DEFAULT);
+    }
+
+    public Rollups(SensorSchema schema, File dir, long[] resolutions, long[] retentions) {
+
+        if (resolutions.length != retentions.length) {
+            throw new IllegalArgumentException("Retention for every resolution needed");
+        }
+        for (int i = 1; i < resolutions.length; i++) {
+            if (resolutions[i] <= resolutions[i - 1]) {
+                throw new IllegalArgumentException("Resolutions must grow");
+            }
+        }
+
+        mSchema = schema;
+        mDir = dir;
+        mResolutions = resolutions.clone();
+        mRetentions = retentions.clone();
+        mFiles = new RandomAccessFile[resolutions.length];
+        mWritten = new long[resolutions.length];
+        mWriter = dir != null ? Executors.newSingleThreadExecutor() : null;
+    }
+
+    public int getTierCount() {
+        return mResolutions.length;
+    }
+
+    public long getResolution(int tier) {
+        return mResolutions[tier];
+    }
+
+    public long getRetention(int tier) {
+        return mRetentions[tier];
+    }
+
+    /* Samples dropped because their bucket was already sealed */
+    public long getLate() {
+        return mLate;
+    }
+
+    /* Loads sealed buckets of every tier, torn record at file end is cut off */
+    public synchronized void open() throws IOException {
+
+        if (mDir == null || mFiles[0] != null)
+            return;
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+
+        for (int t = 0; t < mResolutions.length; t++) {
+            File file = file(t);
+            long valid = load(t, file);
+
+            mFiles[t] = new RandomAccessFile(file, "rw");
+            if (mFiles[t].length() > valid) {
+                HubLog.w(TAG, "Dropping " + (mFiles[t].length() - valid) + " torn bytes of " + file.getName());
+                mFiles[t].setLength(valid);
+            }
+            mFiles[t].seek(valid);
+            mWritten[t] = valid / RECORD_SIZE;
+        }
+
+        for (int t = 0; t < mResolutions.length; t++) {
+            if (isBloated(t)) {
+                compact(t);
+            }
+        }
+    }
+
+    /* Seals open buckets, so restart does not lose them, and stops writer */
+    public void close() {
+
+        for (Series s : mSeries) {
+            for (int t = 0; t < mResolutions.length; t++) {
+                Tier tier = s.tiers[t];
+                synchronized (tier) {
+                    if (tier.openCount > 0) {
+                        seal(s, t, tier);
+                        tier.openCount = 0;
+                        tier.openStart = Long.MIN_VALUE;
+                    }
+                }
+            }
+        }
+
+        if (mWriter == null)
+            return;
+
+        mWriter.shutdown();
+        try {
+            if (!mWriter.awaitTermination(SimpleHttpReq.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                HubLog.w(TAG, "Writer did not terminate in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            for (int t = 0; t < mFiles.length; t++) {
+                if (mFiles[t] != null) {
+                    try {
+                        mFiles[t].close();
+                    } catch (IOException e) {
+                        HubLog.e(TAG, "Problem when closing tier file " + e.toString());
+                    }
+                    mFiles[t] = null;
+                }
+            }
+        }
+    }
+
+    public void add(SampleBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.getKey(i), batch.getEndpoint(i), batch.getDevice(i),
+                    batch.getTimestamp(i), batch.getValue(i));
+        }
+    }
+
+    /* Feeds one sample taken at time (ms), samples of unknown or not gauge
+     * sensors and ones out of sensor range are ignored */
+    public void add(int key, int endpoint, int device, long time, double value) {
+
+        Series s = mLastAdded;
+        if (s == null || s.key != key || s.endpoint != endpoint || s.device != device) {
+            int id = mSchema.idOf(key);
+            if (id == SensorSchema.NO_ID || mSchema.get(id).kind != SensorSchema.KIND_GAUGE)
+                return;
+            s = getOrCreate(key, endpoint, device);
+            mLastAdded = s;
+        }
+        if (!s.sensor.isValid(value))
+            return;
+
+        for (int t = 0; t < mResolutions.length; t++) {
+            Tier tier = s.tiers[t];
+            long start = time - ((time % mResolutions[t]) + mResolutions[t]) % mResolutions[t];
+
+            synchronized (tier) {
+                if (start != tier.openStart) {
+                    // after restart newest bucket read from file is continued
+                    if (start < tier.openStart || start <= tier.newest() && !tier.reopen(start)) {
+                        mLate++;
+                        continue;
+                    }
+                    if (start != tier.openStart) {
+                        if (tier.openCount > 0) {
+                            seal(s, t, tier);
+                        }
+                        tier.openStart = start;
+                        tier.openCount = 0;
+                    }
+                }
+
+                if (tier.openCount == 0) {
+                    tier.openMin = value;
+                    tier.openMax = value;
+                    tier.openSum = 0.0;
+                } else {
+                    if (value < tier.openMin)
+                        tier.openMin = value;
+                    if (value > tier.openMax)
+                        tier.openMax = value;
+                }
+                tier.openSum += value;
+                tier.openLast = value;
+                tier.openCount++;
+            }
+        }
+    }
+
+    /* Coarsest tier giving at least given number of buckets over [from, to)
+     * and still retaining from, TIER_RAW when even the finest one is too coarse */
+    public int selectTier(long from, long to, int points, long now) {
+
+        for (int t = mResolutions.length - 1; t >= 0; t--) {
+            if ((to - from) / mResolutions[t] >= points && from >= now - mRetentions[t])
+                return t;
+        }
+        // sparse but covering tier beats raw samples already dropped
+        for (int t = 0; t < mResolutions.length; t++) {
+            if ((to - from) / mResolutions[t] >= points)
+                return t;
+        }
+        return TIER_RAW;
+    }
+
+    /* Coarsest tier of series giving at least given number of buckets over
+     * [from, to), TIER_RAW for series not rolled up or when even the finest
+     * tier is too coarse. Tier may not reach back to from, see getOldest(). */
+    public int selectTier(int key, int endpoint, int device, long from, long to, int points) {
+
+        if (get(key, endpoint, device) == null)
+            return TIER_RAW;
+
+        for (int t = mResolutions.length - 1; t >= 0; t--) {
+            if ((to - from) / mResolutions[t] >= points)
+                return t;
+        }
+        return TIER_RAW;
+    }
+
+    /* Start of oldest bucket of series in tier, sealed or open,
+     * Long.MAX_VALUE when there is none */
+    public long getOldest(int key, int endpoint, int device, int tier) {
+        Series s = get(key, endpoint, device);
+        return s != null ? getOldest(s, tier) : Long.MAX_VALUE;
+    }
+
+    private static long getOldest(Series s, int tier) {
+        Tier r = s.tiers[tier];
+        synchronized (r) {
+            if (r.head > 0)
+                return r.start[(int) (Math.max(0, r.head - r.capacity) % r.capacity)];
+            return r.openCount > 0 ? r.openStart : Long.MAX_VALUE;
+        }
+    }
+
+    /* Visits sealed buckets of series and tier starting in [from, to), oldest first */
+    public void query(int key, int endpoint, int device, int tier, long from, long to, Visitor visitor) {
+
+        Series s = get(key, endpoint, device);
+        if (s == null)
+            return;
+        Tier r = s.tiers[tier];
+
+        // copy under lock, visit outside it
+        long[] start;
+        long[] count;
+        double[] min, max, sum, last;
+        int n = 0;
+        synchronized (r) {
+            long oldest = Math.max(0, r.head - r.capacity);
+            long lo = lowerBound(r, oldest, r.head, from);
+            long hi = lowerBound(r, lo, r.head, to);
+            int size = (int) (hi - lo);
+            start = new long[size];
+            count = new long[size];
+            min = new double[size];
+            max = new double[size];
+            sum = new double[size];
+            last = new double[size];
+            for (long q = lo; q < hi; q++) {
+                int i = (int) (q % r.capacity);
+                start[n] = r.start[i];
+                count[n] = r.count[i];
+                min[n] = r.min[i];
+                max[n] = r.max[i];
+                sum[n] = r.sum[i];
+                last[n] = r.last[i];
+                n++;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            visitor.onBucket(start[i], count[i], min[i], max[i], sum[i], last[i]);
+        }
+    }
+
+    /* Open bucket of series and tier, includes samples not yet sealed */
+    public void queryOpen(int key, int endpoint, int device, int tier, Visitor visitor) {
+
+        Series s = get(key, endpoint, device);
+        if (s == null)
+            return;
+        Tier r = s.tiers[tier];
+        long start, count;
+        double min, max, sum, last;
+        synchronized (r) {
+            start = r.openStart;
+            count = r.openCount;
+            min = r.openMin;
+            max = r.openMax;
+            sum = r.openSum;
+            last = r.openLast;
+        }
+        if (count > 0) {
+            visitor.onBucket(start, count, min, max, sum, last);
+        }
+    }
+
+    private static long lowerBound(Tier r, long lo, long hi, long t) {
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (r.start[(int) (mid % r.capacity)] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private Series get(int key, int endpoint, int device) {
+        for (Series s : mSeries) {
+            if (s.key == key && s.endpoint == endpoint && s.device == device)
+                return s;
+        }
+        return null;
+    }
+
+    private synchronized Series getOrCreate(int key, int endpoint, int device) {
+
+        Series s = get(key, endpoint, device);
+        if (s != null)
+            return s;
+
+        Tier[] tiers = new Tier[mResolutions.length];
+        for (int t = 0; t < tiers.length; t++) {
+            tiers[t] = new Tier(retained(t));
+        }
+        s = new Series(mSchema.get(mSchema.idOf(key)), endpoint, device, tiers);
+
+        Series[] old = mSeries;
+        Series[] all = new Series[old.length + 1];
+        System.arraycopy(old, 0, all, 0, old.length);
+        all[old.length] = s;
+        mSeries = all;
+        return s;
+    }
+
+    /* Tier file holds twice as many buckets as all series retain */
+    private boolean isBloated(int t) {
+        return mWritten[t] > 2L * retained(t) * Math.max(1, mSeries.length);
+    }
+
+    private int retained(int t) {
+        return (int) Math.max(1, mRetentions[t] / mResolutions[t]);
+    }
+
+    private void seal(Series series, int t, Tier tier) {
+
+        final long start = tier.openStart;
+        final long count = tier.openCount;
+        final double min = tier.openMin;
+        final double max = tier.openMax;
+        final double sum = tier.openSum;
+        final double last = tier.openLast;
+        tier.seal(start, count, min, max, sum, last);
+
+        if (mWriter == null)
+            return;
+
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(0, MAGIC);
+        record.putInt(4, series.key);
+        record.putShort(8, (short) series.endpoint);
+        record.putShort(10, (short) series.device);
+        record.putLong(12, start);
+        record.putLong(20, count);
+        record.putDouble(28, min);
+        record.putDouble(36, max);
+        record.putDouble(44, sum);
+        record.putDouble(52, last);
+
+        final int tierIdx = t;
+        try {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(tierIdx, record);
+                }
+            });
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            HubLog.w(TAG, "Bucket not written, closing");
+        }
+    }
+
+    /* Record: int magic | int key | short endpoint | short device | long start |
+     * long count | double min | double max | double sum | double last |
+     * int CRC32 of all before */
+    private static void encode(ByteBuffer record, CRC32 crc) {
+        crc.reset();
+        crc.update(record.array(), 0, RECORD_SIZE - 4);
+        record.putInt(RECORD_SIZE - 4, (int) crc.getValue());
+    }
+
+    private final CRC32 mCrc = new CRC32();  // writer and open() only
+
+    private synchronized void write(int t, ByteBuffer record) {
+
+        RandomAccessFile file = mFiles[t];
+        if (file == null)
+            return;
+
+        encode(record, mCrc);
+        long end = -1;
+        try {
+            end = file.getFilePointer();
+            file.write(record.array());
+            mWritten[t]++;
+        } catch (IOException e) {
+            HubLog.e(TAG, "Cannot write bucket " + e.toString());
+            try {
+                if (end >= 0) {
+                    file.setLength(end);
+                    file.seek(end);
+                }
+            } catch (IOException e2) {
+                HubLog.e(TAG, "Cannot cut partial bucket " + e2.toString());
+            }
+            return;
+        }
+
+        if (isBloated(t)) {
+            try {
+                compact(t);
+            } catch (IOException e) {
+                HubLog.e(TAG, "Cannot compact tier " + t + " " + e.toString());
+            }
+        }
+    }
+
+    /* Reads tier file into rings, returns length of valid part */
+    private long load(int t, File file) throws IOException {
+
+        if (!file.exists())
+            return 0;
+
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] bytes = new byte[RECORD_SIZE];
+            ByteBuffer record = ByteBuffer.wrap(bytes);
+            while (true) {
+                in.readFully(bytes);
+                mCrc.reset();
+                mCrc.update(bytes, 0, RECORD_SIZE - 4);
+                if (record.getInt(0) != MAGIC || record.getInt(RECORD_SIZE - 4) != (int) mCrc.getValue())
+                    break;
+
+                int key = record.getInt(4);
+                int id = mSchema.idOf(key);
+                if (id != SensorSchema.NO_ID && mSchema.get(id).kind == SensorSchema.KIND_GAUGE) {
+                    Series series = getOrCreate(key, record.getShort(8), record.getShort(10));
+                    series.tiers[t].seal(record.getLong(12), record.getLong(20), record.getDouble(28),
+                            record.getDouble(36), record.getDouble(44), record.getDouble(52));
+                }
+                valid += RECORD_SIZE;
+            }
+        } catch (EOFException e) {
+            // torn or clean end
+        } finally {
+            in.close();
+        }
+        return valid;
+    }
+
+    /* Rewrites tier file with buckets still retained in memory */
+    private synchronized void compact(int t) throws IOException {
+
+        File file = file(t);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        long written = 0;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            for (Series s : mSeries) {
+                Tier r = s.tiers[t];
+                synchronized (r) {
+                    long newest = r.newest();
+                    for (long q = Math.max(0, r.head - r.capacity); q < r.head; q++) {
+                        int i = (int) (q % r.capacity);
+                        if (r.start[i] < newest - mRetentions[t])
+                            continue;
+                        record.putInt(0, MAGIC);
+                        record.putInt(4, s.key);
+                        record.putShort(8, (short) s.endpoint);
+                        record.putShort(10, (short) s.device);
+                        record.putLong(12, r.start[i]);
+                        record.putLong(20, r.count[i]);
+                        record.putDouble(28, r.min[i]);
+                        record.putDouble(36, r.max[i]);
+                        record.putDouble(44, r.sum[i]);
+                        record.putDouble(52, r.last[i]);
+                        encode(record, mCrc);
+                        out.write(record.array());
+                        written++;
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (mFiles[t] != null) {
+            mFiles[t].close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+        mFiles[t] = new RandomAccessFile(file, "rw");
+        mFiles[t].seek(mFiles[t].length());
+        mWritten[t] = written;
+    }
+
+    private File file(int t) {
+        return new File(mDir, "rollup-" + mResolutions[t] + ".dat");
+    }
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Immutable snapshot of polled samples handed over to main thread.
+ * Keys are single character ids as decoded by FrameDecoder. */
+public final class SampleBatch {
+
+    private final int[] mKeys;
+    private final double[] mValues;
+    private final long[] mTimestamps;
+    private final int[] mEndpoints;
+    private final int[] mDevices;
+    private final int mCount;
+
+    public SampleBatch(PortDriver.DataItem[] items, int count) {
+        this(items, count, 0);
+    }
+
+    /* Samples polled from device with given index */
+    public SampleBatch(PortDriver.DataItem[] items, int count, int device) {
+
+        this(count);
+
+        for (int i = 0; i < count; i++) {
+            mKeys[i] = items[i].keyId;
+            mValues[i] = items[i].value;
+            mTimestamps[i] = items[i].timestamp;
+            mEndpoints[i] = items[i].endpoint;
+            mDevices[i] = device;
+        }
+    }
+
+    private SampleBatch(int count) {
+
+        mCount = count;
+        mKeys = new int[count];
+        mValues = new double[count];
+        mTimestamps = new long[count];
+        mEndpoints = new int[count];
+        mDevices = new int[count];
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getKey(int i) {
+        return mKeys[i];
+    }
+
+    public double getValue(int i) {
+        return mValues[i];
+    }
+
+    public long getTimestamp(int i) {
+        return mTimestamps[i];
+    }
+
+    public int getEndpoint(int i) {
+        return mEndpoints[i];
+    }
+
+    public int getDevice(int i) {
+        return mDevices[i];
+    }
+
+    /* Index of latest sample of given key from given device endpoint, -1 if none */
+    public int indexOf(int key, int endpoint, int device) {
+        for (int i = mCount - 1; i >= 0; i--) {
+            if (mKeys[i] == key && mEndpoints[i] == endpoint && mDevices[i] == device)
+                return i;
+        }
+        return -1;
+    }
+
+    /* All samples of both batches, older first */
+    public static SampleBatch concat(SampleBatch older, SampleBatch newer) {
+
+        SampleBatch batch = new SampleBatch(older.mCount + newer.mCount);
+        batch.copy(0, older, 0, older.mCount);
+        batch.copy(older.mCount, newer, 0, newer.mCount);
+        return batch;
+    }
+
+    /* Keeps only latest sample per key, endpoint and device, used when consumer
+     * falls behind and older values are not worth delivering anymore */
+    public static SampleBatch conflate(SampleBatch older, SampleBatch newer) {
+
+        SampleBatch all = concat(older, newer);
+
+        // open addressing table of index + 1, walked from newest so first one seen is kept
+        int size = 2;
+        while (size < all.mCount * 2)
+            size <<= 1;
+        int[] slots = new int[size];
+        boolean[] latest = new boolean[all.mCount];
+
+        int count = 0;
+        for (int i = all.mCount - 1; i >= 0; i--) {
+            int h = all.hash(i) & (size - 1);
+            while (true) {
+                int j = slots[h] - 1;
+                if (j < 0) {
+                    slots[h] = i + 1;
+                    latest[i] = true;
+                    count++;
+                    break;
+                }
+                if (all.mKeys[j] == all.mKeys[i] && all.mEndpoints[j] == all.mEndpoints[i]
+                        && all.mDevices[j] == all.mDevices[i])
+                    break;
+                h = (h + 1) & (size - 1);
+            }
+        }
+
+        SampleBatch batch = new SampleBatch(count);
+        int n = 0;
+        for (int i = 0; i < all.mCount; i++) {
+            if (latest[i])
+                batch.copy(n++, all, i, 1);
+        }
+        return batch;
+    }
+
+    private int hash(int i) {
+        int h = (mKeys[i] * 31 + mEndpoints[i]) * 31 + mDevices[i];
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void copy(int to, SampleBatch from, int offset, int count) {
+
+        System.arraycopy(from.mKeys, offset, mKeys, to, count);
+        System.arraycopy(from.mValues, offset, mValues, to, count);
+        System.arraycopy(from.mTimestamps, offset, mTimestamps, to, count);
+        System.arraycopy(from.mEndpoints, offset, mEndpoints, to, count);
+        System.arraycopy(from.mDevices, offset, mDevices, to, count);
+    }
+}
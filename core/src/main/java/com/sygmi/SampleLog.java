@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/* Durable append-only log of samples in memory-mapped segment files.
+ *
+ * Segment is HEADER_SIZE bytes of header (magic, version, record size,
+ * creation time, sequence, capacity, CRC32) followed by fixed width records:
+ *
+ *   long time | short device | byte endpoint | byte key | double value | int CRC32
+ *
+ * Segment file is preallocated and mapped, records are plain stores into
+ * the mapping, so they survive process crash right away and reach the disk
+ * on periodic force(). Segment rolls when full or older than roll period,
+ * sealed segment is truncated to its records. After crash only the newest
+ * segment is scanned, first record failing its checksum marks torn tail and
+ * appending continues from there.
+ *
+ * append() only queues immutable batch, single writer thread does the rest,
+ * so ingest never waits for disk. Batches arriving while queue is full are
+ * dropped and counted. */
+public final class SampleLog {
+
+    private static final String TAG = "SampleLog";
+
+    public static final int RECORD_SIZE = 24;
+    public static final int HEADER_SIZE = 64;
+
+    public static final int SEGMENT_SIZE_DEFAULT = 16 * 1024 * 1024;
+    public static final long ROLL_PERIOD_DEFAULT = 24 * 3600 * 1000L;
+    public static final int MAX_SEGMENTS_DEFAULT = 64;
+
+    private static final int MAGIC = 0x494F544C;  // "IOTL"
+    private static final short VERSION = 1;
+
+    private static final String SUFFIX = ".seg";
+
+    private static final int QUEUE_SIZE = 1024;
+    private static final long FORCE_PERIOD = 1000;  // ms
+
+    /* Wakes writer on close, interrupt would close mapped file channels */
+    private static final SampleBatch CLOSE = new SampleBatch(new PortDriver.DataItem[0], 0);
+
+    private final File mDir;
+    private final int mCapacity;  // records per segment
+    private final long mRollPeriod;
+    private final int mMaxSegments;
+
+    private final ArrayBlockingQueue<SampleBatch> mQueue = new ArrayBlockingQueue<SampleBatch>(QUEUE_SIZE);
+    private final List<SampleBatch> mDrained = new ArrayList<SampleBatch>(QUEUE_SIZE);
+
+    private Thread mWriter = null;
+    private volatile boolean mClosing = false;
+
+    // writer thread only, after open()
+    private Segment mSegment = null;
+    private long mLastForce = 0;
+    private final byte[] mRecord = new byte[RECORD_SIZE];
+    private final ByteBuffer mRecordBuf = ByteBuffer.wrap(mRecord);
+    private final CRC32 mCrc = new CRC32();
+
+    private volatile long mWritten = 0;
+    private final AtomicLong mDropped = new AtomicLong();  // appended from any thread
+    private volatile long mRecovered = 0;
+
+    public interface Visitor {
+        void onSample(long time, int device, int endpoint, int key, double value);
+    }
+
+    private static final class Segment {
+
+        final File file;
+        final long sequence;
+        final long created;
+        final RandomAccessFile raf;
+        final MappedByteBuffer map;
+        int count = 0;
+
+        Segment(File file, long sequence, long created, RandomAccessFile raf, MappedByteBuffer map) {
+            this.file = file;
+            this.sequence = sequence;
+            this.created = created;
+            this.raf = raf;
+            this.map = map;
+        }
+    }
+
+    public SampleLog(File dir) {
+        this(dir, SEGMENT_SIZE_DEFAULT, ROLL_PERIOD_DEFAULT, MAX_SEGMENTS_DEFAULT);
+    }
+
+    public SampleLog(File dir, int segmentSize, long rollPeriod, int maxSegments) {
+        mDir = dir;
+        mCapacity = (segmentSize - HEADER_SIZE) / RECORD_SIZE;
+        mRollPeriod = rollPeriod;
+        mMaxSegments = Math.max(1, maxSegments);
+    }
+
+    /* Recovers newest segment and starts writer thread */
+    public synchronized void open() throws IOException {
+
+        if (mWriter != null)
+            return;
+
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+
+        File[] files = list(mDir);
+        if (files.length > 0) {
+            mSegment = recover(files[files.length - 1]);
+        }
+        if (mSegment == null) {
+            mSegment = create(files.length > 0 ? sequence(files[files.length - 1]) + 1 : 0);
+        }
+
+        mClosing = false;
+        mWriter = new Thread(new Writer(), TAG);
+        mWriter.start();
+    }
+
+    /* Writes what is queued, forces it to disk and stops writer */
+    public synchronized void close() {
+
+        if (mWriter == null)
+            return;
+
+        // writer sees flag at latest after FORCE_PERIOD, even if queue is full
+        mClosing = true;
+        mQueue.offer(CLOSE);
+
+        boolean interrupted = false;
+        while (mWriter.isAlive()) {
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter = null;
+    }
+
+    /* Queues batch, never blocks. False if it was dropped. */
+    public boolean append(SampleBatch batch) {
+        if (mQueue.offer(batch))
+            return true;
+        mDropped.addAndGet(batch.size());
+        return false;
+    }
+
+    public long getWritten() {
+        return mWritten;
+    }
+
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /* Records found valid in newest segment at open() */
+    public long getRecovered() {
+        return mRecovered;
+    }
+
+    /* Visits valid records with time in [from, to), oldest segment first.
+     * Safe while log is written, records appended meanwhile may be missed. */
+    public void scan(long from, long to, Visitor visitor) throws IOException {
+
+        for (File file : list(mDir)) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                if (length < HEADER_SIZE)
+                    continue;
+                ByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                if (!checkHeader(map))
+                    continue;
+
+                int records = (int) Math.min(map.getInt(24), (length - HEADER_SIZE) / RECORD_SIZE);
+                CRC32 crc = new CRC32();
+                byte[] record = new byte[RECORD_SIZE];
+                ByteBuffer buf = ByteBuffer.wrap(record);
+
+                for (int i = 0; i < records; i++) {
+                    map.position(HEADER_SIZE + i * RECORD_SIZE);
+                    map.get(record);
+                    if (!checkRecord(record, buf, crc))
+                        break;
+
+                    long time = buf.getLong(0);
+                    if (time >= from && time < to) {
+                        visitor.onSample(time, buf.getShort(8) & 0xFFFF, buf.get(10) & 0xFF,
+                                buf.get(11) & 0xFF, buf.getDouble(12));
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /* Fills store with logged samples, eg. history lost with last process */
+    public void replay(long from, long to, final SeriesStore store) throws IOException {
+        scan(from, to, new Visitor() {
+            @Override
+            public void onSample(long time, int device, int endpoint, int key, double value) {
+                store.add(key, endpoint, device, time, value);
+            }
+        });
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+
+            while (true) {
+                SampleBatch batch = null;
+                try {
+                    batch = mQueue.poll(FORCE_PERIOD, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // not used to stop writer, see close()
+                }
+
+                try {
+                    if (batch != null) {
+                        write(batch);
+                    }
+                    mQueue.drainTo(mDrained);
+                    for (SampleBatch b : mDrained) {
+                        write(b);
+                    }
+                    mDrained.clear();
+
+                    long now = System.currentTimeMillis();
+                    if (mClosing || now - mLastForce >= FORCE_PERIOD) {
+                        mSegment.map.force();
+                        mLastForce = now;
+                    }
+                } catch (IOException e) {
+                    HubLog.e(TAG, "Write failed " + e.toString());
+                    mClosing = true;
+                }
+
+                if (mClosing && mQueue.isEmpty()) {
+                    break;
+                }
+            }
+
+            try {
+                mSegment.raf.close();
+            } catch (IOException e) {
+                HubLog.e(TAG, "Problem when closing segment " + e.toString());
+            }
+            mSegment = null;
+        }
+    }
+
+    private void write(SampleBatch batch) throws IOException {
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (mSegment.count >= mCapacity ||
+                    System.currentTimeMillis() - mSegment.created >= mRollPeriod) {
+                roll();
+            }
+
+            mRecordBuf.putLong(0, batch.getTimestamp(i));
+            mRecordBuf.putShort(8, (short) batch.getDevice(i));
+            mRecordBuf.put(10, (byte) batch.getEndpoint(i));
+            mRecordBuf.put(11, (byte) batch.getKey(i));
+            mRecordBuf.putDouble(12, batch.getValue(i));
+            mCrc.reset();
+            mCrc.update(mRecord, 0, RECORD_SIZE - 4);
+            mRecordBuf.putInt(RECORD_SIZE - 4, (int) mCrc.getValue());
+
+            MappedByteBuffer map = mSegment.map;
+            map.position(HEADER_SIZE + mSegment.count * RECORD_SIZE);
+            map.put(mRecord);
+            mSegment.count++;
+        }
+        mWritten += batch.size();
+    }
+
+    /* Seals current segment, truncated to its records, and starts new one */
+    private void roll() throws IOException {
+
+        Segment old = mSegment;
+        old.map.force();
+        old.raf.setLength(HEADER_SIZE + (long) old.count * RECORD_SIZE);
+        old.raf.close();
+
+        mSegment = create(old.sequence + 1);
+
+        File[] files = list(mDir);
+        for (int i = 0; i < files.length - mMaxSegments; i++) {
+            if (!files[i].delete()) {
+                HubLog.w(TAG, "Cannot delete " + files[i]);
+            }
+        }
+    }
+
+    private Segment create(long sequence) throws IOException {
+
+        File file = new File(mDir, String.format("%012d", sequence) + SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long size = HEADER_SIZE + (long) mCapacity * RECORD_SIZE;
+        raf.setLength(size);
+        MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        long created = System.currentTimeMillis();
+        map.putInt(0, MAGIC);
+        map.putShort(4, VERSION);
+        map.putShort(6, (short) RECORD_SIZE);
+        map.putLong(8, created);
+        map.putLong(16, sequence);
+        map.putInt(24, mCapacity);
+        map.putInt(HEADER_SIZE - 4, headerCrc(map));
+        map.force();
+
+        return new Segment(file, sequence, created, raf, map);
+    }
+
+    /* Reopens newest segment for appending after its last valid record,
+     * null when it is sealed, full or its header is broken */
+    private Segment recover(File file) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        long size = HEADER_SIZE + (long) mCapacity * RECORD_SIZE;
+
+        if (length != size) {
+            // sealed by roll() or written with other segment size
+            raf.close();
+            return null;
+        }
+
+        MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!checkHeader(map) || map.getInt(24) != mCapacity) {
+            HubLog.e(TAG, "Broken segment header " + file);
+            raf.close();
+            return null;
+        }
+
+        Segment segment = new Segment(file, map.getLong(16), map.getLong(8), raf, map);
+
+        CRC32 crc = new CRC32();
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        while (segment.count < mCapacity) {
+            map.position(HEADER_SIZE + segment.count * RECORD_SIZE);
+            map.get(record);
+            if (!checkRecord(record, buf, crc))
+                break;
+            segment.count++;
+        }
+
+        // wipe torn record, so later scan does not stop on it after restart
+        if (segment.count < mCapacity) {
+            map.position(HEADER_SIZE + segment.count * RECORD_SIZE);
+            map.put(new byte[RECORD_SIZE]);
+        }
+
+        mRecovered = segment.count;
+        HubLog.i(TAG, "Recovered " + segment.count + " records from " + file.getName());
+        return segment;
+    }
+
+    private static boolean checkRecord(byte[] record, ByteBuffer buf, CRC32 crc) {
+        crc.reset();
+        crc.update(record, 0, RECORD_SIZE - 4);
+        return buf.getInt(RECORD_SIZE - 4) == (int) crc.getValue();
+    }
+
+    private static boolean checkHeader(ByteBuffer map) {
+        return map.getInt(0) == MAGIC && map.getShort(4) == VERSION &&
+                map.getShort(6) == RECORD_SIZE && map.getInt(HEADER_SIZE - 4) == headerCrc(map);
+    }
+
+    private static int headerCrc(ByteBuffer map) {
+        byte[] header = new byte[HEADER_SIZE - 4];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = map.get(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, header.length);
+        return (int) crc.getValue();
+    }
+
+    private static long sequence(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /* Segment files, oldest first */
+    private static File[] list(File dir) {
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,437 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/* Bounded single producer / single consumer ring of samples.
+ * Slots are preallocated primitive arrays, so hand-off does not allocate
+ * nor lock. Producer is the driver poll thread, consumer the service thread.
+ * With OVERFLOW_DROP_OLDEST the producer may also advance the read index,
+ * so consumer claims every slot with CAS and retries if it lost the race.
+ * Frames are admitted and evicted whole, every slot marks whether it ends
+ * its frame, so overflow never leaves a partial frame behind.
+ * There must be one consumer at a time. Consumer may move between threads,
+ * eg. pooled device tasks, but overlapping poll(), take() or drain() calls
+ * throw IllegalStateException instead of silently tearing samples. */
+public final class SampleRing {
+
+    public static final int WAIT_SPIN = 0;
+    public static final int WAIT_YIELD = 1;
+    public static final int WAIT_PARK = 2;
+
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+    public static final int OVERFLOW_BLOCK = 2;
+
+    public static final int CAPACITY_DEFAULT = 256;
+
+    private static final long PARK_NANOS = 100 * 1000 * 1000L;  // 100ms, producer recheck
+
+    private final int mCapacity;
+    private final int mMask;
+    private final int mWait;
+    private final int mOverflow;
+
+    private final int[] mKeys;
+    private final double[] mValues;
+    private final long[] mTimestamps;
+    private final int[] mEndpoints;
+    private final boolean[] mLast;  // slot ends its frame
+
+    private final AtomicLong mHead = new AtomicLong(0);  // next slot to read
+    private final AtomicLong mTail = new AtomicLong(0);  // next slot to write
+    private final AtomicLong mDropped = new AtomicLong(0);
+
+    private final AtomicReference<Thread> mReader = new AtomicReference<Thread>();  // consumer inside call
+
+    private volatile Thread mConsumer = null;
+    private volatile Thread mProducer = null;
+    private volatile boolean mClosed = false;
+    private volatile Runnable mListener = null;
+
+    public SampleRing() {
+        this(CAPACITY_DEFAULT, WAIT_PARK, OVERFLOW_DROP_OLDEST);
+    }
+
+    public SampleRing(int capacity, int wait, int overflow) {
+
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+
+        mCapacity = size;
+        mMask = size - 1;
+        mWait = wait;
+        mOverflow = overflow;
+
+        mKeys = new int[size];
+        mValues = new double[size];
+        mTimestamps = new long[size];
+        mEndpoints = new int[size];
+        mLast = new boolean[size];
+    }
+
+    /* Run on producer thread after every publish */
+    public void setListener(Runnable listener) {
+        mListener = listener;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    /* Number of samples lost due to overflow policy */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /* Producer side, returns false when sample was dropped or ring closed */
+    public boolean offer(int key, double value, long timestamp, int endpoint) {
+
+        long tail = mTail.get();
+
+        if (!claim(tail, 1)) {
+            return false;
+        }
+
+        write(tail, key, value, timestamp, endpoint, true);
+        publish(tail + 1);
+
+        return true;
+    }
+
+    /* Producer side, whole frame becomes visible to consumer at once or is
+     * dropped whole. Returns number of values stored. */
+    public int offer(FrameDecoder.Frame frame, long timestamp, int endpoint) {
+
+        int count = frame.count;
+        if (count == 0) {
+            return 0;
+        }
+
+        if (count > mCapacity) {
+            // would never fit whole
+            mDropped.addAndGet(count);
+            return 0;
+        }
+
+        long tail = mTail.get();
+        if (!claim(tail, count)) {
+            return 0;
+        }
+
+        for (int n = 0; n < count; n++) {
+            write(tail + n, frame.keys[n], frame.values[n], timestamp, endpoint, n == count - 1);
+        }
+        publish(tail + count);
+
+        return count;
+    }
+
+    /* Makes room for count slots from given one according to overflow policy */
+    private boolean claim(long slot, int count) {
+
+        long end = slot + count;
+        while (end - mHead.get() > mCapacity) {
+            if (mClosed) {
+                return false;
+            }
+
+            if (mOverflow == OVERFLOW_DROP_NEWEST) {
+                mDropped.addAndGet(count);
+                return false;
+            } else if (mOverflow == OVERFLOW_DROP_OLDEST) {
+                // evict oldest frame, or its rest when consumer took single samples of it
+                long head = mHead.get();
+                long next = frameEnd(head, slot);
+                if (end - head > mCapacity && mHead.compareAndSet(head, next)) {
+                    mDropped.addAndGet(next - head);
+                }
+            } else {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                mProducer = Thread.currentThread();
+                if (end - mHead.get() > mCapacity) {
+                    idle(PARK_NANOS);
+                }
+                mProducer = null;
+            }
+        }
+
+        return true;
+    }
+
+    /* First slot after frame holding given one, slots below tail are stable */
+    private long frameEnd(long slot, long tail) {
+
+        while (slot < tail - 1 && !mLast[(int) slot & mMask]) {
+            slot++;
+        }
+        return slot + 1;
+    }
+
+    private void write(long slot, int key, double value, long timestamp, int endpoint, boolean last) {
+
+        int i = (int) slot & mMask;
+        mKeys[i] = key;
+        mValues[i] = value;
+        mTimestamps[i] = timestamp;
+        mEndpoints[i] = endpoint;
+        mLast[i] = last;
+    }
+
+    private void publish(long tail) {
+
+        // full barrier, consumer parked without recheck must see either tail or be unparked
+        mTail.set(tail);
+
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+
+        Runnable listener = mListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /* Consumer side, non-blocking */
+    public boolean poll(PortDriver.DataItem item) {
+
+        enter();
+        try {
+            return next(item);
+        } finally {
+            leave();
+        }
+    }
+
+    private void enter() {
+
+        if (!mReader.compareAndSet(null, Thread.currentThread())) {
+            Thread reader = mReader.get();
+            throw new IllegalStateException("SampleRing has single consumer, "
+                    + (reader != null ? reader.getName() : "other thread") + " is already reading");
+        }
+    }
+
+    private void leave() {
+        mReader.set(null);
+    }
+
+    private boolean next(PortDriver.DataItem item) {
+
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail.get()) {
+                return false;
+            }
+
+            int i = (int) head & mMask;
+            int key = mKeys[i];
+            double value = mValues[i];
+            long timestamp = mTimestamps[i];
+            int endpoint = mEndpoints[i];
+
+            // slot could be overwritten by producer dropping oldest, retry then
+            if (mHead.compareAndSet(head, head + 1)) {
+                item.key = FrameDecoder.keyName(key);
+                item.keyId = key;
+                item.value = value;
+                item.timestamp = timestamp;
+                item.endpoint = endpoint;
+
+                Thread producer = mProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+
+                return true;
+            }
+        }
+    }
+
+    /* Consumer side, waits until sample arrives, ring is closed or thread interrupted */
+    public boolean take(PortDriver.DataItem item) {
+        return take(item, -1);
+    }
+
+    /* As above but gives up after timeout ms, negative timeout waits forever */
+    public boolean take(PortDriver.DataItem item, long timeout) {
+
+        enter();
+        try {
+            return await(item, timeout);
+        } finally {
+            leave();
+        }
+    }
+
+    private boolean await(PortDriver.DataItem item, long timeout) {
+
+        long deadline = timeout >= 0 ? System.nanoTime() + timeout * 1000000L : 0;
+
+        while (!next(item)) {
+            if (!pause(timeout, deadline)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /* Consumer waits for producer, returns false when it has to give up */
+    private boolean pause(long timeout, long deadline) {
+
+        // producer may have published and closed since consumer looked
+        if (mClosed) {
+            return !isEmpty();
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+
+        long nanos = -1;
+        if (timeout >= 0) {
+            nanos = deadline - System.nanoTime();
+            if (nanos <= 0) {
+                return false;
+            }
+        }
+
+        mConsumer = Thread.currentThread();
+        if (isEmpty() && !mClosed) {
+            idle(nanos);
+        }
+        mConsumer = null;
+
+        return true;
+    }
+
+    /* Copies pending frames while they fit whole and claims them with one CAS,
+     * frame larger than items is handed over in parts */
+    private int frames(PortDriver.DataItem[] items) {
+
+        while (true) {
+            long head = mHead.get();
+            long tail = mTail.get();
+
+            int n = 0;
+            int whole = 0;
+            for (long slot = head; slot < tail && n < items.length; slot++) {
+                int i = (int) slot & mMask;
+                PortDriver.DataItem item = items[n++];
+                item.keyId = mKeys[i];
+                item.value = mValues[i];
+                item.timestamp = mTimestamps[i];
+                item.endpoint = mEndpoints[i];
+                if (mLast[i])
+                    whole = n;
+            }
+
+            if (whole == 0)
+                whole = n;
+            if (whole == 0)
+                return 0;
+
+            // slots could be overwritten by producer dropping oldest, retry then
+            if (mHead.compareAndSet(head, head + whole)) {
+                for (int k = 0; k < whole; k++) {
+                    items[k].key = FrameDecoder.keyName(items[k].keyId);
+                }
+
+                Thread producer = mProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+
+                return whole;
+            }
+        }
+    }
+
+    /* Consumer side, waits for at least one sample and then fills items
+     * with pending whole frames. Returns number of items filled. */
+    public int drain(PortDriver.DataItem[] items) {
+        return drain(items, -1);
+    }
+
+    /* As above but returns 0 after timeout ms without data */
+    public int drain(PortDriver.DataItem[] items, long timeout) {
+
+        if (items.length == 0) {
+            return 0;
+        }
+
+        enter();
+        try {
+            long deadline = timeout >= 0 ? System.nanoTime() + timeout * 1000000L : 0;
+
+            int n;
+            while ((n = frames(items)) == 0) {
+                if (!pause(timeout, deadline)) {
+                    return 0;
+                }
+            }
+
+            return n;
+        } finally {
+            leave();
+        }
+    }
+
+    /* Wakes up waiting sides, consumer still drains what is left */
+    public void close() {
+
+        mClosed = true;
+
+        Thread thread = mConsumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+
+        thread = mProducer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /* Waits for unpark at most nanos, negative nanos waits until unparked */
+    private void idle(long nanos) {
+
+        switch (mWait) {
+            case WAIT_SPIN:
+                break;
+            case WAIT_YIELD:
+                Thread.yield();
+                break;
+            default:
+            case WAIT_PARK:
+                if (nanos < 0)
+                    LockSupport.park(this);
+                else
+                    LockSupport.parkNanos(this, nanos);
+                break;
+        }
+    }
+}
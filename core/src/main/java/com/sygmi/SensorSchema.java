@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Registry of sensor quantities keyed by single character frame key.
+ * Every key gets small dense id when defined, so consumers keep per sensor
+ * state in flat arrays and key to id is one array lookup. New quantities are
+ * added by define() or by parsing text spec, one sensor per line:
+ *
+ *   key,name,unit,min,max,kind[,scale]     eg. "P,pressure,hPa,300,1100,gauge"
+ */
+public final class SensorSchema {
+
+    public static final int KIND_GAUGE = 0;      // any value within range, eg. temperature
+    public static final int KIND_MONOTONIC = 1;  // never decreases until device reboots, eg. uptime
+    public static final int KIND_STATUS = 2;     // flags or codes, not plotted
+
+    public static final int NO_ID = -1;
+
+    private static final int MAX_KEY = 128;  // keys are ASCII, see FrameDecoder
+
+    private static SensorSchema gDefault = null;
+
+    private final int[] mIds = new int[MAX_KEY];
+    private volatile Sensor[] mSensors = new Sensor[0];
+
+    public static final class Sensor {
+
+        public final int id;
+        public final char key;
+        public final String name;
+        public final String unit;
+        public final double min;  // valid range is [min, max)
+        public final double max;
+        public final int kind;
+        public final double scale;  // display value = value * scale
+
+        Sensor(int id, char key, String name, String unit, double min, double max, int kind, double scale) {
+            this.id = id;
+            this.key = key;
+            this.name = name;
+            this.unit = unit;
+            this.min = min;
+            this.max = max;
+            this.kind = kind;
+            this.scale = scale;
+        }
+
+        public boolean isValid(double value) {
+            return value >= min && value < max;
+        }
+
+        public double display(double value) {
+            return value * scale;
+        }
+    }
+
+    public SensorSchema() {
+        for (int i = 0; i < mIds.length; i++) {
+            mIds[i] = NO_ID;
+        }
+    }
+
+    /* Quantities reported by stock esp8266 firmware, see lua scripts */
+    public static synchronized SensorSchema getDefault() {
+        if (gDefault == null) {
+            SensorSchema schema = new SensorSchema();
+            schema.define('T', "temperature", "C", DataParser.MIN_VAL, DataParser.MAX_VAL, KIND_GAUGE, 1.0);
+            schema.define('H', "humidity", "%", DataParser.MIN_VAL, DataParser.MAX_VAL, KIND_GAUGE, 1.0);
+            schema.define('B', "boot time", "s", 0, Double.MAX_VALUE, KIND_MONOTONIC, 1.0);
+            schema.define('R', "read time", "s", 0, Double.MAX_VALUE, KIND_MONOTONIC, 1.0);
+            schema.define('E', "error", "", -Double.MAX_VALUE, Double.MAX_VALUE, KIND_STATUS, 1.0);
+            gDefault = schema;
+        }
+        return gDefault;
+    }
+
+    /* Defines sensor and returns its id, redefinition of key keeps its id */
+    public synchronized int define(char key, String name, String unit,
+                                   double min, double max, int kind, double scale) {
+
+        if (key >= MAX_KEY) {
+            throw new IllegalArgumentException("Key out of range " + (int) key);
+        }
+
+        int id = mIds[key];
+        Sensor[] sensors;
+        if (id == NO_ID) {
+            id = mSensors.length;
+            sensors = new Sensor[id + 1];
+        } else {
+            sensors = new Sensor[mSensors.length];
+        }
+        System.arraycopy(mSensors, 0, sensors, 0, mSensors.length);
+
+        sensors[id] = new Sensor(id, key, name, unit, min, max, kind, scale);
+        mSensors = sensors;  // published before id, readers see complete array
+        mIds[key] = id;
+
+        return id;
+    }
+
+    /* Adds sensors from text spec, see class comment. Returns number defined. */
+    public int parse(String spec) {
+
+        int count = 0;
+        for (String line : spec.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] f = line.split(",");
+            if (f.length < 6 || f[0].trim().length() != 1) {
+                throw new IllegalArgumentException("Wrong sensor spec " + line);
+            }
+
+            define(f[0].trim().charAt(0), f[1].trim(), f[2].trim(),
+                    Double.parseDouble(f[3].trim()), Double.parseDouble(f[4].trim()),
+                    parseKind(f[5].trim()), f.length > 6 ? Double.parseDouble(f[6].trim()) : 1.0);
+            count++;
+        }
+        return count;
+    }
+
+    private static int parseKind(String kind) {
+        if ("gauge".equalsIgnoreCase(kind))
+            return KIND_GAUGE;
+        if ("monotonic".equalsIgnoreCase(kind))
+            return KIND_MONOTONIC;
+        if ("status".equalsIgnoreCase(kind))
+            return KIND_STATUS;
+        throw new IllegalArgumentException("Wrong sensor kind " + kind);
+    }
+
+    /* Id of frame key, NO_ID if not defined */
+    public int idOf(int key) {
+        return key >= 0 && key < MAX_KEY ? mIds[key] : NO_ID;
+    }
+
+    /* Sensor of given id, null if not defined */
+    public Sensor get(int id) {
+        Sensor[] sensors = mSensors;
+        return id >= 0 && id < sensors.length ? sensors[id] : null;
+    }
+
+    public int size() {
+        return mSensors.length;
+    }
+}
@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/* Long term history of samples compressed by SeriesCodec, one series per
+ * key, endpoint and device. Series appends to open block, block is sealed
+ * when it holds BLOCK_SAMPLES samples (2 h of readings every 2 s) and
+ * appended to archive file when archive has one, so months of readings take
+ * few MB on flash and in memory. Samples of open blocks live only in memory,
+ * after restart they are refilled from SampleLog, see recover().
+ * Codec is chosen per key, by default from sensor kind.
+ * One writer thread adds samples, readers open cursors from any thread. */
+public final class SeriesArchive {
+
+    private static final String TAG = "SeriesArchive";
+
+    public static final int BLOCK_SAMPLES = 3600;
+
+    private static final int MAGIC = 0x494F5442;  // "IOTB"
+    private static final int BLOCK_HEADER = 44;
+
+    private final SensorSchema mSchema;
+    private final File mFile;
+    private final int mBlockSamples;
+
+    private final SeriesCodec[] mCodecs = new SeriesCodec[128];  // by key, null for default
+
+    private RandomAccessFile mOut = null;
+    private final CRC32 mCrc = new CRC32();
+
+    private volatile Series[] mSeries = new Series[0];
+    private Series mLastAdded = null;  // writer only
+
+    public static final class Series {
+
+        public final int key;
+        public final int endpoint;
+        public final int device;
+
+        private final SeriesCodec mCodec;
+        private SeriesCodec.Encoder mOpen;  // guarded by this
+
+        private volatile SeriesCodec.Block[] mSealed = new SeriesCodec.Block[0];
+        private volatile long mSealedTime = Long.MIN_VALUE;  // time of last sealed sample
+
+        Series(int key, int endpoint, int device, SeriesCodec codec) {
+            this.key = key;
+            this.endpoint = endpoint;
+            this.device = device;
+            mCodec = codec;
+            mOpen = codec.encoder();
+        }
+
+        /* False unless rounded time is newer than last sample, so samples
+         * replayed from log and delivered again are stored once */
+        synchronized boolean append(long time, double value) {
+            long last = mOpen.isEmpty() ? mSealedTime : mOpen.getLastTime();
+            if (mCodec.round(time) <= last)
+                return false;
+            return mOpen.append(time, value);
+        }
+
+        synchronized SeriesCodec.Block sealIfFull(int samples) {
+            if (mOpen.size() < samples)
+                return null;
+            SeriesCodec.Block block = mOpen.seal();
+            seal(block);
+            return block;
+        }
+
+        void seal(SeriesCodec.Block block) {
+            SeriesCodec.Block[] old = mSealed;
+            SeriesCodec.Block[] all = new SeriesCodec.Block[old.length + 1];
+            System.arraycopy(old, 0, all, 0, old.length);
+            all[old.length] = block;
+            mSealed = all;
+            mSealedTime = block.last;
+        }
+
+        public SeriesCodec getCodec() {
+            return mCodec;
+        }
+
+        /* Sealed blocks, oldest first, safe to iterate from any thread */
+        public SeriesCodec.Block[] getBlocks() {
+            return mSealed;
+        }
+
+        /* Sealed blocks followed by copy of open one, if not empty */
+        public synchronized SeriesCodec.Block[] getAllBlocks() {
+            SeriesCodec.Block[] sealed = mSealed;
+            if (mOpen.isEmpty())
+                return sealed;
+            SeriesCodec.Block[] all = new SeriesCodec.Block[sealed.length + 1];
+            System.arraycopy(sealed, 0, all, 0, sealed.length);
+            all[sealed.length] = mOpen.snapshot();
+            return all;
+        }
+
+        public long getSealedTime() {
+            return mSealedTime;
+        }
+
+        public synchronized long getLastTime() {
+            return mOpen.isEmpty() ? mSealedTime : mOpen.getLastTime();
+        }
+
+        /* Samples with time in [from, to), decoded lazily block by block */
+        public Cursor cursor(long from, long to) {
+            return new Cursor(getAllBlocks(), from, to);
+        }
+
+        /* Compressed bytes, open block included */
+        public synchronized long getBytes() {
+            long bytes = mOpen.getBytes();
+            for (SeriesCodec.Block block : mSealed) {
+                bytes += block.getBytes();
+            }
+            return bytes;
+        }
+
+        public synchronized long size() {
+            long size = mOpen.size();
+            for (SeriesCodec.Block block : mSealed) {
+                size += block.count;
+            }
+            return size;
+        }
+    }
+
+    /* Walks samples of series in time order without expanding blocks */
+    public static final class Cursor {
+
+        private final SeriesCodec.Block[] mBlocks;
+        private final long mFrom;
+        private final long mTo;
+        private int mBlock = -1;
+        private SeriesCodec.Cursor mCursor = null;
+
+        Cursor(SeriesCodec.Block[] blocks, long from, long to) {
+            mBlocks = blocks;
+            mFrom = from;
+            mTo = to;
+        }
+
+        public boolean next() {
+
+            while (true) {
+                if (mCursor == null) {
+                    // skip blocks ending before range without decoding them
+                    do {
+                        mBlock++;
+                    } while (mBlock < mBlocks.length && mBlocks[mBlock].last < mFrom);
+                    if (mBlock >= mBlocks.length || mBlocks[mBlock].first >= mTo)
+                        return false;
+                    mCursor = mBlocks[mBlock].cursor();
+                    if (!mCursor.seek(mFrom)) {
+                        mCursor = null;
+                        continue;
+                    }
+                } else if (!mCursor.next()) {
+                    mCursor = null;
+                    continue;
+                }
+                return mCursor.getTime() < mTo;
+            }
+        }
+
+        public long getTime() {
+            return mCursor.getTime();
+        }
+
+        public double getValue() {
+            return mCursor.getValue();
+        }
+    }
+
+    /* In memory only archive */
+    public SeriesArchive(SensorSchema schema) {
+        this(schema, null, BLOCK_SAMPLES);
+    }
+
+    /* Archive persisted to given file, call open() before adding samples */
+    public SeriesArchive(SensorSchema schema, File file) {
+        this(schema, file, BLOCK_SAMPLES);
+    }
+
+    public SeriesArchive(SensorSchema schema, File file, int blockSamples) {
+        mSchema = schema;
+        mFile = file;
+        mBlockSamples = blockSamples;
+    }
+
+    /* Codec of series created later for key, overrides default of its sensor kind */
+    public void setCodec(int key, SeriesCodec codec) {
+        mCodecs[key] = codec;
+    }
+
+    /* Loads sealed blocks from archive file, torn block at its end is cut off */
+    public synchronized void open() throws IOException {
+
+        if (mFile == null || mOut != null)
+            return;
+
+        long valid = 0;
+        if (mFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                byte[] header = new byte[BLOCK_HEADER];
+                ByteBuffer h = ByteBuffer.wrap(header);
+                while (true) {
+                    in.readFully(header);
+                    int length = h.getInt(40);
+                    if (h.getInt(0) != MAGIC || length < 0 || length > mFile.length())
+                        break;
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    mCrc.reset();
+                    mCrc.update(header, 0, header.length);
+                    mCrc.update(data, 0, data.length);
+                    if (in.readInt() != (int) mCrc.getValue())
+                        break;
+
+                    SeriesCodec.Block block = SeriesCodec.Block.wrap(h.get(13), h.get(14), h.getInt(36),
+                            h.getInt(16), h.getLong(20), h.getLong(28), data);
+                    getOrCreate(h.getInt(4), h.get(8) & 0xFF, h.getShort(10) & 0xFFFF,
+                            new SeriesCodec(block.codec, block.decimals, block.quantum)).seal(block);
+                    valid += BLOCK_HEADER + length + 4;
+                }
+            } catch (EOFException e) {
+                // torn or clean end
+            } finally {
+                in.close();
+            }
+        }
+
+        mOut = new RandomAccessFile(mFile, "rw");
+        if (mOut.length() > valid) {
+            HubLog.w(TAG, "Dropping " + (mOut.length() - valid) + " torn bytes of " + mFile.getName());
+            mOut.setLength(valid);
+        }
+        mOut.seek(valid);
+    }
+
+    public synchronized void close() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                HubLog.e(TAG, "Problem when closing archive " + e.toString());
+            }
+            mOut = null;
+        }
+    }
+
+    /* Refills open blocks with samples logged after last sealed ones */
+    public void recover(SampleLog log) throws IOException {
+
+        long from = Long.MAX_VALUE;
+        Series[] series = mSeries;
+        for (Series s : series) {
+            from = Math.min(from, s.getSealedTime() + 1);
+        }
+        if (series.length == 0) {
+            from = Long.MIN_VALUE;
+        }
+
+        log.scan(from, Long.MAX_VALUE, new SampleLog.Visitor() {
+            @Override
+            public void onSample(long time, int device, int endpoint, int key, double value) {
+                add(key, endpoint, device, time, value);
+            }
+        });
+    }
+
+    public void add(SampleBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.getKey(i), batch.getEndpoint(i), batch.getDevice(i),
+                    batch.getTimestamp(i), batch.getValue(i));
+        }
+    }
+
+    /* Writer only, false when sample is not newer than newest one of its series */
+    public boolean add(int key, int endpoint, int device, long time, double value) {
+
+        Series series = mLastAdded;
+        if (series == null || series.key != key || series.endpoint != endpoint || series.device != device) {
+            series = get(key, endpoint, device);
+            if (series == null) {
+                SeriesCodec codec = key >= 0 && key < mCodecs.length ? mCodecs[key] : null;
+                if (codec == null) {
+                    codec = SeriesCodec.forSensor(mSchema.get(mSchema.idOf(key)));
+                }
+                series = getOrCreate(key, endpoint, device, codec);
+            }
+        }
+        mLastAdded = series;
+
+        if (!series.append(time, value))
+            return false;
+
+        SeriesCodec.Block block = series.sealIfFull(mBlockSamples);
+        if (block != null) {
+            write(series, block);
+        }
+        return true;
+    }
+
+    /* Series of key from first endpoint of first device, null if none */
+    public Series get(int key) {
+        return get(key, 0, 0);
+    }
+
+    public Series get(int key, int endpoint, int device) {
+        for (Series series : mSeries) {
+            if (series.key == key && series.endpoint == endpoint && series.device == device)
+                return series;
+        }
+        return null;
+    }
+
+    /* All series, safe to iterate from any thread */
+    public Series[] getSeries() {
+        return mSeries;
+    }
+
+    private synchronized Series getOrCreate(int key, int endpoint, int device, SeriesCodec codec) {
+
+        Series series = get(key, endpoint, device);
+        if (series != null)
+            return series;
+
+        series = new Series(key, endpoint, device, codec);
+
+        Series[] old = mSeries;
+        Series[] all = new Series[old.length + 1];
+        System.arraycopy(old, 0, all, 0, old.length);
+        all[old.length] = series;
+        mSeries = all;
+        return series;
+    }
+
+    /* Appends sealed block to archive file:
+     *   int magic | int key | byte endpoint | byte 0 | short device | byte 0 | byte codec |
+     *   byte decimals | byte 0 | int count | long first | long last | int quantum | int length |
+     *   data | int CRC32 of all before */
+    private synchronized void write(Series series, SeriesCodec.Block block) {
+
+        if (mOut == null)
+            return;
+
+        byte[] data = block.getData();
+        ByteBuffer h = ByteBuffer.allocate(BLOCK_HEADER);
+        h.putInt(0, MAGIC);
+        h.putInt(4, series.key);
+        h.put(8, (byte) series.endpoint);
+        h.putShort(10, (short) series.device);
+        h.put(13, (byte) block.codec);
+        h.put(14, (byte) block.decimals);
+        h.putInt(16, block.count);
+        h.putLong(20, block.first);
+        h.putLong(28, block.last);
+        h.putInt(36, (int) block.quantum);
+        h.putInt(40, data.length);
+
+        mCrc.reset();
+        mCrc.update(h.array(), 0, BLOCK_HEADER);
+        mCrc.update(data, 0, data.length);
+
+        long end = -1;
+        try {
+            end = mOut.getFilePointer();
+            mOut.write(h.array());
+            mOut.write(data);
+            mOut.writeInt((int) mCrc.getValue());
+        } catch (IOException e) {
+            HubLog.e(TAG, "Cannot write block " + e.toString());
+            try {
+                // partial block would hide blocks written after it
+                if (end >= 0) {
+                    mOut.setLength(end);
+                    mOut.seek(end);
+                }
+            } catch (IOException e2) {
+                HubLog.e(TAG, "Cannot cut partial block " + e2.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* Compression of one series (time, value) into blocks of bits, after
+ * Facebook Gorilla paper.
+ * Times are stored as delta of delta in units of time quantum. With 1 ms
+ * quantum codec is lossless, but poll jitter of reading times costs around
+ * ten bits per sample. Long term history does not need such precision, times
+ * rounded to nearest 1 s make regular readings every 2 s cost one bit. Values are stored
+ * by one of codecs:
+ *  - CODEC_XOR, XOR with previous double, only changed middle bits are kept,
+ *    for any floating point data,
+ *  - CODEC_DECIMAL, value scaled by 10^decimals to integer and stored as delta,
+ *    for readings with fixed decimals like AM2302 (0.1 C, 0.1 %), unchanged
+ *    value costs two bits. Value not exactly representable goes raw, so codec
+ *    stays lossless for any input,
+ *  - CODEC_COUNTER, like decimal but stored as delta of delta, for counters
+ *    growing by regular steps like uptime,
+ *  - CODEC_RAW, 64 bits each, reference for ratios.
+ * Encoder appends to open block, Cursor decodes block sample by sample
+ * without expanding it. */
+public final class SeriesCodec {
+
+    public static final int CODEC_RAW = 0;
+    public static final int CODEC_XOR = 1;
+    public static final int CODEC_DECIMAL = 2;
+    public static final int CODEC_COUNTER = 3;
+
+    public static final int MAX_DECIMALS = 9;
+
+    private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+
+    /* Scaled values beyond this are not exact in double, they go raw */
+    private static final long MAX_SCALED = 1L << 52;
+
+    /* Times of archived readings are kept to 1 s, period is 2 s */
+    public static final long QUANTUM_DEFAULT = 1000;
+
+    public final int codec;
+    public final int decimals;
+    public final long quantum;  // ms, times are rounded to its nearest multiple
+
+    /* Lossless codec */
+    public SeriesCodec(int codec, int decimals) {
+        this(codec, decimals, 1);
+    }
+
+    public SeriesCodec(int codec, int decimals, long quantum) {
+        if (codec < CODEC_RAW || codec > CODEC_COUNTER) {
+            throw new IllegalArgumentException("Wrong codec " + codec);
+        }
+        if (decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Wrong decimals " + decimals);
+        }
+        if (quantum < 1) {
+            throw new IllegalArgumentException("Wrong quantum " + quantum);
+        }
+        this.codec = codec;
+        this.decimals = decimals;
+        this.quantum = quantum;
+    }
+
+    /* Time as stored by codec */
+    public long round(long time) {
+        return round(time, quantum);
+    }
+
+    static long round(long time, long quantum) {
+        long r = time % quantum;
+        if (r < 0)
+            r += quantum;
+        long floor = time - r;
+        return 2 * r >= quantum && floor <= Long.MAX_VALUE - quantum ? floor + quantum : floor;
+    }
+
+    /* Default archive codec of sensor kind, gauges with one decimal like stock firmware */
+    public static SeriesCodec forSensor(SensorSchema.Sensor sensor) {
+        if (sensor == null)
+            return new SeriesCodec(CODEC_XOR, 0, QUANTUM_DEFAULT);
+        if (sensor.kind == SensorSchema.KIND_MONOTONIC)
+            return new SeriesCodec(CODEC_COUNTER, 0, QUANTUM_DEFAULT);
+        return new SeriesCodec(CODEC_DECIMAL, sensor.kind == SensorSchema.KIND_GAUGE ? 1 : 0, QUANTUM_DEFAULT);
+    }
+
+    public Encoder encoder() {
+        return new Encoder(this);
+    }
+
+    /* Sealed or snapshot block, immutable */
+    public static final class Block {
+
+        public final int codec;
+        public final int decimals;
+        public final long quantum;
+        public final int count;
+        public final long first;  // time of first and last sample
+        public final long last;
+
+        private final byte[] mData;
+
+        Block(int codec, int decimals, long quantum, int count, long first, long last, byte[] data) {
+            this.codec = codec;
+            this.decimals = decimals;
+            this.quantum = quantum;
+            this.count = count;
+            this.first = first;
+            this.last = last;
+            mData = data;
+        }
+
+        /* Rebuilds block read back from storage */
+        public static Block wrap(int codec, int decimals, long quantum, int count, long first, long last,
+                                 byte[] data) {
+            if (quantum < 1 || decimals < 0 || decimals > MAX_DECIMALS) {
+                throw new IllegalArgumentException("Wrong block");
+            }
+            return new Block(codec, decimals, quantum, count, first, last, data);
+        }
+
+        public Cursor cursor() {
+            return new Cursor(this);
+        }
+
+        /* Compressed data, not to be modified */
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getBytes() {
+            return mData.length;
+        }
+    }
+
+    public static final class Encoder {
+
+        private final int mCodec;
+        private final int mDecimals;
+        private final long mQuantum;
+        private final double mFactor;
+        private final BitWriter mBits = new BitWriter();
+
+        private int mCount = 0;
+        private long mFirst = 0;
+        private long mTime = 0;  // in quanta
+        private long mDelta = 0;
+
+        private long mPrevBits = 0;       // XOR
+        private int mPrevLead = -1;
+        private int mPrevTrail = 0;
+        private long mPrevScaled = 0;     // DECIMAL and COUNTER
+        private long mPrevStep = 0;       // COUNTER
+
+        Encoder(SeriesCodec codec) {
+            mCodec = codec.codec;
+            mDecimals = codec.decimals;
+            mQuantum = codec.quantum;
+            mFactor = POW10[codec.decimals];
+        }
+
+        /* False for sample older than last one, it is not stored */
+        public boolean append(long time, double value) {
+
+            time = round(time, mQuantum) / mQuantum;
+            if (mCount == 0) {
+                mBits.write(time, 64);
+                mFirst = time * mQuantum;
+            } else {
+                if (time < mTime)
+                    return false;
+                long delta = time - mTime;
+                writeSigned(mBits, delta - mDelta);
+                mDelta = delta;
+            }
+            mTime = time;
+
+            switch (mCodec) {
+                case CODEC_XOR:
+                    writeXor(value);
+                    break;
+                case CODEC_DECIMAL:
+                case CODEC_COUNTER:
+                    writeDecimal(value);
+                    break;
+                default:
+                    mBits.write(Double.doubleToRawLongBits(value), 64);
+                    break;
+            }
+
+            mCount++;
+            return true;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        public boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        /* Time of last sample, Long.MIN_VALUE when empty */
+        public long getLastTime() {
+            return mCount > 0 ? mTime * mQuantum : Long.MIN_VALUE;
+        }
+
+        public int getBytes() {
+            return mBits.bytes();
+        }
+
+        /* Copy of samples appended so far, encoder stays open */
+        public Block snapshot() {
+            return new Block(mCodec, mDecimals, mQuantum, mCount, mFirst, mTime * mQuantum, mBits.toByteArray());
+        }
+
+        /* Block of samples appended so far, encoder starts new empty block */
+        public Block seal() {
+            Block block = snapshot();
+            mBits.reset();
+            mCount = 0;
+            mDelta = 0;
+            mPrevLead = -1;
+            mPrevBits = 0;
+            mPrevScaled = 0;
+            mPrevStep = 0;
+            return block;
+        }
+
+        private void writeXor(double value) {
+
+            long bits = Double.doubleToRawLongBits(value);
+            long xor = bits ^ mPrevBits;
+            mPrevBits = bits;
+
+            if (mCount == 0) {
+                mBits.write(bits, 64);
+                return;
+            }
+            if (xor == 0) {
+                mBits.write(0, 1);
+                return;
+            }
+
+            int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trail = Long.numberOfTrailingZeros(xor);
+
+            if (mPrevLead >= 0 && lead >= mPrevLead && trail >= mPrevTrail) {
+                // fits meaningful bits of previous value
+                mBits.write(2, 2);
+                mBits.write(xor >>> mPrevTrail, 64 - mPrevLead - mPrevTrail);
+            } else {
+                int length = 64 - lead - trail;
+                mBits.write(3, 2);
+                mBits.write(lead, 5);
+                mBits.write(length - 1, 6);
+                mBits.write(xor >>> trail, length);
+                mPrevLead = lead;
+                mPrevTrail = trail;
+            }
+        }
+
+        private void writeDecimal(double value) {
+
+            double scaled = value * mFactor;
+            long q = Math.round(scaled);
+            if (Math.abs(q) < MAX_SCALED && q / mFactor == value && !(value == 0.0 && 1.0 / value < 0)) {
+                mBits.write(0, 1);
+                long step = q - mPrevScaled;
+                if (mCodec == CODEC_COUNTER) {
+                    writeSigned(mBits, step - mPrevStep);
+                    mPrevStep = step;
+                } else {
+                    writeSigned(mBits, step);
+                }
+                mPrevScaled = q;
+            } else {
+                // NaN, -0.0, more decimals or out of range
+                mBits.write(1, 1);
+                mBits.write(Double.doubleToRawLongBits(value), 64);
+            }
+        }
+    }
+
+    /* Decodes block forward, one sample per next() */
+    public static final class Cursor {
+
+        private final Block mBlock;
+        private final BitReader mBits;
+        private final double mFactor;
+
+        private int mIndex = 0;
+        private long mTime = 0;  // in quanta
+        private long mDelta = 0;
+        private double mValue = 0.0;
+
+        private long mPrevBits = 0;
+        private int mPrevLead = 0;
+        private int mPrevTrail = 0;
+        private long mPrevScaled = 0;
+        private long mPrevStep = 0;
+
+        Cursor(Block block) {
+            mBlock = block;
+            mBits = new BitReader(block.mData);
+            mFactor = POW10[block.decimals];
+        }
+
+        /* Moves to next sample, false at end of block */
+        public boolean next() {
+
+            if (mIndex >= mBlock.count)
+                return false;
+
+            if (mIndex == 0) {
+                mTime = mBits.read(64);
+            } else {
+                mDelta += readSigned(mBits);
+                mTime += mDelta;
+            }
+
+            switch (mBlock.codec) {
+                case CODEC_XOR:
+                    readXor();
+                    break;
+                case CODEC_DECIMAL:
+                case CODEC_COUNTER:
+                    readDecimal();
+                    break;
+                default:
+                    mValue = Double.longBitsToDouble(mBits.read(64));
+                    break;
+            }
+
+            mIndex++;
+            return true;
+        }
+
+        /* Skips samples before given time, true when positioned on sample >= time */
+        public boolean seek(long time) {
+            if (mIndex > 0 && getTime() >= time)
+                return true;
+            if (mBlock.last < time) {
+                // nothing to find, do not decode block at all
+                mIndex = mBlock.count;
+                return false;
+            }
+            while (next()) {
+                if (getTime() >= time)
+                    return true;
+            }
+            return false;
+        }
+
+        public long getTime() {
+            return mTime * mBlock.quantum;
+        }
+
+        public double getValue() {
+            return mValue;
+        }
+
+        private void readXor() {
+
+            if (mIndex == 0) {
+                mPrevBits = mBits.read(64);
+            } else if (mBits.read(1) != 0) {
+                if (mBits.read(1) != 0) {
+                    mPrevLead = (int) mBits.read(5);
+                    int length = (int) mBits.read(6) + 1;
+                    mPrevTrail = 64 - mPrevLead - length;
+                }
+                int length = 64 - mPrevLead - mPrevTrail;
+                mPrevBits ^= mBits.read(length) << mPrevTrail;
+            }
+            mValue = Double.longBitsToDouble(mPrevBits);
+        }
+
+        private void readDecimal() {
+
+            if (mBits.read(1) == 0) {
+                if (mBlock.codec == CODEC_COUNTER) {
+                    mPrevStep += readSigned(mBits);
+                    mPrevScaled += mPrevStep;
+                } else {
+                    mPrevScaled += readSigned(mBits);
+                }
+                mValue = mPrevScaled / mFactor;
+            } else {
+                mValue = Double.longBitsToDouble(mBits.read(64));
+            }
+        }
+    }
+
+    /* Zero in one bit, small numbers in few, after Gorilla timestamps */
+    private static void writeSigned(BitWriter bits, long v) {
+
+        if (v == 0) {
+            bits.write(0, 1);
+        } else if (v >= -64 && v < 64) {
+            bits.write(2, 2);
+            bits.write(v, 7);
+        } else if (v >= -2048 && v < 2048) {
+            bits.write(6, 3);
+            bits.write(v, 12);
+        } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+            bits.write(14, 4);
+            bits.write(v, 32);
+        } else {
+            bits.write(15, 4);
+            bits.write(v, 64);
+        }
+    }
+
+    private static long readSigned(BitReader bits) {
+
+        if (bits.read(1) == 0)
+            return 0;
+        if (bits.read(1) == 0)
+            return signExtend(bits.read(7), 7);
+        if (bits.read(1) == 0)
+            return signExtend(bits.read(12), 12);
+        if (bits.read(1) == 0)
+            return signExtend(bits.read(32), 32);
+        return bits.read(64);
+    }
+
+    private static long signExtend(long v, int n) {
+        return (v << (64 - n)) >> (64 - n);
+    }
+
+    /* MSB first bit stream into growing array */
+    static final class BitWriter {
+
+        private byte[] mBuf = new byte[64];
+        private int mLen = 0;
+        private long mAcc = 0;
+        private int mAccBits = 0;  // pending bits in low end of mAcc, < 8 between calls
+
+        void write(long v, int n) {
+
+            if (n > 32) {
+                write(v >>> 32, n - 32);
+                n = 32;
+            }
+            if (n == 0)
+                return;
+
+            mAcc = (mAcc << n) | (v & ((1L << n) - 1));
+            mAccBits += n;
+
+            if (mLen + 8 > mBuf.length) {
+                byte[] buf = new byte[mBuf.length * 2];
+                System.arraycopy(mBuf, 0, buf, 0, mLen);
+                mBuf = buf;
+            }
+            while (mAccBits >= 8) {
+                mAccBits -= 8;
+                mBuf[mLen++] = (byte) (mAcc >>> mAccBits);
+            }
+        }
+
+        int bytes() {
+            return mLen + (mAccBits > 0 ? 1 : 0);
+        }
+
+        byte[] toByteArray() {
+            byte[] data = new byte[bytes()];
+            System.arraycopy(mBuf, 0, data, 0, mLen);
+            if (mAccBits > 0) {
+                data[mLen] = (byte) (mAcc << (8 - mAccBits));
+            }
+            return data;
+        }
+
+        void reset() {
+            mLen = 0;
+            mAcc = 0;
+            mAccBits = 0;
+        }
+    }
+
+    /* Reads what BitWriter wrote, zeros past the end */
+    static final class BitReader {
+
+        private final byte[] mData;
+        private int mPos = 0;
+        private long mAcc = 0;
+        private int mAccBits = 0;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        long read(int n) {
+
+            if (n > 32) {
+                long high = read(n - 32);
+                return (high << 32) | read(32);
+            }
+            if (n == 0)
+                return 0;
+
+            while (mAccBits < n) {
+                int b = mPos < mData.length ? mData[mPos] & 0xFF : 0;
+                mPos++;
+                mAcc = (mAcc << 8) | b;
+                mAccBits += 8;
+            }
+            mAccBits -= n;
+            return (mAcc >>> mAccBits) & ((1L << n) - 1);
+        }
+    }
+}
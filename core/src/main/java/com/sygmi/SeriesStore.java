@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+/* In-memory history of samples, one series per key, endpoint and device.
+ * Series is fixed capacity ring of primitive arrays (long times, float
+ * values, 12 bytes per sample), oldest samples are overwritten, no object is
+ * created per sample. Times within series never go back, so range lookups
+ * are binary searches.
+ * One writer thread appends, any number of readers copy ranges out without
+ * locking: writer publishes sample by bumping volatile head, reader checks
+ * head again after copying and drops samples the writer may have overwritten
+ * meanwhile. */
+public final class SeriesStore {
+
+    /* Week of readings every 2 s */
+    public static final int CAPACITY_DEFAULT = 7 * 24 * 3600 / 2;
+
+    /* Oldest samples readers never touch, writer may be just overwriting them */
+    private static final int GUARD = 64;
+
+    private final int mCapacity;
+
+    private volatile Series[] mSeries = new Series[0];
+    private Series mLastAdded = null;  // writer only, checked before scanning all series
+
+    public static final class Series {
+
+        public final int key;
+        public final int endpoint;
+        public final int device;
+
+        private final int mCapacity;
+        private final long[] mTimes;
+        private final float[] mValues;
+
+        private volatile long mHead = 0;  // samples ever appended
+        private volatile int mFence = 0;  // readers write it, see read()
+        private long mLastTime = Long.MIN_VALUE;
+
+        Series(int key, int endpoint, int device, int capacity) {
+            this.key = key;
+            this.endpoint = endpoint;
+            this.device = device;
+            mCapacity = capacity;
+            mTimes = new long[capacity];
+            mValues = new float[capacity];
+        }
+
+        /* Writer only, false for sample older than last one */
+        boolean append(long time, double value) {
+
+            if (time < mLastTime)
+                return false;
+
+            long head = mHead;
+            int i = (int) (head % mCapacity);
+            mTimes[i] = time;
+            mValues[i] = (float) value;
+            mLastTime = time;
+            mHead = head + 1;
+            return true;
+        }
+
+        public int getCapacity() {
+            return mCapacity;
+        }
+
+        /* Samples currently readable */
+        public int size() {
+            long head = mHead;
+            return (int) (head - oldest(head));
+        }
+
+        /* Copies samples with time in [from, to) into given arrays, at most
+         * their length, oldest first. Returns number of samples copied. */
+        public int read(long from, long to, long[] times, float[] values) {
+
+            int max = Math.min(times.length, values.length);
+
+            while (true) {
+                long head = mHead;
+                long lo = lowerBound(oldest(head), head, from);
+                long hi = lowerBound(lo, head, to);
+
+                int count = (int) Math.min(max, hi - lo);
+                for (int n = 0; n < count; n++) {
+                    int i = (int) ((lo + n) % mCapacity);
+                    times[n] = mTimes[i];
+                    values[n] = mValues[i];
+                }
+
+                // volatile store keeps copying loads above head check below,
+                // volatile load alone would let them sink past it
+                mFence = 0;
+                if (lo >= oldest(mHead)) {
+                    return count;
+                }
+                // writer lapped us while copying, try again from newer data
+            }
+        }
+
+        /* Samples with time in [from, to), allocates result */
+        public Range range(long from, long to) {
+
+            long head = mHead;
+            long lo = lowerBound(oldest(head), head, from);
+            long hi = lowerBound(lo, head, to);
+
+            int size = (int) (hi - lo) + GUARD;  // room for samples appended meanwhile
+            long[] times = new long[size];
+            float[] values = new float[size];
+            return new Range(times, values, read(from, to, times, values));
+        }
+
+        /* Last n samples, allocates result */
+        public Range latest(int n) {
+
+            long head = mHead;
+            long lo = Math.max(oldest(head), head - n);
+            if (lo >= head) {
+                return new Range(new long[0], new float[0], 0);
+            }
+            Range range = range(mTimes[(int) (lo % mCapacity)], Long.MAX_VALUE);
+            return range.size > n ? range.tail(n) : range;
+        }
+
+        /* Time of newest sample, Long.MIN_VALUE when empty */
+        public long getLastTime() {
+            long head = mHead;
+            return head > 0 ? mTimes[(int) ((head - 1) % mCapacity)] : Long.MIN_VALUE;
+        }
+
+        private long oldest(long head) {
+            return Math.max(0, head - mCapacity + GUARD);
+        }
+
+        /* First sequence number in [lo, hi) with time >= t, hi if none */
+        private long lowerBound(long lo, long hi, long t) {
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (mTimes[(int) (mid % mCapacity)] < t)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    /* Immutable copy of part of series */
+    public static final class Range {
+
+        public final int size;
+
+        private final long[] mTimes;
+        private final float[] mValues;
+
+        Range(long[] times, float[] values, int size) {
+            mTimes = times;
+            mValues = values;
+            this.size = size;
+        }
+
+        public long getTime(int i) {
+            return mTimes[i];
+        }
+
+        public float getValue(int i) {
+            return mValues[i];
+        }
+
+        Range tail(int n) {
+            long[] times = new long[n];
+            float[] values = new float[n];
+            System.arraycopy(mTimes, size - n, times, 0, n);
+            System.arraycopy(mValues, size - n, values, 0, n);
+            return new Range(times, values, n);
+        }
+    }
+
+    public SeriesStore() {
+        this(CAPACITY_DEFAULT);
+    }
+
+    public SeriesStore(int capacity) {
+        if (capacity <= 2 * GUARD) {
+            throw new IllegalArgumentException("Capacity too small " + capacity);
+        }
+        mCapacity = capacity;
+    }
+
+    public void add(SampleBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.getKey(i), batch.getEndpoint(i), batch.getDevice(i),
+                    batch.getTimestamp(i), batch.getValue(i));
+        }
+    }
+
+    /* Writer only, false when sample is older than newest one of its series */
+    public boolean add(int key, int endpoint, int device, long time, double value) {
+
+        Series series = mLastAdded;
+        if (series == null || series.key != key || series.endpoint != endpoint || series.device != device) {
+            series = get(key, endpoint, device);
+        }
+
+        if (series == null) {
+            series = new Series(key, endpoint, device, mCapacity);
+
+            Series[] old = mSeries;
+            Series[] all = new Series[old.length + 1];
+            System.arraycopy(old, 0, all, 0, old.length);
+            all[old.length] = series;
+            mSeries = all;
+        }
+
+        mLastAdded = series;
+        return series.append(time, value);
+    }
+
+    /* Series of key from first endpoint of first device, null if none */
+    public Series get(int key) {
+        return get(key, 0, 0);
+    }
+
+    public Series get(int key, int endpoint, int device) {
+        for (Series series : mSeries) {
+            if (series.key == key && series.endpoint == endpoint && series.device == device)
+                return series;
+        }
+        return null;
+    }
+
+    /* All series, safe to iterate from any thread */
+    public Series[] getSeries() {
+        return mSeries;
+    }
+}
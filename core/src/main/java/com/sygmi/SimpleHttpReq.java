@@ -0,0 +1,532 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/* Minimal HTTP GET requestor.
+ * In keep-alive mode HTTP/1.1 requests are sent and the response is framed by
+ * Content-Length or chunked encoding, so the same connection can be reused.
+ * Devices answering with a bare payload (legacy firmware) are still supported,
+ * such payload ends with new line or closing tag.
+ * Stream request asks device to push new line delimited frames over the same
+ * connection, device agrees by answering with STREAM_HEADER.
+ * Socket channels are served non-blocking with a per request deadline, plain
+ * streams (e.g. bluetooth) fall back to blocking reads. */
+public class SimpleHttpReq {
+
+    private static final String TAG = "SimpleHttpReq";
+
+    public static final int REQUEST_TIMEOUT = 5000;
+
+    public static final String STREAM_PATH = "/stream";
+    public static final String STREAM_HEADER = "x-stream";
+
+    private static final int MAX_LINE = 1024;
+    private static final int RX_BUFFER = 1024;
+
+    private static final byte[] FRAME_END = "</p>".getBytes();
+
+    private InputStream mIn = null;
+    private OutputStream mOut = null;
+
+    private SocketChannel mChannel = null;
+    private Selector mSelector = null;
+    private SelectionKey mKey = null;
+
+    private String mHost = null;
+    private boolean mKeepAlive = false;
+    private boolean mPersistent = false;
+
+    private int mTimeout = REQUEST_TIMEOUT;
+    private long mDeadline = 0;
+
+    private byte[] mRequest = null;
+    private byte[] mStreamRequest = null;
+    private ByteBuffer mTx = null;
+    private ByteBuffer mStreamTx = null;
+    private ByteBuffer mRx = null;
+
+    private byte[] mLine = new byte[MAX_LINE];
+
+    private byte[] mBody = new byte[MAX_LINE];
+    private int mBodyLen = 0;
+
+    private final HttpFramer.Head mHead = new HttpFramer.Head();
+
+    SimpleHttpReq(OutputStream out, InputStream in)
+    {
+        this(out, in, null, false);
+    }
+
+    SimpleHttpReq(OutputStream out, InputStream in, String host, boolean keepAlive)
+    {
+        mIn = in;
+        mOut = out;
+        mHost = host;
+        mKeepAlive = keepAlive;
+        mRequest = buildRequest().getBytes();
+        mStreamRequest = buildStreamRequest().getBytes();
+
+        mRx = ByteBuffer.allocate(RX_BUFFER);
+        mRx.flip();
+    }
+
+    /* Channel based requestor, attach() a connected non-blocking channel before use */
+    SimpleHttpReq(String host, boolean keepAlive) throws IOException
+    {
+        mHost = host;
+        mKeepAlive = keepAlive;
+        mRequest = buildRequest().getBytes();
+        mStreamRequest = buildStreamRequest().getBytes();
+        mSelector = Selector.open();
+
+        mTx = ByteBuffer.allocateDirect(mRequest.length);
+        mTx.put(mRequest);
+        mTx.flip();
+
+        mStreamTx = ByteBuffer.allocateDirect(mStreamRequest.length);
+        mStreamTx.put(mStreamRequest);
+        mStreamTx.flip();
+
+        mRx = ByteBuffer.allocateDirect(RX_BUFFER);
+        mRx.flip();
+    }
+
+    public void attach(SocketChannel channel) throws IOException {
+
+        if (mKey != null) {
+            mKey.cancel();
+            mSelector.selectNow();  // flush cancelled key
+            mKey = null;
+        }
+
+        mChannel = channel;
+        mRx.clear();
+        mRx.flip();
+
+        if (mChannel != null) {
+            mKey = mChannel.register(mSelector, 0);
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /* Releases selector, attached channel is owned by caller */
+    public void close() {
+        try {
+            if (mSelector != null) {
+                mSelector.close();
+            }
+        } catch (IOException e) {
+            HubLog.e(TAG, "Problem when closing selector " + e.toString());
+        }
+    }
+
+    public void setTimeout(int timeout) {
+        mTimeout = timeout;
+    }
+
+    /* True when the last response left the connection open for next request */
+    public boolean isPersistent() {
+        return mPersistent;
+    }
+
+    /* Raw body of the last response, valid up to the length returned by fetch() */
+    public byte[] getBody() {
+        return mBody;
+    }
+
+    public int getLength() {
+        return mBodyLen;
+    }
+
+    public List<String> get() throws SimpleHttpReqException
+    {
+        int len = fetch();
+
+        List<String> response = new ArrayList<String>();
+        for (String line : new String(mBody, 0, len).split("\n")) {
+            int l = line.length();
+            if (l > 0 && line.charAt(l - 1) == '\r')
+                line = line.substring(0, l - 1);
+            response.add(line);
+        }
+
+        return response;
+    }
+
+    /* Performs request and returns body length, body stays in internal buffer */
+    public int fetch() throws SimpleHttpReqException
+    {
+        mPersistent = false;
+        mBodyLen = 0;
+        mDeadline = System.currentTimeMillis() + mTimeout;
+
+        try {
+            send(mRequest, mTx);
+
+            HubLog.d(TAG, "GET");
+
+            int len = readLine(true);
+            if (len < 0) {
+                throw new SimpleHttpReqException("EEOF");
+            }
+
+            HubLog.d(TAG, "RESPONSE ... ");
+
+            if (startsWith(mLine, len, "HTTP/")) {
+                readMessage(len, false);
+            } else {
+                // legacy device, bare payload without status line and headers
+                append(mLine, 0, len);
+            }
+
+            HubLog.d(TAG, "RESPONSE READY");
+
+            return mBodyLen;
+
+        } catch (IOException e) {
+            throw new SimpleHttpReqException("ESOCKET");
+        }
+    }
+
+    /* Asks device to push frames. Returns true when device streams, then
+     * frames are read with readFrame(). Otherwise device answered with plain
+     * response which is available like after fetch(). */
+    public boolean openStream() throws SimpleHttpReqException
+    {
+        mPersistent = false;
+        mBodyLen = 0;
+        mDeadline = System.currentTimeMillis() + mTimeout;
+
+        try {
+            send(mStreamRequest, mStreamTx);
+
+            HubLog.d(TAG, "GET " + STREAM_PATH);
+
+            int len = readLine(true);
+            if (len < 0) {
+                throw new SimpleHttpReqException("EEOF");
+            }
+
+            if (startsWith(mLine, len, "HTTP/")) {
+                return readMessage(len, true);
+            }
+
+            append(mLine, 0, len);
+            return false;
+
+        } catch (IOException e) {
+            throw new SimpleHttpReqException("ESOCKET");
+        }
+    }
+
+    /* Waits up to timeout ms for next pushed frame, returns its length */
+    public int readFrame(int timeout) throws SimpleHttpReqException
+    {
+        mBodyLen = 0;
+        mDeadline = System.currentTimeMillis() + timeout;
+
+        try {
+            int len;
+            do {
+                len = readLine(false);
+            } while (len == 0);  // keep-alive blank lines
+
+            if (len < 0) {
+                throw new SimpleHttpReqException("EEOF");
+            }
+
+            append(mLine, 0, len);
+            return mBodyLen;
+
+        } catch (IOException e) {
+            throw new SimpleHttpReqException("ESOCKET");
+        }
+    }
+
+    private String buildStreamRequest() {
+
+        StringBuilder req = new StringBuilder("GET " + STREAM_PATH + " HTTP/1.1\r\n");
+        if (mHost != null) {
+            req.append("Host: ").append(mHost).append("\r\n");
+        }
+        req.append("Connection: keep-alive\r\n\r\n");
+
+        return req.toString();
+    }
+
+    private String buildRequest() {
+        if (!mKeepAlive) {
+            return "GET / HTTP/1.0\r\n";
+        }
+
+        StringBuilder req = new StringBuilder("GET / HTTP/1.1\r\n");
+        if (mHost != null) {
+            req.append("Host: ").append(mHost).append("\r\n");
+        }
+        req.append("Connection: keep-alive\r\n\r\n");
+
+        return req.toString();
+    }
+
+    private void send(byte[] request, ByteBuffer tx) throws IOException, SimpleHttpReqException {
+
+        if (mChannel == null) {
+            if (mOut == null) {
+                throw new SimpleHttpReqException("ENOTCONN");
+            }
+            mOut.write(request);
+            mOut.flush();
+            return;
+        }
+
+        tx.rewind();
+        while (tx.hasRemaining()) {
+            if (mChannel.write(tx) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /* Sleeps on selector until channel is ready or request deadline passes */
+    private void await(int ops) throws IOException, SimpleHttpReqException {
+
+        long remaining = mDeadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SimpleHttpReqException("ETIMEOUT");
+        }
+
+        mKey.interestOps(ops);
+        mSelector.select(remaining);
+        mSelector.selectedKeys().clear();
+        mKey.interestOps(0);
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new SimpleHttpReqException("EINTR");
+        }
+    }
+
+    /* Refills rx buffer, returns false on end of stream */
+    private boolean fill() throws IOException, SimpleHttpReqException {
+
+        int n;
+
+        mRx.clear();
+        if (mChannel != null) {
+            while ((n = mChannel.read(mRx)) == 0) {
+                await(SelectionKey.OP_READ);
+            }
+        } else {
+            n = mIn.read(mRx.array(), 0, mRx.capacity());
+            if (n > 0)
+                mRx.position(n);
+        }
+        mRx.flip();
+
+        return n > 0;
+    }
+
+    /* Reads headers and body after status line held in mLine, with stream
+     * allowed returns true right after headers when device agreed to push frames */
+    private boolean readMessage(int statusLen, boolean stream) throws IOException, SimpleHttpReqException {
+
+        HttpFramer.Head head = mHead;
+        if (!HttpFramer.parseStatus(mLine, 0, statusLen, head)) {
+            throw new SimpleHttpReqException("EFORMAT");
+        }
+
+        int len;
+        while ((len = readLine(false)) > 0) {
+            if (!HttpFramer.parseHeader(mLine, 0, len, head)) {
+                throw new SimpleHttpReqException("EFORMAT");
+            }
+        }
+
+        if (len < 0) {
+            throw new SimpleHttpReqException("EEOF");
+        }
+
+        if (stream && head.streamed && head.code == 200) {
+            mPersistent = true;
+            return true;
+        }
+
+        boolean persistent = head.persistent;
+        if (head.chunked) {
+            readChunked();
+        } else if (head.length >= 0) {
+            readFully(head.length);
+        } else {
+            // no framing, body ends when device closes connection
+            readUntilClose();
+            persistent = false;
+        }
+
+        mPersistent = mKeepAlive && persistent;
+
+        if (head.code != 200) {
+            HubLog.e(TAG, "Unexpected status " + head.code);
+            throw new SimpleHttpReqException("EHTTP");
+        }
+
+        return false;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+
+        ensureBody(length);
+        System.arraycopy(data, offset, mBody, mBodyLen, length);
+        mBodyLen += length;
+    }
+
+    private void ensureBody(int length) {
+
+        if (mBodyLen + length > mBody.length) {
+            byte[] body = new byte[Math.max(mBody.length * 2, mBodyLen + length)];
+            System.arraycopy(mBody, 0, body, 0, mBodyLen);
+            mBody = body;
+        }
+    }
+
+    private void readChunked() throws IOException, SimpleHttpReqException {
+
+        while (true) {
+            int len = readLine(false);
+            if (len < 0) {
+                throw new SimpleHttpReqException("EEOF");
+            }
+
+            int size = HttpFramer.parseHex(mLine, 0, len);
+            if (size < 0) {
+                throw new SimpleHttpReqException("EFORMAT");
+            }
+
+            if (size == 0) {
+                // skip trailers
+                while (readLine(false) > 0);
+                return;
+            }
+
+            readFully(size);
+            readLine(false);  // chunk CRLF
+        }
+    }
+
+    private void readFully(int length) throws IOException, SimpleHttpReqException {
+
+        ensureBody(length);
+
+        while (length > 0) {
+            if (!mRx.hasRemaining() && !fill()) {
+                throw new SimpleHttpReqException("EEOF");
+            }
+            int n = Math.min(length, mRx.remaining());
+            mRx.get(mBody, mBodyLen, n);
+            mBodyLen += n;
+            length -= n;
+        }
+    }
+
+    private void readUntilClose() throws IOException, SimpleHttpReqException {
+
+        while (mRx.hasRemaining() || fill()) {
+            int n = mRx.remaining();
+            ensureBody(n);
+            mRx.get(mBody, mBodyLen, n);
+            mBodyLen += n;
+        }
+    }
+
+    /* Reads line into mLine and returns its length or -1 on end of stream.
+     * With frameEnd set the line also ends after closing tag of legacy payload. */
+    private int readLine(boolean frameEnd) throws IOException, SimpleHttpReqException {
+
+        int len = 0;
+        boolean eof = false;
+
+        while (true) {
+            if (!mRx.hasRemaining() && !fill()) {
+                eof = true;
+                break;
+            }
+
+            byte c = mRx.get();
+            if (c == '\n')
+                break;
+            if (len == mLine.length) {
+                throw new SimpleHttpReqException("ELINE");
+            }
+            mLine[len++] = c;
+
+            if (frameEnd && c == '>' && endsWith(mLine, len, FRAME_END))
+                break;
+        }
+
+        if (eof && len == 0) {
+            return -1;
+        }
+
+        if (len > 0 && mLine[len - 1] == '\r')
+            len--;
+
+        return len;
+    }
+
+    private static boolean startsWith(byte[] data, int len, String prefix) {
+
+        if (len < prefix.length())
+            return false;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[i] != prefix.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static boolean endsWith(byte[] data, int len, byte[] suffix) {
+
+        if (len < suffix.length)
+            return false;
+
+        for (int i = 0; i < suffix.length; i++) {
+            if (data[len - suffix.length + i] != suffix[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    public class SimpleHttpReqException extends Exception {
+
+        private String mReason;
+
+        public SimpleHttpReqException(String reason) {
+            mReason = reason;
+        }
+
+        public String getReason() {
+            return mReason;
+        }
+    }
+
+}
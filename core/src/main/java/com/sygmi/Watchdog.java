@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.util.concurrent.Executor;
+
+/* Barks when not fed for given rest time.
+ * Backed by shared timing wheel, so feeding is just a timestamp write and
+ * hundreds of watchdogs cost one tick thread. Bark is delivered on main
+ * thread unless other executor is set. */
+public class Watchdog {
+
+    private int mRest = -1;
+    private WatchdogMaster mMaster = null;
+    private volatile Executor mExecutor = null;
+
+    private final WatchdogWheel.Entry mEntry;
+
+    public interface WatchdogMaster {
+        void onHauu();
+    }
+
+    /* Runs right on tick thread, master must not block */
+    public static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private final Runnable mHauu = new Runnable() {
+        @Override
+        public void run() {
+            WatchdogMaster master = mMaster;
+            if (master != null) {
+                master.onHauu();
+            }
+        }
+    };
+
+    private final Runnable mBark = new Runnable() {
+        @Override
+        public void run() {
+            if (mExecutor == null) {
+                mExecutor = Platform.get().getMainExecutor();
+            }
+            mExecutor.execute(mHauu);
+        }
+    };
+
+    public Watchdog(int rest) {
+        this(rest, WatchdogWheel.getDefault());
+    }
+
+    public Watchdog(int rest, WatchdogWheel wheel) {
+        mRest = rest;
+        mEntry = wheel.register(rest, mBark);
+    }
+
+    public void setMaster(WatchdogMaster master) {
+        if (mMaster != null)
+            return;
+        mMaster = master;
+    }
+
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public void poke() {
+        if (mRest > 0) {
+            mEntry.feed();
+        }
+    }
+
+    public void hug() {
+        mEntry.disarm();
+    }
+
+    public void giveMeat(int rest) {
+
+        if (rest > 0 && rest != mRest) {
+            mRest = rest;
+            mEntry.setTimeout(rest);
+        }
+
+        poke();
+    }
+}
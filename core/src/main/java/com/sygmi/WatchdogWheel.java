@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/* Hashed timing wheel serving many watchdog entries from one tick thread.
+ * Heartbeat only stores coarse wheel time into entry, deadlines are checked
+ * lazily when tick reaches entry bucket: entry fed meanwhile is moved to the
+ * bucket of its new deadline, otherwise it expires. Entries further away than
+ * one revolution simply stay in their bucket for more rounds. */
+public final class WatchdogWheel implements Runnable {
+
+    private static final String TAG = "WatchdogWheel";
+
+    public static final long TICK_DEFAULT = 50;  // ms
+    public static final int SIZE_DEFAULT = 256;  // buckets, one revolution = 12.8s
+
+    private static WatchdogWheel gDefault = null;
+
+    private final long mTick;
+    private final int mMask;
+    private final Entry[] mBuckets;
+
+    /* Entries armed by other threads, inserted by tick thread */
+    private final ConcurrentLinkedQueue<Entry> mPending = new ConcurrentLinkedQueue<Entry>();
+
+    private volatile long mNow;
+    private long mCursor;  // next tick to process
+
+    private Thread mThread = null;
+
+    public static final class Entry {
+
+        private final WatchdogWheel mWheel;
+        private final Runnable mAction;
+
+        private final AtomicBoolean mArmed = new AtomicBoolean(false);
+        private volatile long mFed = 0;
+        private volatile long mTimeout;
+
+        // tick thread only
+        private Entry mNext = null;
+        private boolean mInWheel = false;
+
+        Entry(WatchdogWheel wheel, long timeout, Runnable action) {
+            mWheel = wheel;
+            mTimeout = timeout;
+            mAction = action;
+        }
+
+        public void setTimeout(long timeout) {
+            mTimeout = timeout;
+        }
+
+        /* Heartbeat, arms entry if it is not armed yet */
+        public void feed() {
+            mFed = mWheel.mNow;
+            if (!mArmed.get() && mArmed.compareAndSet(false, true)) {
+                mWheel.mPending.add(this);
+            }
+        }
+
+        /* Stops watching until next feed(), entry leaves wheel on its next visit */
+        public void disarm() {
+            mArmed.set(false);
+        }
+
+        public boolean isArmed() {
+            return mArmed.get();
+        }
+
+        long deadline() {
+            return mFed + mTimeout;
+        }
+    }
+
+    public WatchdogWheel(long tick, int size) {
+
+        int n = 1;
+        while (n < size)
+            n <<= 1;
+
+        mTick = tick;
+        mMask = n - 1;
+        mBuckets = new Entry[n];
+        mNow = System.currentTimeMillis();
+        mCursor = mNow / mTick;
+    }
+
+    /* Shared wheel, started on first use */
+    public static synchronized WatchdogWheel getDefault() {
+        if (gDefault == null) {
+            gDefault = new WatchdogWheel(TICK_DEFAULT, SIZE_DEFAULT);
+            gDefault.start();
+        }
+        return gDefault;
+    }
+
+    public synchronized void start() {
+        if (mThread == null) {
+            mThread = new Thread(this, TAG);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    /* New entry, not armed until first feed(). Action runs on tick thread. */
+    public Entry register(long timeout, Runnable action) {
+        return new Entry(this, timeout, action);
+    }
+
+    /* Coarse time in ms, granularity of one tick */
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public void run() {
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(mTick);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            mNow = System.currentTimeMillis();
+
+            Entry entry;
+            while ((entry = mPending.poll()) != null) {
+                if (!entry.mInWheel && entry.isArmed()) {
+                    insert(entry);
+                }
+            }
+
+            long target = mNow / mTick;
+            if (target - mCursor > mMask) {
+                // late by more than one revolution, every bucket once is enough
+                mCursor = target - mMask;
+            }
+
+            while (mCursor <= target) {
+                expire((int) (mCursor & mMask));
+                mCursor++;
+            }
+        }
+    }
+
+    private void insert(Entry entry) {
+
+        long tick = Math.max(entry.deadline() / mTick, mCursor);
+        int bucket = (int) (tick & mMask);
+
+        entry.mNext = mBuckets[bucket];
+        mBuckets[bucket] = entry;
+        entry.mInWheel = true;
+    }
+
+    private void expire(int bucket) {
+
+        Entry entry = mBuckets[bucket];
+        mBuckets[bucket] = null;
+
+        while (entry != null) {
+            Entry next = entry.mNext;
+            entry.mNext = null;
+            entry.mInWheel = false;
+
+            if (!entry.isArmed()) {
+                // disarmed, dropped from wheel
+            } else if (entry.deadline() / mTick > mCursor) {
+                // fed meanwhile or more rounds to go
+                insert(entry);
+            } else if (entry.mArmed.compareAndSet(true, false)) {
+                try {
+                    entry.mAction.run();
+                } catch (RuntimeException e) {
+                    HubLog.e(TAG, "Watchdog action failed " + e.toString());
+                }
+            }
+
+            entry = next;
+        }
+    }
+}
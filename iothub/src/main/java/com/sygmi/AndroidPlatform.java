@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+
+/* Platform of the app, found by Platform.get() by class name */
+public final class AndroidPlatform extends Platform {
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Executor mMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            mMainHandler.post(task);
+        }
+    };
+
+    @Override
+    public void log(int priority, String tag, String msg) {
+        Log.println(priority, tag, msg);
+    }
+
+    @Override
+    public Executor getMainExecutor() {
+        return mMainExecutor;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delay) {
+        mMainHandler.postDelayed(task, delay);
+    }
+}
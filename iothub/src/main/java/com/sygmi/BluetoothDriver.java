@@ -11,7 +11,10 @@ package com.sygmi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.util.Log;
 
 import java.io.BufferedReader;
@@ -25,7 +28,8 @@ import java.util.UUID;
 /* This is simple BT driver that fetches string data from device
  * Device shall be paired using Android settings menu.
  * Only RX path is available */
-public final class BluetoothDriver extends PortDriver implements ComLink.ComLinkObserver {
+public final class BluetoothDriver extends PortDriver implements ComLink.ComLinkObserver,
+        ConnectionMachine.Steps, ConnectionMachine.ProgressObserver {
 
     private static final String TAG = "BluetoothDriver";
 
@@ -33,6 +37,8 @@ public final class BluetoothDriver extends PortDriver implements ComLink.ComLink
     private final static UUID SSP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
     public final static String DEVICE_NAME = "IOT_HUB";
 
+    private final Context mContext;
+
     private BluetoothAdapter mAdapter = null;
     private BluetoothSocket mSocket = null;
     private BluetoothDevice mDevice = null;
@@ -46,8 +52,20 @@ public final class BluetoothDriver extends PortDriver implements ComLink.ComLink
 
     private boolean mWasEnabled = false;
 
+    private ConnectionMachine mMachine = null;
+
+    /* Wakes up bring-up stage waiting for adapter state change */
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mMachine != null) {
+                mMachine.signal();
+            }
+        }
+    };
+
     public BluetoothDriver(Context context, boolean enabled) {
-        super(context);
+        mContext = context;
 
         /* Controller service context */
         mMonitor = (PortDriverMonitor)context;
@@ -66,7 +84,6 @@ public final class BluetoothDriver extends PortDriver implements ComLink.ComLink
         if (!mWasEnabled) {
             if (enable) {
                 mAdapter.enable();
-                while (!mAdapter.isEnabled()) ;
             }
             else {
                 mAdapter.disable();
@@ -85,6 +102,11 @@ public final class BluetoothDriver extends PortDriver implements ComLink.ComLink
         // empty
     }
 
+    @Override
+    public void onProgress(int state, int attempt, long elapsed) {
+        mMonitor.onProgress(state, attempt, elapsed);
+    }
+
     @Override
     public boolean initiate() {
         super.initiate();
@@ -94,12 +116,64 @@ public final class BluetoothDriver extends PortDriver implements ComLink.ComLink
             return false;
         }
 
-        setBluetooth(true);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        mContext.registerReceiver(mReceiver, filter);
 
-        Set<BluetoothDevice> bondedDevices = mAdapter.getBondedDevices();
-        if (bondedDevices.size() == 0) {
-            Log.e(TAG, "No paired devices found. Please pair with any " + DEVICE_NAME);
+        mMachine = new ConnectionMachine(this, this);
+        boolean connected = mMachine.run();
+
+        mContext.unregisterReceiver(mReceiver);
+        mMachine = null;
+
+        if (!connected)
             return false;
+
+        mLink = new ComLink(this, mInput, mOutput);
+
+        mIsConnected = true;
+
+        return true;
+    }
+
+    @Override
+    public boolean begin(int state, long timeout) throws IOException {
+
+        switch (state) {
+            case ConnectionMachine.STATE_ENABLING:
+                setBluetooth(true);
+                return mAdapter.isEnabled();
+            case ConnectionMachine.STATE_ASSOCIATING:
+                findDevice();
+                return true;
+            case ConnectionMachine.STATE_CONNECTING:
+                connect(timeout);
+                return true;
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean isDone(int state) {
+
+        if (state == ConnectionMachine.STATE_ENABLING) {
+            return mAdapter.isEnabled();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void abort() {
+        closeSocket();
+    }
+
+    private void findDevice() throws IOException {
+
+        Set<BluetoothDevice> bondedDevices = mAdapter.getBondedDevices();
+        if (bondedDevices == null || bondedDevices.size() == 0) {
+            throw new IOException("No paired devices found. Please pair with any " + DEVICE_NAME);
         }
 
         for (BluetoothDevice dev : bondedDevices) {
@@ -109,25 +183,46 @@ public final class BluetoothDriver extends PortDriver implements ComLink.ComLink
         }
 
         if (mDevice == null) {
-            Log.e(TAG, "No " + DEVICE_NAME + " device");
-            return false;
+            throw new IOException("No " + DEVICE_NAME + " device");
         }
+    }
+
+    private void connect(final long timeout) throws IOException {
+
+        mSocket = mDevice.createRfcommSocketToServiceRecord(SSP_UUID);
+
+        // connect() has no timeout, socket is closed when it takes too long
+        Thread guard = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(timeout);
+                    Log.w(TAG, "Connect timeout");
+                    closeSocket();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        guard.start();
 
         try {
-            mSocket = mDevice.createRfcommSocketToServiceRecord(SSP_UUID);
             mSocket.connect();
-            mOutput = mSocket.getOutputStream();
-            mInput = mSocket.getInputStream();
-        } catch (IOException e) {
-            Log.e(TAG, "Problem when connecting with bluetooth device " + e.toString());
-            return false;
+        } finally {
+            guard.interrupt();
         }
 
-        mLink = new ComLink(this, mInput, mOutput);
-
-        mIsConnected = true;
+        mOutput = mSocket.getOutputStream();
+        mInput = mSocket.getInputStream();
+    }
 
-        return true;
+    private synchronized void closeSocket() {
+        try {
+            if (mSocket != null) {
+                mSocket.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Problem when closing bluetooth socket " + e.toString());
+        }
     }
 
     @Override
@@ -137,13 +232,7 @@ public final class BluetoothDriver extends PortDriver implements ComLink.ComLink
             mLink.destroy();
         }
 
-        try {
-            if (mSocket != null) {
-                mSocket.close();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Problem when closing bluetooth socket " + e.toString());
-        }
+        closeSocket();
 
         setBluetooth(false);
         mIsConnected = false;
@@ -159,5 +248,24 @@ public final class BluetoothDriver extends PortDriver implements ComLink.ComLink
 
         return false;
     }
+
+    @Override
+    public boolean setDataListener(Runnable listener) {
+        if (mLink != null) {
+            mLink.setListener(listener);
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public int poll(DataItem[] items, long timeout) {
+        if (mLink != null) {
+            return mLink.receive(items, timeout);
+        }
+
+        return 0;
+    }
 }
 
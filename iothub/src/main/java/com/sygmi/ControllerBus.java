@@ -0,0 +1,413 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Grzegorz Sygieda
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *******************************************************************************/
+
+package com.sygmi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/* Fans controller events out to many observers.
+ * Registry is copy-on-write, so publishing never locks against (un)subscribe.
+ * Every subscriber has own bounded queue drained on its own executor (main
+ * thread of Platform, dedicated background thread or inline on publisher), so a slow sink
+ * only fills its own queue. With QUEUE_CONFLATE sample event is merged into
+ * pending last one when that is samples too, control events are always
+ * queued, as those of one type may come from different devices. Full queue
+ * gives up sample events first and control events only when there is
+ * nothing else to drop, except with QUEUE_BLOCK, where publisher waits for
+ * room instead, for sinks that must see every batch. */
+public final class ControllerBus {
+
+    private static final String TAG = "ControllerBus";
+
+    public static final int EXECUTOR_MAIN = 0;
+    public static final int EXECUTOR_BACKGROUND = 1;
+    public static final int EXECUTOR_INLINE = 2;  // runs on publisher thread, cheap sinks only
+
+    public static final int QUEUE_CONFLATE = 0;     // merge samples with pending samples, latest values win
+    public static final int QUEUE_DROP_OLDEST = 1;
+    public static final int QUEUE_DROP_NEWEST = 2;
+    public static final int QUEUE_BLOCK = 3;        // lossless, background executor only, publisher takes back pressure
+
+    public static final int QUEUE_CAPACITY_DEFAULT = 64;
+
+    private static final int EVENT_CONNECTED = 0;
+    private static final int EVENT_DISCONNECTED = 1;
+    private static final int EVENT_SAMPLES = 2;
+    private static final int EVENT_TIMEOUT = 3;
+    private static final int EVENT_PROGRESS = 4;
+    private static final int EVENT_ERROR = 5;
+
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    private final Executor mMainExecutor = Platform.get().getMainExecutor();
+
+    private final Executor mInlineExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private static final class Event {
+
+        final int type;
+        final Object obj;
+        final int arg1;
+        final int arg2;
+        final long arg3;
+        final long posted;
+
+        Event(int type, Object obj, int arg1, int arg2, long arg3) {
+            this(type, obj, arg1, arg2, arg3, System.currentTimeMillis());
+        }
+
+        Event(int type, Object obj, int arg1, int arg2, long arg3, long posted) {
+            this.type = type;
+            this.obj = obj;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.arg3 = arg3;
+            this.posted = posted;
+        }
+    }
+
+    public final class Subscriber implements Runnable {
+
+        private final ControllerService.IControllerObserver mObserver;
+        private final Executor mExecutor;
+        private final int mPolicy;
+        private final int mCapacity;
+
+        private final ArrayDeque<Event> mQueue = new ArrayDeque<Event>();
+        private boolean mScheduled = false;
+        private boolean mClosed = false;
+
+        private volatile long mDelivered = 0;
+        private volatile long mDropped = 0;
+        private volatile long mConflated = 0;
+        private volatile long mLastLag = 0;
+        private volatile long mMaxLag = 0;
+
+        Subscriber(ControllerService.IControllerObserver observer, Executor executor, int policy, int capacity) {
+            mObserver = observer;
+            mExecutor = executor;
+            mPolicy = policy;
+            mCapacity = Math.max(1, capacity);
+        }
+
+        public ControllerService.IControllerObserver getObserver() {
+            return mObserver;
+        }
+
+        public long getDelivered() {
+            return mDelivered;
+        }
+
+        /* Events lost due to full queue */
+        public long getDropped() {
+            return mDropped;
+        }
+
+        /* Events merged into pending one */
+        public long getConflated() {
+            return mConflated;
+        }
+
+        /* Time in ms between publishing and delivery of last event */
+        public long getLastLag() {
+            return mLastLag;
+        }
+
+        public long getMaxLag() {
+            return mMaxLag;
+        }
+
+        public synchronized int getQueued() {
+            return mQueue.size();
+        }
+
+        void enqueue(Event event) {
+
+            boolean schedule = false;
+
+            synchronized (this) {
+                if (mPolicy == QUEUE_BLOCK && !room()) {
+                    return;
+                }
+
+                if (mClosed) {
+                    return;
+                }
+
+                if (admit(event)) {
+                    mQueue.addLast(event);
+                }
+
+                if (!mScheduled) {
+                    mScheduled = true;
+                    schedule = true;
+                }
+            }
+
+            if (schedule) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // executor went down meanwhile, nothing will drain queue any more
+                    synchronized (this) {
+                        mClosed = true;
+                        mScheduled = false;
+                        mQueue.clear();
+                    }
+                }
+            }
+        }
+
+        /* Waits until queue has room or subscriber is closed, false if publisher was interrupted */
+        private boolean room() {
+
+            while (!mClosed && mQueue.size() >= mCapacity) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mDropped++;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /* Applies queue policy, returns false when event was absorbed or dropped */
+        private boolean admit(Event event) {
+
+            Event last = mQueue.peekLast();
+            if (mPolicy == QUEUE_CONFLATE && event.type == EVENT_SAMPLES && last != null && last.type == EVENT_SAMPLES) {
+                mQueue.pollLast();
+                Object obj = SampleBatch.conflate((SampleBatch) last.obj, (SampleBatch) event.obj);
+                // lag counts from the oldest event still pending
+                mQueue.addLast(new Event(event.type, obj, event.arg1, event.arg2, event.arg3, last.posted));
+                mConflated++;
+                return false;
+            }
+
+            if (mQueue.size() < mCapacity) {
+                return true;
+            }
+
+            mDropped++;
+
+            if (mPolicy == QUEUE_DROP_NEWEST && event.type == EVENT_SAMPLES) {
+                return false;
+            }
+
+            Iterator<Event> it = mQueue.iterator();
+            while (it.hasNext()) {
+                if (it.next().type == EVENT_SAMPLES) {
+                    it.remove();
+                    return true;
+                }
+            }
+
+            // only control events pending
+            if (mPolicy == QUEUE_DROP_NEWEST) {
+                return false;
+            }
+            mQueue.pollFirst();
+            return true;
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    event = mQueue.pollFirst();
+                    if (event == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    if (mPolicy == QUEUE_BLOCK) {
+                        notifyAll();
+                    }
+                }
+
+                long lag = System.currentTimeMillis() - event.posted;
+                mLastLag = lag;
+                if (lag > mMaxLag)
+                    mMaxLag = lag;
+
+                try {
+                    dispatch(mObserver, event);
+                } catch (RuntimeException e) {
+                    HubLog.e(TAG, "Observer failed " + e.toString());
+                }
+                mDelivered++;
+            }
+        }
+
+        /* Later events are ignored, already queued ones are still delivered */
+        void shutdown() {
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
+            if (mExecutor instanceof ExecutorService) {
+                ((ExecutorService) mExecutor).shutdown();
+            }
+        }
+
+        /* Waits at most timeout ms for queued events to be delivered after
+         * shutdown, false if observer is still running */
+        boolean awaitTermination(long timeout) throws InterruptedException {
+            if (mExecutor instanceof ExecutorService) {
+                return ((ExecutorService) mExecutor).awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+    }
+
+    public Subscriber subscribe(ControllerService.IControllerObserver observer, int executor, int policy) {
+        return subscribe(observer, executor, policy, QUEUE_CAPACITY_DEFAULT);
+    }
+
+    public Subscriber subscribe(ControllerService.IControllerObserver observer, int executor,
+                                int policy, int capacity) {
+
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.mObserver == observer) {
+                return subscriber;
+            }
+        }
+
+        Executor exec;
+        switch (executor) {
+            case EXECUTOR_BACKGROUND:
+                exec = Executors.newSingleThreadExecutor();
+                break;
+            case EXECUTOR_INLINE:
+                exec = mInlineExecutor;
+                break;
+            default:
+            case EXECUTOR_MAIN:
+                exec = mMainExecutor;
+                break;
+        }
+
+        Subscriber subscriber = new Subscriber(observer, exec, policy, capacity);
+        mSubscribers.add(subscriber);
+        return subscriber;
+    }
+
+    public void unsubscribe(ControllerService.IControllerObserver observer) {
+
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.mObserver == observer) {
+                mSubscribers.remove(subscriber);
+                subscriber.shutdown();
+            }
+        }
+    }
+
+    public List<Subscriber> getSubscribers() {
+        return mSubscribers;
+    }
+
+    public void close() {
+
+        for (Subscriber subscriber : mSubscribers) {
+            subscriber.shutdown();
+        }
+        mSubscribers.clear();
+    }
+
+    /* As above, then waits at most timeout ms in total for background
+     * subscribers to deliver what is queued, false if some are still running */
+    public boolean close(long timeout) {
+
+        List<Subscriber> subscribers = new ArrayList<Subscriber>(mSubscribers);
+        close();
+
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            for (Subscriber subscriber : subscribers) {
+                if (!subscriber.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()))) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    public void connected(String label) {
+        publish(new Event(EVENT_CONNECTED, label, 0, 0, 0));
+    }
+
+    public void disconnected() {
+        publish(new Event(EVENT_DISCONNECTED, null, 0, 0, 0));
+    }
+
+    public void samples(SampleBatch snapshot) {
+        publish(new Event(EVENT_SAMPLES, snapshot, 0, 0, 0));
+    }
+
+    public void timeout() {
+        publish(new Event(EVENT_TIMEOUT, null, 0, 0, 0));
+    }
+
+    public void progress(int state, int attempt, long elapsed) {
+        publish(new Event(EVENT_PROGRESS, null, state, attempt, elapsed));
+    }
+
+    public void error(String error) {
+        publish(new Event(EVENT_ERROR, error, 0, 0, 0));
+    }
+
+    private void publish(Event event) {
+        for (Subscriber subscriber : mSubscribers) {
+            subscriber.enqueue(event);
+        }
+    }
+
+    private static void dispatch(ControllerService.IControllerObserver observer, Event event) {
+
+        switch (event.type) {
+            case EVENT_CONNECTED:
+                observer.onConnected((String) event.obj);
+                break;
+            case EVENT_DISCONNECTED:
+                observer.onDisconnected();
+                break;
+            case EVENT_SAMPLES:
+                observer.onSamplesReceived((SampleBatch) event.obj);
+                break;
+            case EVENT_TIMEOUT:
+                observer.onTimeout();
+                break;
+            case EVENT_PROGRESS:
+                observer.onProgress(event.arg1, event.arg2, event.arg3);
+                break;
+            case EVENT_ERROR:
+                observer.onError((String) event.obj);
+                break;
+        }
+    }
+}
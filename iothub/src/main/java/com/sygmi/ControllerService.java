@@ -11,29 +11,57 @@ package com.sygmi;
 import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-public class ControllerService extends Service implements PortDriver.PortDriverMonitor,Watchdog.WatchdogMaster {
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ControllerService extends Service implements PortDriver.PortDriverMonitor {
 
     private static final String TAG = "ControllerService";
 
-    public static final int DEVICE_WIFI = 0;
-    public static final int DEVICE_BLUETOOTH = 1;
-    public static final int DEVICE_FAKE = 0xFF;
+    public static final int DEVICE_WIFI = PortDriverRegistry.DEVICE_WIFI;
+    public static final int DEVICE_BLUETOOTH = PortDriverRegistry.DEVICE_BLUETOOTH;
+    public static final int DEVICE_NET = PortDriverRegistry.DEVICE_NET;
+    public static final int DEVICE_FAKE = PortDriverRegistry.DEVICE_FAKE;
+
+    /* Drain buffer, ring hands over whole frames only, so it holds at least one */
+    private static final int MAX_BATCH = 2 * FrameDecoder.MAX_VALUES;
+
+    /* All devices share fixed number of threads for bring-up and draining,
+     * one of them is never taken by device bring-up, so hanging initiate()
+     * cannot stop polling. Socket I/O stays on driver threads, see Device. */
+    private static final int POOL_SIZE = 3;
+    private static final long BRINGUP_RETRY = 500;
+
+    /* Poll slice for drivers not able to signal new data */
+    private static final long POLL_SLICE = 50;
 
-    private static final int MSG_CONTROLLER_ATTACHED = 0;
-    private static final int MSG_CONTROLLER_DETACHED = 1;
-    private static final int MSG_CONTROLLER_DATA_RECEIVED = 2;
-    private static final int MSG_CONTROLLER_TIMEOUT = 3;
-    private static final int MSG_CONTROLLER_ERROR = 0xFF;
+    /* 0 delivers every polled frame on its own */
+    public static final int COALESCE_WINDOW_DEFAULT = 0;
 
-    private static final int MAX_CONNECTION_ATTEMPTS = 3;
+    private static final String SAMPLE_LOG_DIR = "samples";
+    private static final String ARCHIVE_FILE = "archive.dat";
+    private static final String ROLLUPS_DIR = "rollups";
+
+    /* Batches waiting for archive thread, it is busy with recovery at start */
+    private static final int ARCHIVE_QUEUE = 1024;
+    /* ms to let archive thread store what is queued at service stop */
+    private static final long ARCHIVE_CLOSE_TIMEOUT = 5000;
+
+    /* Day of readings every 2 s per series */
+    private static final int SERIES_CAPACITY = 24 * 3600 / 2;
+    private static final int LIVE_QUEUE = 256;
 
     private final LocalBinder mBinder = new LocalBinder();
 
@@ -45,78 +73,82 @@ public class ControllerService extends Service implements PortDriver.PortDriverM
     public static final String EXTRA_TIMEOUT = "extra.TIMEOUT";
     public static final String EXTRA_WAS_ENABLED = "extra.WAS_ENABLED";
     public static final String EXTRA_AUX_DATA = "extra.AUX_DATA";
+    public static final String EXTRA_DEVICES = "extra.DEVICES";  // int[] of types, many devices at once
+    public static final String EXTRA_AUX_DATA_LIST = "extra.AUX_DATA_LIST";  // String[] matching EXTRA_DEVICES
 
-    private IControllerObserver mObserver = null;
-    private int mType = -1;
+    private final ControllerBus mBus = new ControllerBus();
     private boolean mOneShot = false;
-    private int mScanPeriod = 10;  // 10ms
-    private String mAuxData = null;
     private boolean mWasEnabled = false;
 
-    private boolean mAttached = false;
-
-    private Thread mServiceThread = null;
-    private Watchdog mWatchdog = null;
+    private volatile boolean mAttached = false;
 
-    private int mTimeout = -1;
-
-    private int mConnectAttempt = MAX_CONNECTION_ATTEMPTS;
+    private ScheduledThreadPoolExecutor mPool = null;
+    private final Semaphore mBringup = new Semaphore(POOL_SIZE - 1);
+    private final CopyOnWriteArrayList<Device> mDevices = new CopyOnWriteArrayList<Device>();
 
-    /* CAN device */
-    private PortDriver mDevice = null;
-
-    private final Handler mHandler = new Handler() {
+    /* Drain buffer of each pool thread, so devices do not need own ones */
+    private final ThreadLocal<PortDriver.DataItem[]> mItems = new ThreadLocal<PortDriver.DataItem[]>() {
         @Override
-        public void handleMessage(Message msg) {
-
-            switch (msg.what) {
-                case MSG_CONTROLLER_ATTACHED:
-                    String label = (String) msg.obj;
-                    Log.d(TAG, "Controller attached !");
-                    mAttached = true;
-                    if (mObserver != null) {
-                        mObserver.onConnected(label);
-                    }
-                    break;
-                case MSG_CONTROLLER_DETACHED:
-                    Log.d(TAG, "Controller detached !");
-                    if (mObserver != null) {
-                        mObserver.onDisconnected();
-                    }
-                    mAttached = false;
-                    break;
-                case MSG_CONTROLLER_DATA_RECEIVED:
-                    String data = (String) msg.obj;
-                    //Log.d(TAG, "Controller received data: " + data);
-                    if (mObserver != null && mAttached) {
-                        mObserver.onDataReceived(data);
-                    }
-                    break;
-                case MSG_CONTROLLER_TIMEOUT:
-                    Log.w(TAG, "Controller timeout !");
-                    if (mObserver != null) {
-                        mObserver.onTimeout();
-                    }
-                    mAttached = false;
-                    break;
-                case MSG_CONTROLLER_ERROR:
-                    String err = (String) msg.obj;
-                    Log.e(TAG, "Controller error occured: " + err);
-                    if (mObserver != null) {
-                        mObserver.onError(err);
-                    }
-                    mAttached = false;
-                    break;
+        protected PortDriver.DataItem[] initialValue() {
+            PortDriver.DataItem[] items = new PortDriver.DataItem[MAX_BATCH];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = new PortDriver.DataItem();
             }
+            return items;
         }
     };
+    private boolean mStarted = false;
+
+    /* Device silent this long ms is reported as timed out, 0 never */
+    private int mTimeout = -1;
+
+    private int mCoalesceWindow = COALESCE_WINDOW_DEFAULT;
+
+    /* Every delivered batch also goes to disk, null when log cannot be opened */
+    private SampleLog mLog = null;
+
+    /* Compressed long term history and its rollups, fed on their own bus thread */
+    private SeriesArchive mArchive = null;
+    private Rollups mRollups = null;
+    private HistoryQuery mHistory = null;
+    private ControllerBus.Subscriber mHistorySink = null;
+
+    /* Recent raw history of every series, fed on own bus thread, survives UI restarts */
+    private final SeriesStore mSeries = new SeriesStore(SERIES_CAPACITY);
+    /* Rolling statistics per source, keyed by device and endpoint, fed by the same thread */
+    private final ConcurrentHashMap<Long, RollingStats> mStats = new ConcurrentHashMap<Long, RollingStats>();
 
     public interface IControllerObserver {
         void onConnected(String label);
         void onDisconnected();
-        void onDataReceived(String event);
+        /* Samples of one frame (or coalesce window) at once, see FrameDecoder.keyName() for keys */
+        void onSamplesReceived(SampleBatch snapshot);
         void onTimeout();
         void onError(String error);
+        void onProgress(int state, int attempt, long elapsed);
+    }
+
+    /* Compatibility adapter for observers consuming JSON encoded samples */
+    public static abstract class JsonObserver implements IControllerObserver {
+
+        public abstract void onDataReceived(String event);
+
+        @Override
+        public void onSamplesReceived(SampleBatch snapshot) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                try {
+                    JSONObject json = new JSONObject();
+                    json.put("KEY", FrameDecoder.keyName(snapshot.getKey(i)));
+                    json.put("VALUE", snapshot.getValue(i));
+                    json.put("ENDPOINT", snapshot.getEndpoint(i));
+                    json.put("DEVICE", snapshot.getDevice(i));
+                    json.put("TIMESTAMP", snapshot.getTimestamp(i));
+                    onDataReceived(json.toString());
+                } catch (JSONException e) {
+                    Log.e(TAG, "Problem when encoding sample " + e.toString());
+                }
+            }
+        }
     }
 
     public class LocalBinder extends Binder {
@@ -125,20 +157,41 @@ public class ControllerService extends Service implements PortDriver.PortDriverM
         }
     }
 
+    /* True while at least one device is running */
     public boolean isAttached() {
         return mAttached;
     }
 
+    public int getDeviceCount() {
+        return mDevices.size();
+    }
+
+    public int getDeviceState(int device) {
+        return mDevices.get(device).mState;
+    }
+
+    /* UI observer, called on main thread with conflated samples */
     public void registerObserver(IControllerObserver observer) {
-        if (mObserver != null) {
-            return;
-        }
-        mObserver = observer;
+        subscribe(observer, ControllerBus.EXECUTOR_MAIN, ControllerBus.QUEUE_CONFLATE);
+    }
+
+    /* Any number of observers, each on executor and queue policy of its choice */
+    public ControllerBus.Subscriber subscribe(IControllerObserver observer, int executor, int policy) {
+        return mBus.subscribe(observer, executor, policy);
+    }
+
+    public void unsubscribe(IControllerObserver observer) {
+        mBus.unsubscribe(observer);
+    }
+
+    public ControllerBus getBus() {
+        return mBus;
     }
 
-    public void setScanPeriod(int scanPeriod) {
-        if (scanPeriod > 10) {  // prevent too small values
-            mScanPeriod = scanPeriod;
+    /* Gathers samples arriving within window ms into one snapshot */
+    public void setCoalesceWindow(int window) {
+        if (window >= 0) {
+            mCoalesceWindow = window;
         }
     }
 
@@ -147,17 +200,185 @@ public class ControllerService extends Service implements PortDriver.PortDriverM
 
         super.onCreate();
 
-        mServiceThread = new Thread(new ServiceThread());
+        mPool = new ScheduledThreadPoolExecutor(POOL_SIZE);
+
+        SampleLog log = new SampleLog(new File(getFilesDir(), SAMPLE_LOG_DIR));
+        try {
+            log.open();
+            mLog = log;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open sample log " + e.toString());
+        }
+
+        mArchive = new SeriesArchive(SensorSchema.getDefault(), new File(getFilesDir(), ARCHIVE_FILE));
+        mRollups = new Rollups(SensorSchema.getDefault(), new File(getFilesDir(), ROLLUPS_DIR));
+        mHistory = new HistoryQuery(mArchive, mRollups);
+        // durable history must see every batch, pool waits when archive falls behind
+        mHistorySink = mBus.subscribe(new HistorySink(mArchive, mRollups), ControllerBus.EXECUTOR_BACKGROUND,
+                ControllerBus.QUEUE_BLOCK, ARCHIVE_QUEUE);
+        mBus.subscribe(new LiveSink(), ControllerBus.EXECUTOR_BACKGROUND, ControllerBus.QUEUE_BLOCK, LIVE_QUEUE);
+    }
+
+    /* Keeps in-memory views of every batch, history and statistics of each
+     * source. UI observers get conflated samples only, so they read these
+     * instead of collecting their own */
+    private class LiveSink implements IControllerObserver {
+
+        @Override
+        public void onSamplesReceived(SampleBatch snapshot) {
+
+            mSeries.add(snapshot);
+
+            RollingStats stats = null;
+            long source = -1;
+            for (int i = 0; i < snapshot.size(); i++) {
+                long next = source(snapshot.getEndpoint(i), snapshot.getDevice(i));
+                if (next != source) {
+                    source = next;
+                    stats = mStats.get(source);
+                    if (stats == null) {
+                        stats = new RollingStats(SensorSchema.getDefault());
+                        mStats.put(source, stats);
+                    }
+                }
+                stats.add(snapshot.getKey(i), snapshot.getValue(i), snapshot.getTimestamp(i));
+            }
+        }
+
+        @Override
+        public void onConnected(String label) {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onTimeout() {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+
+        @Override
+        public void onProgress(int state, int attempt, long elapsed) {
+        }
+    }
+
+    /* Opens archive, refills it from sample log and loads rollups before
+     * first batch, so none of it blocks service start. Subscribed with
+     * QUEUE_BLOCK, so rollup buckets get every batch the archive gets. */
+    private class HistorySink implements IControllerObserver {
+
+        private final SeriesArchive mTarget;
+        private final Rollups mTargetRollups;
+        private boolean mOpened = false;
+
+        HistorySink(SeriesArchive archive, Rollups rollups) {
+            mTarget = archive;
+            mTargetRollups = rollups;
+        }
+
+        @Override
+        public void onSamplesReceived(SampleBatch snapshot) {
+
+            if (!mOpened) {
+                mOpened = true;
+                try {
+                    mTarget.open();
+                    SampleLog log = mLog;
+                    if (log != null) {
+                        mTarget.recover(log);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot open archive, keeping it in memory " + e.toString());
+                }
+                try {
+                    mTargetRollups.open();
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot load rollups, keeping them in memory " + e.toString());
+                }
+            }
+            // one failing store must not leave a hole in the other
+            try {
+                mTarget.add(snapshot);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Archive failed to store batch " + e.toString());
+            }
+            try {
+                mTargetRollups.add(snapshot);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Rollups failed to store batch " + e.toString());
+            }
+        }
+
+        @Override
+        public void onConnected(String label) {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onTimeout() {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+
+        @Override
+        public void onProgress(int state, int attempt, long elapsed) {
+        }
+    }
+
+    /* Archive of this service, history may still be recovered after start */
+    public SeriesArchive getArchive() {
+        return mArchive;
+    }
+
+    /* Minute, hour and day buckets of every gauge series, loaded with first batch */
+    public Rollups getRollups() {
+        return mRollups;
+    }
+
+    /* Downsampled history of archive and rollups, for graphs, callable from any thread */
+    public HistoryQuery getHistory() {
+        return mHistory;
     }
 
-    public void startPoll() {
+    /* Recent history of every series, readable from any thread */
+    public SeriesStore getSeries() {
+        return mSeries;
+    }
+
+    /* Statistics of samples from given endpoint of device, null until first one */
+    public RollingStats getStatistics(int endpoint, int device) {
+        return mStats.get(source(endpoint, device));
+    }
+
+    private static long source(int endpoint, int device) {
+        return (long) device << 32 | endpoint & 0xFFFFFFFFL;
+    }
+
+    /* Sample log of this service, null if not available */
+    public SampleLog getSampleLog() {
+        return mLog;
+    }
 
-        Log.d(TAG, "Starting service poll thread !");
-        mWatchdog = new Watchdog(mTimeout);
-        mWatchdog.setMaster(this);
+    public synchronized void startPoll() {
 
-        if (mServiceThread.getState() == Thread.State.NEW) {
-            mServiceThread.start();
+        Log.d(TAG, "Starting devices on shared pool !");
+
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+
+        for (Device device : mDevices) {
+            mPool.execute(device.mStart);
         }
     }
 
@@ -165,6 +386,20 @@ public class ControllerService extends Service implements PortDriver.PortDriverM
         stopSelf();
     }
 
+    /* Adds device of given type, returns its index used to tag samples.
+     * Devices added after startPoll() are started right away. */
+    public synchronized int addDevice(int type, String auxData) {
+
+        Device device = new Device(mDevices.size(), type, auxData);
+        mDevices.add(device);
+
+        if (mStarted) {
+            mPool.execute(device.mStart);
+        }
+
+        return device.mIndex;
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
 
@@ -172,11 +407,19 @@ public class ControllerService extends Service implements PortDriver.PortDriverM
             return START_NOT_STICKY;
         }
 
-        mType = intent.getIntExtra(EXTRA_TYPE, TYPE_DEFAULT);
         mOneShot = intent.getBooleanExtra(EXTRA_ONESHOT, false);
         mTimeout = intent.getIntExtra(EXTRA_TIMEOUT, TIMEOUT_DEFAULT);
         mWasEnabled = intent.getBooleanExtra(EXTRA_WAS_ENABLED, false);
-        mAuxData = intent.getStringExtra(EXTRA_AUX_DATA);
+
+        int[] types = intent.getIntArrayExtra(EXTRA_DEVICES);
+        if (types != null) {
+            String[] aux = intent.getStringArrayExtra(EXTRA_AUX_DATA_LIST);
+            for (int i = 0; i < types.length; i++) {
+                addDevice(types[i], aux != null && i < aux.length ? aux[i] : null);
+            }
+        } else if (mDevices.isEmpty()) {
+            addDevice(intent.getIntExtra(EXTRA_TYPE, TYPE_DEFAULT), intent.getStringExtra(EXTRA_AUX_DATA));
+        }
 
         Log.d(TAG, "Starting service");
 
@@ -188,16 +431,34 @@ public class ControllerService extends Service implements PortDriver.PortDriverM
 
         Log.d(TAG, "Stopping service");
 
-        mDevice.destroy();
+        for (Device device : mDevices) {
+            device.stop();
+        }
 
+        mPool.shutdownNow();
         try {
-            mServiceThread.interrupt();
-            mServiceThread.join();
+            if (!mPool.awaitTermination(SimpleHttpReq.REQUEST_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Pool did not terminate in time");
+            }
         } catch (InterruptedException e) {
         }
 
-        mDevice = null;
-        mWatchdog.hug();
+        if (mLog != null) {
+            mLog.close();
+        }
+
+        mAttached = false;
+        mBus.disconnected();
+        if (mBus.close(ARCHIVE_CLOSE_TIMEOUT)) {
+            mArchive.close();
+            mRollups.close();
+        } else {
+            // closing under running sink would tear archive, its tail is recovered on next open
+            Log.w(TAG, "History still busy, archive left open");
+        }
+        if (mHistorySink.getDropped() > 0) {
+            Log.w(TAG, "History lost " + mHistorySink.getDropped() + " batches");
+        }
 
         super.onDestroy();
 
@@ -212,87 +473,266 @@ public class ControllerService extends Service implements PortDriver.PortDriverM
     @Override
     public void onException(int code) {
         Log.e(TAG, "Got device exception:  " + code);
-        String reason = "Device exception occured !";
-        mHandler.obtainMessage(MSG_CONTROLLER_ERROR, reason).sendToTarget();
+        error("Device exception occured !");
     }
 
     @Override
-    public void onHauu() {
-        mHandler.obtainMessage(MSG_CONTROLLER_TIMEOUT).sendToTarget();
-        Log.e(TAG, "Got watchdog bark !");
+    public void onProgress(int state, int attempt, long elapsed) {
+        Log.d(TAG, "Controller progress: state " + state + " attempt " + attempt + " after " + elapsed + " ms");
+        mBus.progress(state, attempt, elapsed);
     }
 
-    private class ServiceThread implements Runnable {
+    private void error(String reason) {
+        Log.e(TAG, "Controller error occured: " + reason);
+        updateAttached();
+        mBus.error(reason);
+    }
 
-        @Override
-        public void run() {
+    private void timeout() {
+        Log.w(TAG, "Controller timeout !");
+        mBus.timeout();
+    }
 
-            boolean status;
+    private void updateAttached() {
 
-            switch (mType) {
-                default:
-                case DEVICE_WIFI:
-                    mDevice = new WifiDriver(ControllerService.this, mWasEnabled, mAuxData);
-                    break;
-                case DEVICE_BLUETOOTH:
-                    mDevice = new BluetoothDriver(ControllerService.this, mWasEnabled);
-                    break;
-                case DEVICE_FAKE:
-                    mDevice = new FakeDevice(ControllerService.this);
-                    break;
+        boolean attached = false;
+        for (Device device : mDevices) {
+            if (device.mState == Device.STATE_RUNNING)
+                attached = true;
+        }
+        mAttached = attached;
+    }
+
+    /* One hosted device. Bring-up runs as one pool task, afterwards every
+     * burst of data schedules one drain task, which goes to the back of pool
+     * queue, so busy devices take turns with others.
+     * At most one drain task of a device is queued or running, data published
+     * meanwhile only marks it pending and is picked up when the task ends.
+     * Only draining is pooled: driver keeps its own I/O thread, one ComLink
+     * poll thread per single host device, one MultiComLink selector thread
+     * for all hosts of a multi host device. */
+    private final class Device implements Runnable, Watchdog.WatchdogMaster {
+
+        static final int STATE_IDLE = 0;
+        static final int STATE_STARTING = 1;
+        static final int STATE_RUNNING = 2;
+        static final int STATE_FAILED = 3;
+        static final int STATE_STOPPED = 4;
+
+        final int mIndex;
+        final int mType;
+        final String mAuxData;
+
+        volatile int mState = STATE_IDLE;
+        volatile PortDriver mDriver = null;
+        private Watchdog mWatchdog = null;
+
+        private boolean mSignaled = false;
+        private long mStartTime = 0;
+        private boolean mFirst = true;
+
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        private final AtomicBoolean mPending = new AtomicBoolean(false);
+
+        final Runnable mStart = new Runnable() {
+            @Override
+            public void run() {
+                start();
             }
+        };
+
+        /* Called by driver on producer thread whenever data was published */
+        private final Runnable mListener = new Runnable() {
+            @Override
+            public void run() {
+                mPending.set(true);
+                schedule();
+            }
+        };
 
-            status = mDevice.initiate();
-            mWatchdog.giveMeat(mTimeout);
+        Device(int index, int type, String auxData) {
+            mIndex = index;
+            mType = type;
+            mAuxData = auxData;
+        }
 
-            if (status) {
-                String label = mDevice.getProduct();
+        void start() {
 
-                mHandler.obtainMessage(MSG_CONTROLLER_ATTACHED, label).sendToTarget();
-            } else {
-                String reason = "Problem when connecting to device !";
-                mHandler.obtainMessage(MSG_CONTROLLER_ERROR, reason).sendToTarget();
+            if (mState == STATE_STOPPED) {
                 return;
             }
 
-            PortDriver.DataItem item = new PortDriver.DataItem();
+            if (!mBringup.tryAcquire()) {
+                // all bring-up permits taken, keep last thread for polling
+                mPool.schedule(mStart, BRINGUP_RETRY, TimeUnit.MILLISECONDS);
+                return;
+            }
 
-            while (!Thread.currentThread().isInterrupted()) {
-                boolean lastStatus = true;
+            boolean status;
+            try {
+                synchronized (this) {
+                    if (mState == STATE_STOPPED)
+                        return;
+                    mState = STATE_STARTING;
+                }
+                mStartTime = System.currentTimeMillis();
+                mDriver = PortDriverRegistry.create(mType, ControllerService.this, mWasEnabled, mAuxData);
+                status = mDriver != null && mDriver.initiate();
+            } finally {
+                mBringup.release();
+            }
 
-                mWatchdog.giveMeat(mTimeout);
-                status = mDevice.poll(item);
+            boolean stopped;
+            synchronized (this) {
+                stopped = mState == STATE_STOPPED;
+                if (!stopped) {
+                    mState = status ? STATE_RUNNING : STATE_FAILED;
+                }
+            }
 
-                String data = null;
+            if (stopped) {
+                // stop() left driver to us while initiate() was running
+                if (mDriver != null)
+                    mDriver.destroy();
+                return;
+            }
 
-                if (status) {
-                    try {
-                        JSONObject json = new JSONObject();
-                        json.put("KEY", item.key);
-                        json.put("VALUE", item.value);
-                        Log.w(TAG, "item val " + item.value);
-                        data = json.toString();
-                    } catch (JSONException e) {
-                    }
+            if (mDriver == null) {
+                error("No driver for device #" + mIndex + " of type " + mType + " !");
+                return;
+            }
 
-                    mHandler.obtainMessage(MSG_CONTROLLER_DATA_RECEIVED, data).sendToTarget();
-                } else if (!lastStatus) {
-                    mHandler.obtainMessage(MSG_CONTROLLER_TIMEOUT).sendToTarget();
-                }
+            if (!status) {
+                error("Problem when connecting to device #" + mIndex + " !");
+                return;
+            }
+
+            String label = mDriver.getProduct();
+            Log.d(TAG, "Device #" + mIndex + " attached !");
+
+            if (mTimeout > 0) {
+                // bark comes on tick thread, bus takes care of observer threads
+                mWatchdog = new Watchdog(mTimeout);
+                mWatchdog.setMaster(this);
+                mWatchdog.setExecutor(Watchdog.INLINE);
+                mWatchdog.poke();
+            }
+
+            mSignaled = mDriver.setDataListener(mListener);
+            updateAttached();
+            mBus.connected(label);
 
-                lastStatus = status;
+            // data could arrive before listener was set
+            schedule();
+        }
 
+        void schedule() {
+            if (mScheduled.compareAndSet(false, true)) {
                 try {
-                    Thread.sleep(mScanPeriod);
-                } catch (InterruptedException e) {
-                    break;
+                    mPool.execute(this);
+                } catch (RuntimeException e) {
+                    // pool already shut down
                 }
+            }
+        }
+
+        @Override
+        public void run() {
+
+            // anything published from now on is either polled below or seen at the end
+            mPending.set(false);
+
+            PortDriver driver = mDriver;
+            if (mState != STATE_RUNNING || driver == null) {
+                mScheduled.set(false);
+                return;
+            }
+
+            PortDriver.DataItem[] items = mItems.get();
+            int count = 0;
+            try {
+                count = driver.poll(items, mSignaled ? 0 : POLL_SLICE);
+                if (count > 0) {
+                    deliver(driver, items, count);
+                }
+            } catch (RuntimeException e) {
+                // failing driver or sink must not stall device, next run tries again
+                Log.e(TAG, "Device #" + mIndex + " drain failed " + e.toString());
+            } finally {
+                // cleared only after draining, so two pool threads never drain one device
+                mScheduled.set(false);
+            }
 
-                if (mOneShot)
+            // next frame may not have fit into what was left of items
+            if (!mSignaled || count > items.length - FrameDecoder.MAX_VALUES || mPending.get()) {
+                // more may be pending, take turn behind other devices
+                schedule();
+            }
+        }
+
+        private void deliver(PortDriver driver, PortDriver.DataItem[] items, int count) {
+
+            long now = System.currentTimeMillis();
+
+            if (mFirst) {
+                mFirst = false;
+                Log.i(TAG, "Device #" + mIndex + " first sample after " + (now - mStartTime) + " ms");
+            }
+
+            // ring drains up to last whole frame that fits, rest waits for next poll
+            SampleBatch batch = new SampleBatch(items, count, mIndex);
+
+            long windowEnd = now + mCoalesceWindow;
+            long left;
+            while ((left = windowEnd - System.currentTimeMillis()) > 0) {
+                count = driver.poll(items, left);
+                if (count == 0)
                     break;
+                batch = SampleBatch.concat(batch, new SampleBatch(items, count, mIndex));
+            }
+
+            if (mWatchdog != null) {
+                mWatchdog.poke();
+            }
+
+            SampleLog log = mLog;
+            if (log != null) {
+                log.append(batch);
+            }
+            mBus.samples(batch);
+
+            if (mOneShot) {
+                stop();
+            }
+        }
+
+        void stop() {
+
+            int state;
+            synchronized (this) {
+                state = mState;
+                mState = STATE_STOPPED;
+            }
+
+            PortDriver driver = mDriver;
+            if (state != STATE_STARTING && state != STATE_STOPPED && driver != null) {
+                driver.destroy();
             }
 
-            mHandler.obtainMessage(MSG_CONTROLLER_DETACHED).sendToTarget();
+            if (mWatchdog != null) {
+                mWatchdog.hug();
+            }
+
+            updateAttached();
+        }
+
+        /* Device went silent, others keep running */
+        @Override
+        public void onHauu() {
+            if (mState == STATE_RUNNING) {
+                Log.w(TAG, "Device #" + mIndex + " silent");
+                timeout();
+            }
         }
     }
 
@@ -8,28 +8,31 @@
 
 package com.sygmi;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.List;
 
 
 /* This is simple Wifi driver that fetches string data from device
  * Only RX path is available */
-public final class WifiDriver extends PortDriver implements ComLink.ComLinkObserver {
+public final class WifiDriver extends PortDriver implements ComLink.ComLinkObserver,
+        ConnectionMachine.Steps, ConnectionMachine.ProgressObserver {
 
     private static final String TAG = "WifiDriver";
 
@@ -37,27 +40,45 @@ public final class WifiDriver extends PortDriver implements ComLink.ComLinkObser
 
     private final static int DEVICE_PORT = 80;
 
-    private final static int AP_ENABLE_DELAY = 1000;
     private final static int AP_TIMEOUT = 5000;
 
-    private ComLink mLink = null;
+    /* Reuse one HTTP/1.1 connection across polls */
+    private final static boolean KEEP_ALIVE = true;
+
+    /* Ask device to push frames, polling is kept as fallback */
+    private final static boolean STREAMING = true;
 
-    private InputStream mInput = null;
-    private OutputStream mOutput = null;
+    private ComLink mLink = null;
+    private MultiComLink mMultiLink = null;
 
     private PortDriverMonitor mMonitor = null;
 
     private boolean mWasEnabled = false;
 
-    private Socket mSocket;
+    private SocketChannel mChannel;
 
     private String mIpAddress;
+    private String[] mHosts;
+
+    private final Context mContext;
 
     private WifiManager mWifiMgr = null;
     ConnectivityManager mConnMgr = null;
 
+    private ConnectionMachine mMachine = null;
+
+    /* Wakes up bring-up stage waiting for radio or network change */
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mMachine != null) {
+                mMachine.signal();
+            }
+        }
+    };
+
     public WifiDriver(Context context, boolean enabled, String ipAddress) {
-        super(context);
+        mContext = context;
 
         /* Controller service context */
         mMonitor = (PortDriverMonitor)context;
@@ -67,9 +88,14 @@ public final class WifiDriver extends PortDriver implements ComLink.ComLinkObser
         mWifiMgr = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
         mConnMgr = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
 
-        mIpAddress = ipAddress;
+        /* Comma separated list selects multi endpoint mode */
+        mHosts = ipAddress != null ? ipAddress.split(",") : new String[0];
+        for (int i = 0; i < mHosts.length; i++) {
+            mHosts[i] = mHosts[i].trim();
+        }
+        mIpAddress = mHosts.length > 0 ? mHosts[0] : null;
 
-        Log.i(TAG, "IP address : " + mIpAddress);
+        Log.i(TAG, "IP address : " + ipAddress);
 
         setName(DEVICE_NAME);
     }
@@ -91,13 +117,7 @@ public final class WifiDriver extends PortDriver implements ComLink.ComLinkObser
     private void setWifi(boolean enable) {
 
         if (!mWasEnabled) {
-            if (enable) {
-                mWifiMgr.setWifiEnabled(true);
-                while (!mWifiMgr.isWifiEnabled()) ;
-            }
-            else {
-                mWifiMgr.setWifiEnabled(false);
-            }
+            mWifiMgr.setWifiEnabled(enable);
         }
     }
 
@@ -110,6 +130,11 @@ public final class WifiDriver extends PortDriver implements ComLink.ComLinkObser
     private boolean connectAP(String ssid)
     {
         List<WifiConfiguration> list = mWifiMgr.getConfiguredNetworks();
+        if (list == null) {
+            Log.e(TAG, "No configured networks !");
+            return false;
+        }
+
         for( WifiConfiguration ap : list ) {
             if(ap.SSID != null && ap.SSID.startsWith("\"" + ssid)) {
                 mWifiMgr.disconnect();
@@ -130,35 +155,64 @@ public final class WifiDriver extends PortDriver implements ComLink.ComLinkObser
         mMonitor.onException(code);
     }
 
+    @Override
+    public void onProgress(int state, int attempt, long elapsed) {
+        mMonitor.onProgress(state, attempt, elapsed);
+    }
+
     public void open() {
         try {
-            if (mSocket == null || !mSocket.isConnected()) {
-                mSocket = new Socket(mIpAddress, DEVICE_PORT);
-                mSocket.setSoTimeout(AP_TIMEOUT);
-                mOutput = mSocket.getOutputStream();
-                mInput = mSocket.getInputStream();
-                if (mLink != null)
-                    mLink.updateIO(mInput, mOutput);
-            }
+            connect(AP_TIMEOUT);
         } catch (IOException e) {
             Log.e(TAG, "Problem when connecting " + e.toString());
+            close();
+        }
+
+        if (mLink != null)
+            mLink.updateChannel(mChannel);
+    }
+
+    private void connect(long timeout) throws IOException {
+
+        if (mChannel == null || !mChannel.isConnected()) {
+            close();
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            if (!mChannel.connect(new InetSocketAddress(mIpAddress, DEVICE_PORT))) {
+                finishConnect(mChannel, timeout);
+            }
+        }
+    }
+
+    /* Waits for pending connect without blocking longer than timeout */
+    private static void finishConnect(SocketChannel channel, long timeout) throws IOException {
+
+        Selector selector = Selector.open();
+        try {
+            channel.register(selector, SelectionKey.OP_CONNECT);
+            if (selector.select(timeout) == 0) {
+                throw new IOException("Connect timeout");
+            }
+            channel.finishConnect();
+        } finally {
+            selector.close();
         }
     }
 
     public void close() {
         try {
-            if (mSocket != null && mSocket.isConnected()) {
-                mSocket.close();
-                mSocket = null;
+            if (mChannel != null) {
+                mChannel.close();
             }
         } catch (IOException e) {
             Log.e(TAG, "Problem when reconnecting " + e.toString());
         }
+        mChannel = null;
     }
 
     @Override
     public void onReconnect() {
-        Log.d(TAG, "onReconnect " + mSocket.isConnected());
+        Log.d(TAG, "onReconnect " + (mChannel != null && mChannel.isConnected()));
 
         close();
         open();
@@ -168,32 +222,91 @@ public final class WifiDriver extends PortDriver implements ComLink.ComLinkObser
     public boolean initiate() {
         super.initiate();
 
-        if (validateHost(mIpAddress) == false) {
-            Log.e(TAG, "Incorrect host address found ....");
+        if (mHosts.length == 0) {
+            Log.e(TAG, "No host address found ....");
             return false;
         }
 
-        setWifi(true);
+        for (String host : mHosts) {
+            if (validateHost(host) == false) {
+                Log.e(TAG, "Incorrect host address found .... " + host);
+                return false;
+            }
+        }
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        mContext.registerReceiver(mReceiver, filter);
+
+        mMachine = new ConnectionMachine(this, this);
+        boolean connected = mMachine.run();
 
-        if (!connectAP(DEVICE_NAME))
+        mContext.unregisterReceiver(mReceiver);
+        mMachine = null;
+
+        if (!connected)
             return false;
 
-        do {
+        if (mHosts.length > 1) {
             try {
-                Thread.sleep(AP_ENABLE_DELAY);
-            } catch (InterruptedException e) {
+                mMultiLink = new MultiComLink(this, mHosts, DEVICE_PORT, KEEP_ALIVE);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Incorrect host address found .... " + e.getMessage());
+                return false;
             }
-        }while(!isOnline());
-
-        open();
+            mIsConnected = true;
+            return true;
+        }
 
-        mLink = new ComLink(this, mInput, mOutput);
+        mLink = new ComLink(this, mChannel, mIpAddress, KEEP_ALIVE, new PollScheduler.Adaptive(), STREAMING);
 
         mIsConnected = true;
 
         return mLink != null;
     }
 
+    @Override
+    public boolean begin(int state, long timeout) throws IOException {
+
+        switch (state) {
+            case ConnectionMachine.STATE_ENABLING:
+                setWifi(true);
+                return mWifiMgr.isWifiEnabled();
+            case ConnectionMachine.STATE_ASSOCIATING:
+                if (isOnline())
+                    return true;
+                if (!connectAP(DEVICE_NAME))
+                    throw new IOException("No AP");
+                return false;
+            case ConnectionMachine.STATE_CONNECTING:
+                // multi endpoint link connects its sockets itself
+                if (mHosts.length == 1)
+                    connect(timeout);
+                return true;
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean isDone(int state) {
+
+        switch (state) {
+            case ConnectionMachine.STATE_ENABLING:
+                return mWifiMgr.isWifiEnabled();
+            case ConnectionMachine.STATE_ASSOCIATING:
+                return isOnline();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void abort() {
+        close();
+    }
+
     @Override
     public void destroy() {
 
@@ -201,6 +314,10 @@ public final class WifiDriver extends PortDriver implements ComLink.ComLinkObser
             mLink.destroy();
         }
 
+        if (mMultiLink != null) {
+            mMultiLink.destroy();
+        }
+
         close();
 
         mIsConnected = false;
@@ -216,7 +333,39 @@ public final class WifiDriver extends PortDriver implements ComLink.ComLinkObser
             return mLink.receive(frame);
         }
 
+        if (mMultiLink != null) {
+            return mMultiLink.receive(frame);
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean setDataListener(Runnable listener) {
+        if (mLink != null) {
+            mLink.setListener(listener);
+            return true;
+        }
+
+        if (mMultiLink != null) {
+            mMultiLink.setListener(listener);
+            return true;
+        }
+
         return false;
     }
+
+    @Override
+    public int poll(DataItem[] items, long timeout) {
+        if (mLink != null) {
+            return mLink.receive(items, timeout);
+        }
+
+        if (mMultiLink != null) {
+            return mMultiLink.receive(items, timeout);
+        }
+
+        return 0;
+    }
 }
 
@@ -8,10 +8,12 @@
 
 package com.sygmi.iothub;
 
+import com.sygmi.ChangeFilter;
 import com.sygmi.DataParser;
 import com.sygmi.ControllerService;
 import com.sygmi.EndpointStateService;
 import com.sygmi.FaderEffect;
+import com.sygmi.SampleBatch;
 import com.sygmi.iothub.dash.R;
 
 import android.app.Activity;
@@ -57,6 +59,7 @@ public class MainActivity extends Activity implements ControllerService.IControl
 
     private ControllerService mControllerService = null;
     private DataParser mParser = null;
+    private ChangeFilter.Config mFilterConfig = null;
 
     private TempTasker mTempTasker = new TempTasker();
     private HumidTasker mHumidTasker = new HumidTasker();
@@ -116,7 +119,6 @@ public class MainActivity extends Activity implements ControllerService.IControl
             if (mControllerService != null) {
                 mControllerService.registerObserver(MainActivity.this);
                 mControllerService.startPoll();
-                mControllerService.setScanPeriod(100);
             }
         }
 
@@ -248,6 +250,7 @@ public class MainActivity extends Activity implements ControllerService.IControl
     public void onConnected(String label) {
         showPopup("Controller connected: " + label);
         mParser = new DataParser();
+        mParser.setFilter(mFilterConfig);
         mParser.setCallback(new DataParser.IDataCallback() {
 
             public void onTemperatureChanged(double oldVal, double newVal) {
@@ -304,10 +307,10 @@ public class MainActivity extends Activity implements ControllerService.IControl
     }
 
     @Override
-    public void onDataReceived(String data) {
+    public void onSamplesReceived(SampleBatch snapshot) {
         //Log.d(TAG, "CAN Controller data received !");
         try {
-            mParser.exec(data);
+            mParser.exec(snapshot);
         } catch (DataParser.DataParserException excp) {
             Log.e(TAG, "Parser exception : " + excp.getReason());
         }
@@ -325,6 +328,11 @@ public class MainActivity extends Activity implements ControllerService.IControl
         stopService();
     }
 
+    @Override
+    public void onProgress(int state, int attempt, long elapsed) {
+        Log.d(TAG, "Connecting, state " + state + " attempt " + attempt + " after " + elapsed + " ms");
+    }
+
     private void startService() {
 
         if (mConnected ==  true || mIsVisible == false)
@@ -434,6 +442,19 @@ public class MainActivity extends Activity implements ControllerService.IControl
                 SettingsActivity.ATTR_ENDPOINT_TIMEOUT_DEFAULT_VAL));
         mWifiIpAddress = sharedPrefs.getString(SettingsActivity.ATTR_WIFI_ENDPOINT_ADDR,
                 SettingsActivity.ATTR_WIFI_ENDPOINT_ADDR_DEFAULT_VAL);
+
+        mFilterConfig = new ChangeFilter.Config();
+        mFilterConfig.setDeadband(sharedPrefs.getString(SettingsActivity.ATTR_FILTER_DEADBAND,
+                SettingsActivity.ATTR_FILTER_DEADBAND_DEFAULT_VAL));
+        mFilterConfig.hysteresis = Double.parseDouble(sharedPrefs.getString(SettingsActivity.ATTR_FILTER_HYSTERESIS,
+                SettingsActivity.ATTR_FILTER_HYSTERESIS_DEFAULT_VAL));
+        mFilterConfig.minInterval = Long.parseLong(sharedPrefs.getString(SettingsActivity.ATTR_FILTER_INTERVAL,
+                SettingsActivity.ATTR_FILTER_INTERVAL_DEFAULT_VAL));
+        mFilterConfig.median = Integer.parseInt(sharedPrefs.getString(SettingsActivity.ATTR_FILTER_MEDIAN,
+                SettingsActivity.ATTR_FILTER_MEDIAN_DEFAULT_VAL));
+        if (mParser != null) {
+            mParser.setFilter(mFilterConfig);
+        }
     }
 
     private void showPopup(String text) {
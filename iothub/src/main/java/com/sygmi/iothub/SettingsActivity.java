@@ -20,11 +20,19 @@ public class SettingsActivity extends PreferenceActivity{
     public static final String ATTR_REFRESH_RATE = "prefRefreshRate";
     public static final String ATTR_ENDPOINT_TIMEOUT = "prefEndpointTimeout";
     public static final String ATTR_WIFI_ENDPOINT_ADDR = "prefWifiAddress";
+    public static final String ATTR_FILTER_DEADBAND = "prefFilterDeadband";
+    public static final String ATTR_FILTER_HYSTERESIS = "prefFilterHysteresis";
+    public static final String ATTR_FILTER_INTERVAL = "prefFilterInterval";
+    public static final String ATTR_FILTER_MEDIAN = "prefFilterMedian";
 
     public static final String ATTR_DEV_TYPE_DEFAULT_VAL = "255";
     public static final String ATTR_REFRESH_RATE_DEFAULT_VAL = "100";
     public static final String ATTR_ENDPOINT_TIMEOUT_DEFAULT_VAL = "1000";
     public static final String ATTR_WIFI_ENDPOINT_ADDR_DEFAULT_VAL = "127.0.0.1";
+    public static final String ATTR_FILTER_DEADBAND_DEFAULT_VAL = "0.2";
+    public static final String ATTR_FILTER_HYSTERESIS_DEFAULT_VAL = "0.1";
+    public static final String ATTR_FILTER_INTERVAL_DEFAULT_VAL = "1000";
+    public static final String ATTR_FILTER_MEDIAN_DEFAULT_VAL = "3";
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
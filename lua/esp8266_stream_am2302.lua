@@ -0,0 +1,60 @@
+temp = 0
+humid = 0
+err = 0
+timeFromBoot = 0
+lastReadTime = 0
+subscribers = {}
+
+dofile("conf.lua")
+
+function frame()
+return "<p>B="..timeFromBoot.." R="..lastReadTime.." E="..err.." T="..string.format("%.1f",temp).."C H="..string.format("%.1f",humid).."% </p>"
+end
+
+tmr.alarm(0, 2000, 1, function()
+timeFromBoot = tmr.time()
+t,h =  dofile("dht22.lua").read(4, true)
+if t and h then
+    temp = t
+    humid = h
+    err = 0    
+else
+    err = 1 
+end
+if err == 0 then
+    lastReadTime = timeFromBoot
+end
+-- push fresh reading to every streaming client
+for c,_ in pairs(subscribers) do
+    c:send(frame().."\n")
+end
+end)
+
+srv=net.createServer(net.TCP, 30)
+srv:listen(80,function(conn)
+conn:on("receive",function(conn,payload)
+body = frame()
+if string.find(payload, "GET /stream", 1, true) then
+    -- streaming client, connection stays open and gets a frame per reading
+    conn:send("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nX-Stream: frames\r\n\r\n"..body.."\n")
+    subscribers[conn] = true
+elseif string.find(payload, "HTTP/1.1", 1, true) then
+    -- keep-alive client, frame the body so connection can be reused
+    close = string.find(payload, "Connection: close", 1, true)
+    hdr = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: "..string.len(body).."\r\n"
+    if close then
+        hdr = hdr.."Connection: close\r\n"
+    end
+    conn:send(hdr.."\r\n"..body)
+    if close then
+        conn:close()
+    end
+else
+    conn:send(body)
+    conn:close()
+end
+end)
+conn:on("disconnection",function(conn)
+subscribers[conn] = nil
+end)
+end)
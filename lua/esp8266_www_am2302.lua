@@ -21,11 +21,25 @@ if err == 0 then
 end
 end)
 
-srv=net.createServer(net.TCP)
+srv=net.createServer(net.TCP, 30)
 srv:listen(80,function(conn)
 conn:on("receive",function(conn,payload)
-conn:send("<p>B="..timeFromBoot.." R="..lastReadTime.." E="..err.." T="..string.format("%.1f",temp).."C H="..string.format("%.1f",humid).."% </p>")
-conn:close()
+body = "<p>B="..timeFromBoot.." R="..lastReadTime.." E="..err.." T="..string.format("%.1f",temp).."C H="..string.format("%.1f",humid).."% </p>"
+if string.find(payload, "HTTP/1.1", 1, true) then
+    -- keep-alive client, frame the body so connection can be reused
+    close = string.find(payload, "Connection: close", 1, true)
+    hdr = "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: "..string.len(body).."\r\n"
+    if close then
+        hdr = hdr.."Connection: close\r\n"
+    end
+    conn:send(hdr.."\r\n"..body)
+    if close then
+        conn:close()
+    end
+else
+    conn:send(body)
+    conn:close()
+end
 end)
 end)
 